@@ -1,7 +1,10 @@
 import pt.unl.fct.di.novasys.babel.core.Babel;
+import pt.unl.fct.di.novasys.babel.core.GenericProtocol;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import protocols.agreement.Agreement;
+import protocols.agreement.epaxos.EPaxosAgreement;
+import protocols.agreement.multipaxos.MultiPaxosAgreement;
 import protocols.app.HashApp;
 import protocols.statemachine.StateMachine;
 
@@ -10,7 +13,12 @@ import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 
@@ -40,23 +48,39 @@ public class Main {
         // IP of that interface and create a property "address=ip" to be used later by the channels.
         addInterfaceIp(props);
 
+        // One StateMachine and Agreement pair per group, HashApp partitions the keys among them
+        int groups = Integer.parseInt(props.getProperty("agreement_groups", "1"));
+        // Agreement ids run from 100+g and StateMachine ids from 200+g, more groups would collide with the next range
+        int maxGroups = Math.min(StateMachine.PROTOCOL_ID - Agreement.PROTOCOL_ID, HashApp.PROTO_ID - StateMachine.PROTOCOL_ID);
+        if (groups < 1 || groups > maxGroups)
+            throw new InvalidParameterException("Property agreement_groups is set to " + groups + ", but must be between 1 and " + maxGroups);
+        checkGroupPorts(props, groups);
+
         // Application
         HashApp hashApp = new HashApp(props);
-        // StateMachine Protocol
-        StateMachine sm = new StateMachine(props);
-        // Agreement Protocol
-        Agreement agreement = new Agreement(props);
+        List<GenericProtocol> protocols = new ArrayList<>();
+        protocols.add(hashApp);
+        for (int g = 0; g < groups; g++) {
+            // StateMachine Protocol
+            protocols.add(new StateMachine(props, g));
+            // Agreement Protocol: single-decree Paxos per instance, Multi-Paxos with a stable leader, or leaderless EPaxos
+            String agreementProtocol = props.getProperty("agreement_protocol", "paxos");
+            if (agreementProtocol.equalsIgnoreCase("multipaxos"))
+                protocols.add(new MultiPaxosAgreement(props, g));
+            else if (agreementProtocol.equalsIgnoreCase("epaxos"))
+                protocols.add(new EPaxosAgreement(props, g));
+            else
+                protocols.add(new Agreement(props, g));
+        }
 
         //Register applications in babel
-        babel.registerProtocol(hashApp);
-        babel.registerProtocol(sm);
-        babel.registerProtocol(agreement);
+        for (GenericProtocol protocol : protocols)
+            babel.registerProtocol(protocol);
 
         //Init the protocols. This should be done after creating all protocols,
         // since there can be inter-protocol communications in this step.
-        hashApp.init(props);
-        sm.init(props);
-        agreement.init(props);
+        for (GenericProtocol protocol : protocols)
+            protocol.init(props);
 
         //Start babel and protocol threads
         babel.start();
@@ -65,6 +89,33 @@ public class Main {
 
     }
 
+    //Every group listens on its own port, p2p_port + group * group_port_stride. None of them may land on
+    // server_port, past the last port, or on a port of another replica's groups on the same host
+    public static void checkGroupPorts(Properties props, int groups) throws InvalidParameterException {
+        int serverPort = Integer.parseInt(props.getProperty("server_port"));
+        Map<String, String> taken = new HashMap<>();
+        List<String> replicas = new ArrayList<>();
+        replicas.add(props.getProperty("address") + ":" + props.getProperty("p2p_port"));
+        if (props.getProperty("initial_membership") != null)
+            replicas.addAll(Arrays.asList(props.getProperty("initial_membership").split(",")));
+        for (String replica : replicas) {
+            String[] hostElements = replica.split(":");
+            int base = Integer.parseInt(hostElements[1]);
+            for (int g = 0; g < groups; g++) {
+                int port = StateMachine.groupPort(props, base, g);
+                if (port > 65535)
+                    throw new InvalidParameterException("Group " + g + " of " + replica + " would listen on port " + port);
+                if (replica == replicas.get(0) && port == serverPort)
+                    throw new InvalidParameterException("Group " + g + " would listen on server_port " + serverPort
+                            + ", change group_port_stride or agreement_groups");
+                String owner = taken.putIfAbsent(hostElements[0] + ":" + port, replica);
+                if (owner != null && !owner.equals(replica))
+                    throw new InvalidParameterException("Group " + g + " of " + replica + " would listen on port " + port
+                            + ", already used by " + owner + ", change group_port_stride or agreement_groups");
+            }
+        }
+    }
+
     public static String getIpOfInterface(String interfaceName) throws SocketException {
         if(interfaceName.equalsIgnoreCase("lo"))
         	return "127.0.0.1"; //This is an special exception to deal with the loopback.
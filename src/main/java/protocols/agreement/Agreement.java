@@ -3,18 +3,30 @@ package protocols.agreement;
 import protocols.agreement.messages.*;
 import protocols.agreement.notifications.JoinedNotification;
 import protocols.agreement.requests.*;
+import protocols.agreement.timers.LogSyncTimer;
 import protocols.agreement.timers.Timeout;
-import protocols.app.utils.Tuple;
+import protocols.agreement.utils.AcceptorLog;
+import protocols.agreement.utils.Backoff;
+import protocols.agreement.utils.QuorumTracker;
+import protocols.agreement.utils.Quorums;
+import protocols.agreement.utils.Responders;
+import protocols.agreement.utils.TimingWheel;
+import protocols.agreement.utils.InstanceStore;
+import protocols.agreement.utils.MembershipView;
+import protocols.app.utils.Operation;
 import pt.unl.fct.di.novasys.babel.core.GenericProtocol;
 import pt.unl.fct.di.novasys.babel.exceptions.HandlerRegistrationException;
 import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
 import pt.unl.fct.di.novasys.network.data.Host;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import protocols.statemachine.StateMachine;
 import protocols.statemachine.notifications.ChannelReadyNotification;
+import protocols.statemachine.utils.Noop;
 import protocols.agreement.notifications.DecidedNotification;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 
 /**
@@ -31,36 +43,107 @@ public class Agreement extends GenericProtocol {
     //Protocol information, to register in babel
     public final static short PROTOCOL_ID = 100;
     public final static String PROTOCOL_NAME = "EmptyAgreement";
+    private final static int METRICS_INTERVAL = 1000;
 
     private Host myself;
+    //The state machine of our group, notifications from the other groups' are not ours
+    private final short stateMachineId;
     private int joinedInstance;
-    private List<Host> membership;
+    private MembershipView membership;
 
-    private HashMap<Integer, PaxosInstance> paxosInstancesMap;
+    private InstanceStore<PaxosInstance> paxosInstancesMap;
     //no timeout for instances with no initial value to propose
-    private HashMap<Long, Integer> timeoutInstancesMap;
+    private final TimingWheel timeoutWheel;
+
+    //Instances up to here were executed by a quorum, their state was discarded
+    private int gcWatermark;
 
     private final int agreementTime;
     int decider;
+    //Retry delay after losing a ballot, and how often that happened
+    private final Backoff backoff;
+    private int preemptions;
+    //AcceptOks go only to the proposer, which then sends a compact Decide to everyone
+    private final boolean collectAcceptOk;
+    //Phase 1 and phase 2 quorum sizes, any pair intersects
+    private final Quorums quorums;
+    //Accepts go only to the fastest phase 2 quorum, the others are asked after thriftyTimeout (ms)
+    private final boolean thrifty;
+    private final int thriftyTimeout;
+    private final Responders responders;
+
+    //Promises and accepts are logged before they are answered, and replayed when we join after a restart
+    private final AcceptorLog acceptorLog;
+    private final String dataDir;
+
+    //Mencius: instance i belongs to replica i mod n, which skips phase 1 there and gives up slots it has no use for
+    private final boolean mencius;
+    //Lowest slot of ours neither proposed nor skipped
+    private int menciusNext;
+    //Highest instance someone proposed in, undecided slots of others below it are revoked after agreementTime
+    private int highestSeen;
+    private int revokeFrom;
+    private final Map<Integer, Long> suspected;
+
+    //Highest instance we accepted a value in, the answers of a majority bound every decided instance
+    private int highestAccepted;
+    //Read index round we are gathering answers for, the highest instance reported so far and who asked
+    private int readRound;
+    private int readIndex;
+    private short readRequester;
+    private QuorumTracker readOks;
 
     public Agreement(Properties props) throws IOException, HandlerRegistrationException {
-        super(PROTOCOL_NAME, PROTOCOL_ID);
+        this(props, 0);
+    }
+
+    public Agreement(Properties props, int group) throws IOException, HandlerRegistrationException {
+        super(group == 0 ? PROTOCOL_NAME : PROTOCOL_NAME + "-" + group, (short) (PROTOCOL_ID + group));
+        stateMachineId = (short) (StateMachine.PROTOCOL_ID + group);
         joinedInstance = -1; //-1 means we have not yet joined the system
         membership = null;
-        paxosInstancesMap = new HashMap<>();
-        timeoutInstancesMap = new HashMap<>();
+        paxosInstancesMap = new InstanceStore<>(Integer.parseInt(props.getProperty("instance_window", "8192")));
+        gcWatermark = -1;
 
         decider=0;
 
         this.agreementTime = Integer.parseInt(props.getProperty("agreement_time", "10000"));
+        int agreementTick = Integer.parseInt(props.getProperty("agreement_tick", "50"));
+        timeoutWheel = new TimingWheel(agreementTick, 512, this::uponInstanceTimeout);
+        backoff = new Backoff(Integer.parseInt(props.getProperty("backoff_base", String.valueOf(agreementTick))),
+                Integer.parseInt(props.getProperty("backoff_max", "2000")));
+        preemptions = 0;
+        this.collectAcceptOk = props.getProperty("accept_ok_mode", "all").equalsIgnoreCase("proposer");
+        this.quorums = new Quorums(Integer.parseInt(props.getProperty("phase1_quorum", "0")),
+                Integer.parseInt(props.getProperty("phase2_quorum", "0")));
+        this.thrifty = Boolean.parseBoolean(props.getProperty("thrifty_accept", "false"));
+        this.thriftyTimeout = Integer.parseInt(props.getProperty("thrifty_timeout", "200"));
+        responders = new Responders();
+        acceptorLog = new AcceptorLog(AcceptorLog.parseDurability(props.getProperty("wal_durability", "none")),
+                Integer.parseInt(props.getProperty("wal_group_window", "2")),
+                Integer.parseInt(props.getProperty("wal_group_max", "128")),
+                Long.parseLong(props.getProperty("wal_segment_bytes", "67108864")));
+        dataDir = props.getProperty("data_dir", "data");
+        this.mencius = Boolean.parseBoolean(props.getProperty("mencius", "false"));
+        menciusNext = -1;
+        highestSeen = -1;
+        revokeFrom = 0;
+        suspected = new HashMap<>();
+        highestAccepted = -1;
+        readRound = -1;
+        readIndex = -1;
+        readOks = new QuorumTracker();
 
         /*--------------------- Register Timer Handlers ----------------------------- */
         registerTimerHandler(Timeout.TIMEOUT_ID, this::uponTimeout);
+        registerTimerHandler(LogSyncTimer.TIMEOUT_ID, this::uponLogSyncTimer);
 
         /*--------------------- Register Request Handlers ----------------------------- */
         registerRequestHandler(ProposeRequest.REQUEST_ID, this::uponProposeRequest);
         registerRequestHandler(AddReplicaRequest.REQUEST_ID, this::uponAddReplica);
         registerRequestHandler(RemoveReplicaRequest.REQUEST_ID, this::uponRemoveReplica);
+        registerRequestHandler(GarbageCollectRequest.REQUEST_ID, this::uponGarbageCollect);
+        registerRequestHandler(ReadIndexRequest.REQUEST_ID, this::uponReadIndexRequest);
 
         /*--------------------- Register Notification Handlers ----------------------------- */
         subscribeNotification(ChannelReadyNotification.NOTIFICATION_ID, this::uponChannelCreated);
@@ -69,11 +152,14 @@ public class Agreement extends GenericProtocol {
 
     @Override
     public void init(Properties props) {
-        //Nothing to do here, we just wait for events from the application or agreement
+        //A single periodic tick drives every instance timeout
+        setupPeriodicTimer(new Timeout(), timeoutWheel.getTickMs(), timeoutWheel.getTickMs());
     }
 
     //Upon receiving the channelId from the membership, register our own callbacks and serializers
     private void uponChannelCreated(ChannelReadyNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
         int cId = notification.getChannelId();
         myself = notification.getMyself();
         logger.info("Channel {} created, I am {}", cId, myself);
@@ -83,9 +169,12 @@ public class Agreement extends GenericProtocol {
         registerMessageSerializer(cId, BroadcastMessage.MSG_ID, BroadcastMessage.serializer);
         registerMessageSerializer(cId, AcceptMessage.MSG_ID, AcceptMessage.serializer);
         registerMessageSerializer(cId, AcceptOkMessage.MSG_ID, AcceptOkMessage.serializer);
-        registerMessageSerializer(cId, NotifyMessage.MSG_ID, NotifyMessage.serializer);
         registerMessageSerializer(cId, PrepareMessage.MSG_ID, PrepareMessage.serializer);
         registerMessageSerializer(cId, PrepareOkMessage.MSG_ID, PrepareOkMessage.serializer);
+        registerMessageSerializer(cId, DecideMessage.MSG_ID, DecideMessage.serializer);
+        registerMessageSerializer(cId, ReadIndexMessage.MSG_ID, ReadIndexMessage.serializer);
+        registerMessageSerializer(cId, ReadIndexOkMessage.MSG_ID, ReadIndexOkMessage.serializer);
+        registerMessageSerializer(cId, SkipMessage.MSG_ID, SkipMessage.serializer);
         /*---------------------- Register Message Handlers -------------------------- */
         try {
             //registerMessageHandler(cId, BroadcastMessage.MSG_ID, this::uponBroadcastMessage, this::uponMsgFail);
@@ -93,6 +182,10 @@ public class Agreement extends GenericProtocol {
             registerMessageHandler(cId, PrepareOkMessage.MSG_ID, this::uponPrepareOkMessage);
             registerMessageHandler(cId, AcceptMessage.MSG_ID, this::uponAcceptMessage);
             registerMessageHandler(cId, AcceptOkMessage.MSG_ID, this::uponAcceptOkMessage);
+            registerMessageHandler(cId, DecideMessage.MSG_ID, this::uponDecideMessage);
+            registerMessageHandler(cId, ReadIndexMessage.MSG_ID, this::uponReadIndexMessage);
+            registerMessageHandler(cId, ReadIndexOkMessage.MSG_ID, this::uponReadIndexOkMessage);
+            registerMessageHandler(cId, SkipMessage.MSG_ID, this::uponSkipMessage);
         } catch (HandlerRegistrationException e) {
             throw new AssertionError("Error registering message handler.", e);
         }
@@ -109,11 +202,22 @@ public class Agreement extends GenericProtocol {
     }
 
     private void uponJoinedNotification(JoinedNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
         //We joined the system and can now start doing things
         if (joinedInstance < 0 || joinedInstance != notification.getJoinInstance()){
+            boolean restarting = joinedInstance < 0;
             joinedInstance = notification.getJoinInstance();
-            membership = new LinkedList<>(notification.getMembership());
-            logger.info("Agreement starting at instance {},  membership: {}", joinedInstance, membership);
+            membership = notification.getMembership();
+            //nothing below the join instance is ever handled
+            paxosInstancesMap.advanceTo(joinedInstance);
+            if (restarting)
+                openAcceptorLog();
+            //The state we joined with already holds everything decided below it
+            highestAccepted = Math.max(highestAccepted, joinedInstance - 1);
+            if (mencius)
+                menciusNext = ownedFrom(joinedInstance);
+            logger.info("Agreement starting at instance {},  membership: {}, {}", joinedInstance, membership, quorums);
         }
 
         /*System.out.println(myself.getPort());
@@ -123,27 +227,31 @@ public class Agreement extends GenericProtocol {
         System.out.println("Teste");*/
     }
 
-    private int buildSeqNum(Host[] membership) {
-        for (int selfID = 0; selfID < membership.length; selfID++)
-            if (membership[selfID].equals(myself))
-                return selfID;
-        return -1;
+    //We joined before this instance and did not discard it yet
+    private boolean isActive(int instance) {
+        return joinedInstance >= 0 && joinedInstance <= instance && instance > gcWatermark;
     }
 
     private void uponProposeRequest(ProposeRequest request, short sourceProto) {
         logger.debug("Received " + request);
-        if (joinedInstance <= request.getInstance() && joinedInstance >= 0) {
+        if (isActive(request.getInstance())) {
             int instanceID = request.getInstance();
             PaxosInstance instance = paxosInstancesMap.get(instanceID);
-            int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
+            int selfID = membership.indexOf(myself);
+            if (mencius && instanceID % membership.size() == selfID) {
+                proposeOwned(instanceID, instance, request.getOperation());
+                return;
+            }
+            //Ballots below n are reserved for the owners of Mencius slots
+            int ballot = selfID + membership.size() * (request.getHandicap() + (mencius ? 1 : 0));
             if (instance == null) {
                 //create instance in map
-                instance = new PaxosInstance(request.getOperation(), selfID+(membership.size()*request.getHandicap()), membership);
+                instance = new PaxosInstance(request.getOperation(), ballot, membership);
                 paxosInstancesMap.put(instanceID, instance);
             } else {
-                instance.setProposer_seq(selfID+(membership.size()*request.getHandicap()));
+                instance.setProposer_seq(ballot);
                 instance.setProposer_value(request.getOperation());
-                instance.setPrepare_ok_set(new LinkedList<Tuple>());
+                instance.getPrepare_oks().reset(instance.getProposer_seq());
             }
 
             //broadcast prepare for all replicas
@@ -155,164 +263,382 @@ public class Agreement extends GenericProtocol {
         }
     }
 
+    /*--------------------------------- Mencius ---------------------------------------- */
+    //Our own ballot is the lowest anyone may use here, so phase 1 is implicitly done
+    private void proposeOwned(int instanceID, PaxosInstance instance, Operation value) {
+        //skipped meanwhile, the state machine proposes it again elsewhere
+        if (instance != null && instance.getDecided() != null)
+            return;
+        skipBelow(instanceID);
+        menciusNext = Math.max(menciusNext, instanceID + membership.size());
+        highestSeen = Math.max(highestSeen, instanceID);
+        int selfID = membership.indexOf(myself);
+        if (instance == null) {
+            instance = new PaxosInstance(value, selfID, membership);
+            paxosInstancesMap.put(instanceID, instance);
+        } else {
+            instance.setProposer_seq(selfID);
+            instance.setProposer_value(value);
+        }
+        sendAccept(instanceID, instance);
+    }
+
+    private int ownedFrom(int instance) {
+        int n = membership.size();
+        return instance + Math.floorMod(membership.indexOf(myself) - instance, n);
+    }
+
+    //Our slots below bound were never used, nobody should wait for them
+    private void skipBelow(int bound) {
+        if (menciusNext < 0 || menciusNext >= bound)
+            return;
+        int from = menciusNext;
+        for (int slot = from; slot < bound; slot += membership.size())
+            decideSkip(slot);
+        menciusNext = ownedFrom(bound);
+        SkipMessage message = new SkipMessage(from, bound);
+        for (Host h : membership) {
+            if (!h.equals(myself))
+                sendMessage(message, h);
+        }
+    }
+
+    private void uponSkipMessage(SkipMessage msg, Host host, short sourceProto, int channelId) {
+        int owner = membership.indexOf(host);
+        if (!mencius || owner < 0)
+            return;
+        int n = membership.size();
+        for (int slot = msg.getFrom() + Math.floorMod(owner - msg.getFrom(), n); slot < msg.getTo(); slot += n)
+            decideSkip(slot);
+    }
+
+    //Only the owner could have proposed anything but a no-op here, and it did not
+    private void decideSkip(int slot) {
+        if (!isActive(slot))
+            return;
+        PaxosInstance instance = paxosInstancesMap.get(slot);
+        if (instance == null) {
+            instance = new PaxosInstance(null, membership.indexOf(myself), membership);
+            paxosInstancesMap.put(slot, instance);
+        }
+        if (instance.getDecided() != null)
+            return;
+        instance.setDecided(Noop.create());
+        triggerNotification(new DecidedNotification(slot, instance.getDecided()));
+        if (instance.getTimerId() != -1)
+            cancelTimeout(slot);
+    }
+
+    //Slots of owners that went quiet are taken over with a no-op once later instances moved on without them
+    private void revokeGaps() {
+        long now = System.currentTimeMillis();
+        int selfID = membership.indexOf(myself);
+        int n = membership.size();
+        revokeFrom = Math.max(revokeFrom, Math.max(joinedInstance, gcWatermark + 1));
+        boolean contiguous = true;
+        for (int i = revokeFrom; i < highestSeen; i++) {
+            PaxosInstance instance = paxosInstancesMap.get(i);
+            if (instance != null && instance.getDecided() != null) {
+                if (contiguous)
+                    revokeFrom = i + 1;
+                suspected.remove(i);
+                continue;
+            }
+            contiguous = false;
+            if (i % n == selfID || (instance != null && instance.getTimerId() != -1))
+                continue;
+            long since = suspected.computeIfAbsent(i, k -> now);
+            if (now - since >= agreementTime) {
+                suspected.remove(i);
+                revoke(i, instance);
+            }
+        }
+    }
+
+    //Regular Paxos from a ballot above every owner's, an accepted value of the owner still wins
+    private void revoke(int instanceID, PaxosInstance instance) {
+        int n = membership.size();
+        int ballot = membership.indexOf(myself) + n;
+        if (instance == null) {
+            instance = new PaxosInstance(Noop.create(), ballot, membership);
+            paxosInstancesMap.put(instanceID, instance);
+        } else {
+            while (ballot <= instance.getHighest_prepare())
+                ballot += n;
+            instance.setProposer_seq(ballot);
+            instance.setProposer_value(Noop.create());
+        }
+        logger.debug("Revoking instance {} with ballot {}", instanceID, ballot);
+        instance.getPrepare_oks().reset(ballot);
+        PrepareMessage prepareMessage = new PrepareMessage(instanceID, ballot);
+        for (Host h : instance.getAll_processes()) {
+            sendMessage(prepareMessage, h);
+        }
+        createTimeout(instanceID);
+    }
+
     private void uponPrepareMessage(PrepareMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("Prepare from {} " + msg.toString(), host.toString());
+        logger.debug("Prepare from {} {}", host, msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
             if (instance == null) {
                 if (membership.contains(host)) {
-                    int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
+                    int selfID = membership.indexOf(myself);
 
                     instance = new PaxosInstance(null, selfID, membership);
                     instance.setHighest_prepare(msg.getProposer_seq());
                     paxosInstancesMap.put(msg.getInstance(), instance);
+                    acceptorLog.promise(msg.getInstance(), msg.getProposer_seq());
                     PrepareOkMessage message = new PrepareOkMessage(
                             msg.getInstance(),
                             msg.getProposer_seq(),
                             -1,
                             null);
-                    sendMessage(message, host);
+                    afterLogged(() -> sendMessage(message, host));
                 }
             } else {
                 if (instance.getAll_processes().contains(host)) {
                     if (msg.getProposer_seq() > instance.getHighest_prepare()) {
                         instance.setHighest_prepare(msg.getProposer_seq());
+                        //Someone outbid our ongoing ballot, no point in waiting for the full timeout
+                        if (instance.getDecided() == null && instance.getTimerId() != -1 && !instance.isBacking_off()
+                                && msg.getProposer_seq() > instance.getProposer_seq())
+                            backOff(msg.getInstance(), instance);
+                        acceptorLog.promise(msg.getInstance(), msg.getProposer_seq());
                         PrepareOkMessage message = new PrepareOkMessage(
                                 msg.getInstance(),
                                 msg.getProposer_seq(),
                                 instance.getHighest_accepted(),
-                                instance.getHighest_value());
-                        sendMessage(message, host);
+                                instance.getHighest_encoded());
+                        afterLogged(() -> sendMessage(message, host));
                     }
                 }
             }
         }
     }
 
-    //searches for the highest seq_number and returns the corresponding tuple
-    private Tuple highest(List<Tuple> set) {
-        Tuple res = null;
-        for (Tuple pair : set) {
-            if (res == null) {
-                res = pair;
-            } else {
-                if (pair.getSeq() > res.getSeq())
-                    res = pair;
-            }
+    /*--------------------------------- Acceptor Log ---------------------------------------- */
+    private void openAcceptorLog() {
+        if (!acceptorLog.isEnabled())
+            return;
+        try {
+            acceptorLog.open(Paths.get(dataDir), "acceptor-" + getProtoId() + "-" + myself.getPort(),
+                    new AcceptorLog.Replayer() {
+                        @Override
+                        public void promise(int instanceID, int ballot) {
+                            PaxosInstance instance = recoveredInstance(instanceID);
+                            if (instance != null && ballot > instance.getHighest_prepare())
+                                instance.setHighest_prepare(ballot);
+                        }
+
+                        @Override
+                        public void promiseFrom(int fromInstance, int ballot) {
+                        }
+
+                        @Override
+                        public void accept(int instanceID, int ballot, Operation value) {
+                            PaxosInstance instance = recoveredInstance(instanceID);
+                            if (instance == null || ballot < instance.getHighest_accepted())
+                                return;
+                            instance.setHighest_prepare(Math.max(ballot, instance.getHighest_prepare()));
+                            instance.setHighest_accepted(ballot);
+                            instance.setHighest_value(value);
+                            highestAccepted = Math.max(highestAccepted, instanceID);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new AssertionError("Could not open the acceptor log", e);
+        }
+    }
+
+    private PaxosInstance recoveredInstance(int instanceID) {
+        if (!isActive(instanceID))
+            return null;
+        PaxosInstance instance = paxosInstancesMap.get(instanceID);
+        if (instance == null) {
+            instance = new PaxosInstance(null, membership.indexOf(myself), membership);
+            paxosInstancesMap.put(instanceID, instance);
         }
-        return res;
+        return instance;
+    }
+
+    //Sends the replies once what they promise is durable
+    private void afterLogged(Runnable reply) {
+        if (acceptorLog.afterSync(reply))
+            setupTimer(new LogSyncTimer(), acceptorLog.getGroupWindow());
+    }
+
+    private void uponLogSyncTimer(LogSyncTimer timer, long timerId) {
+        acceptorLog.sync();
     }
 
     //Nao deverá ser nula a instacia pois ja fez prepare
     private void uponPrepareOkMessage(PrepareOkMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("PrepareOk {} " + msg.toString());
+        logger.debug("PrepareOk {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
-            if (instance.getAll_processes().contains(host)) {
-                if (msg.getProposer_seq() == instance.getProposer_seq()) {
-                    instance.add_prepare_ok(msg.getHighest_seq(), msg.getHighest_val());
-                    if (instance.getPrepare_ok_set().size() >= (instance.getAll_processes().size() / 2) + 1) {
-                        Tuple highest = highest(instance.getPrepare_ok_set());
-                        if (highest.getVal() != null) {
-                            instance.setProposer_value(highest.getVal());
-                        }
-                        AcceptMessage acceptMessage = new AcceptMessage(msg.getInstance(),
-                                instance.getProposer_seq(),
-                                instance.getProposer_value());
-                        for (Host h : instance.getAll_processes()) {
-                            sendMessage(acceptMessage, h);
+        //a late reply for an instance already collected, or one we never proposed in
+        if (instance != null && isActive(msg.getInstance())) {
+            int index = instance.indexOf(host);
+            if (index >= 0) {
+                QuorumTracker promises = instance.getPrepare_oks();
+                if (msg.getProposer_seq() == instance.getProposer_seq() && promises.vote(index, msg.getProposer_seq())) {
+                    promises.report(msg.getHighest_seq(), msg.getHighest_val());
+                    //only the vote completing the quorum moves on to phase 2
+                    if (promises.getCount() == quorums.phase1(instance.getAll_processes().size())) {
+                        if (promises.getHighestValue() != null) {
+                            instance.setProposer_value(promises.getHighestValue());
                         }
-                        instance.setPrepare_ok_set(new LinkedList<Tuple>());
-                        createTimeout(msg.getInstance());
+                        sendAccept(msg.getInstance(), instance);
                     }
                 }
             }
         }
     }
 
+    private void sendAccept(int instanceID, PaxosInstance instance) {
+        instance.getAccept_oks().reset(instance.getProposer_seq());
+        AcceptMessage acceptMessage = new AcceptMessage(instanceID,
+                instance.getProposer_seq(),
+                instance.getProposer_encoded());
+        Iterable<Host> targets = instance.getAll_processes();
+        if (thrifty)
+            targets = responders.fastest(targets, quorums.phase2(instance.getAll_processes().size()), myself);
+        for (Host h : targets) {
+            sendMessage(acceptMessage, h);
+        }
+        instance.setThrifty(thrifty);
+        instance.setAccept_sent_at(System.currentTimeMillis());
+        createTimeout(instanceID, thrifty ? thriftyTimeout : agreementTime);
+    }
+
+    //The fastest quorum did not answer in time, ask everyone that has not
+    private void widenAccept(int instanceID, PaxosInstance instance) {
+        AcceptMessage acceptMessage = new AcceptMessage(instanceID,
+                instance.getProposer_seq(),
+                instance.getProposer_encoded());
+        int index = 0;
+        for (Host h : instance.getAll_processes()) {
+            if (!instance.getAccept_oks().hasVoted(index))
+                sendMessage(acceptMessage, h);
+            index++;
+        }
+        instance.setThrifty(false);
+        createTimeout(instanceID);
+    }
+
     private void createTimeout(int instance) {
-        //setupPeriodicTimer(timeOut, this.fixTime, this.fixTime);
-        cancelTimeout(instance);
-        long timerId = setupTimer(new Timeout(), this.agreementTime);
+        createTimeout(instance, this.agreementTime);
+    }
+
+    private void createTimeout(int instance, long delay) {
         PaxosInstance paxos = paxosInstancesMap.get(instance);
-        paxos.setTimerId(timerId);
-        timeoutInstancesMap.put(timerId, instance);
+        paxos.setBacking_off(false);
+        paxos.setTimerId(timeoutWheel.schedule(instance, delay));
+    }
+
+    private void recordResponse(PaxosInstance instance, Host host) {
+        if (thrifty && instance.getAccept_sent_at() > 0 && !host.equals(myself))
+            responders.record(host, System.currentTimeMillis() - instance.getAccept_sent_at());
     }
 
+    //The wheel entry stays behind and is ignored when it expires
     private void cancelTimeout(int instance) {
         PaxosInstance paxos = paxosInstancesMap.get(instance);
-        cancelTimer(paxos.getTimerId());
-        timeoutInstancesMap.remove(paxos.getTimerId());
+        paxos.setTimerId(-1);
+        paxos.setBacking_off(false);
+    }
+
+    //Waits a randomized, growing delay before retrying with a higher ballot
+    private void backOff(int instanceID, PaxosInstance instance) {
+        preemptions++;
+        instance.setBacking_off(true);
+        instance.setTimerId(timeoutWheel.schedule(instanceID, backoff.nextDelay()));
+    }
+
+    //Ballots are selfID + n*k, so a decided ballot equal to our proposer_seq is ours
+    private void countDecision(boolean ownBallot) {
+        decider++;
+        if (ownBallot)
+            backoff.reset();
+        if (decider % METRICS_INTERVAL == 0)
+            logger.info("Decided {} instances, {} preemptions ({} per instance), backoff level {}",
+                    decider, preemptions, String.format("%.3f", (double) preemptions / decider), backoff.getAttempts());
     }
 
     private void uponAcceptMessage(AcceptMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("Accept {} " + msg.toString());
+        logger.debug("Accept {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
+            if (mencius && !host.equals(myself)) {
+                highestSeen = Math.max(highestSeen, msg.getInstance());
+                skipBelow(msg.getInstance());
+                instance = paxosInstancesMap.get(msg.getInstance());
+            }
             if (instance == null) {
-                int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
-                instance = new PaxosInstance(msg.getValue(), selfID, membership);
+                int selfID = membership.indexOf(myself);
+                instance = new PaxosInstance(null, selfID, membership);
+                instance.setProposer_encoded(msg.getEncoded());
+                paxosInstancesMap.put(msg.getInstance(), instance);
             }
             if (instance.getAll_processes().contains(host)) {
+                //Another proposer got a higher ballot accepted, ours was preempted
+                if (instance.getDecided() == null && instance.getTimerId() != -1 && !instance.isBacking_off()
+                        && !host.equals(myself) && msg.getProposer_seq() > instance.getProposer_seq())
+                    backOff(msg.getInstance(), instance);
                 if (msg.getProposer_seq() >= instance.getHighest_prepare()) {
                     instance.setHighest_prepare(msg.getProposer_seq());
                     instance.setHighest_accepted(msg.getProposer_seq());
-                    instance.setHighest_value(msg.getValue());
+                    highestAccepted = Math.max(highestAccepted, msg.getInstance());
+                    instance.setHighest_value(msg.getEncoded());
+                    acceptorLog.accept(msg.getInstance(), msg.getProposer_seq(), msg.getEncoded());
+                    if (collectAcceptOk) {
+                        //the proposer already knows the value
+                        AcceptOkMessage message = new AcceptOkMessage(msg.getInstance(), msg.getProposer_seq(), null);
+                        afterLogged(() -> sendMessage(message, host));
+                        return;
+                    }
                     AcceptOkMessage message = new AcceptOkMessage(
                             msg.getInstance(),
                             msg.getProposer_seq(),
-                            msg.getValue());
-                    for (Host h : instance.getAll_processes()) {
-                        sendMessage(message, h);
-                    }
+                            msg.getEncoded());
+                    MembershipView processes = instance.getAll_processes();
+                    afterLogged(() -> {
+                        for (Host h : processes) {
+                            sendMessage(message, h);
+                        }
+                    });
                 }
             }
         }
     }
 
-    private boolean verifyIfAllEq(List<Tuple> accept_set, Tuple pair) {
-        for (Tuple tup : accept_set) {
-            if (!pair.getVal().equals(tup.getVal()))
-                return false;
-            if (pair.getSeq() != tup.getSeq())
-                return false;
-        }
-        return true;
-    }
-
-    private boolean verifyIfBigger(List<Tuple> accept_set, Tuple pair) {
-        for (Tuple tup : accept_set) {
-            if (tup.getSeq() < pair.getSeq())
-                return true;
-        }
-        return false;
-    }
-
     private void uponAcceptOkMessage(AcceptOkMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("AcceptOk " + msg.toString());
+        logger.debug("AcceptOk {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
+            if (collectAcceptOk) {
+                uponCollectedAcceptOk(msg, host, instance);
+                return;
+            }
             if (instance == null) {
-                int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
-                instance = new PaxosInstance(msg.getValue(), selfID, membership);
+                int selfID = membership.indexOf(myself);
+                instance = new PaxosInstance(null, selfID, membership);
+                instance.setProposer_encoded(msg.getEncoded());
+                paxosInstancesMap.put(msg.getInstance(), instance);
             }
 
-            if (instance.getAll_processes().contains(host)) {
-                Tuple pair = new Tuple(msg.getProposer_seq(), msg.getValue());
-
-                if (verifyIfAllEq(instance.getAccept_ok_set(), pair)) {
-                    instance.add_accept_ok(pair);
-                } else if (verifyIfBigger(instance.getAccept_ok_set(), pair)) {
-                    List<Tuple> list = new LinkedList<Tuple>();
-                    list.add(pair);
-                    instance.setAccept_ok_set(list);
-                }
-                if (instance.getDecided() == null && instance.getAccept_ok_set().size() >= (instance.getAll_processes().size() / 2) + 1) {
-                    instance.setDecided(pair.getVal());
-                    logger.debug("Decide at {} " + pair.getVal(),msg.getInstance());
-                    triggerNotification(new DecidedNotification(msg.getInstance(), pair.getVal()));
-                    decider++;
-                    if (instance.getProposer_seq() == pair.getSeq())
+            //Only the highest ballot seen counts, all its votes carry the same value
+            int index = instance.indexOf(host);
+            if (index >= 0 && instance.getAccept_oks().vote(index, msg.getProposer_seq())) {
+                if (instance.getProposer_seq() == msg.getProposer_seq())
+                    recordResponse(instance, host);
+                if (instance.getDecided() == null && instance.getAccept_oks().hasQuorum(quorums.phase2(instance.getAll_processes().size()))) {
+                    //Decoded once here, for the state machine
+                    instance.setDecided(msg.getValue());
+                    logger.debug("Decide at {} {}", msg.getInstance(), instance.getDecided());
+                    triggerNotification(new DecidedNotification(msg.getInstance(), instance.getDecided()));
+                    countDecision(instance.getProposer_seq() == msg.getProposer_seq());
+                    if (instance.getProposer_seq() == msg.getProposer_seq())
                         cancelTimeout(msg.getInstance());
 
                 }
@@ -320,24 +646,69 @@ public class Agreement extends GenericProtocol {
         }
     }
 
+    //Only the proposer receives AcceptOks in this mode, they carry no value
+    private void uponCollectedAcceptOk(AcceptOkMessage msg, Host host, PaxosInstance instance) {
+        if (instance == null || instance.getDecided() != null || msg.getProposer_seq() != instance.getProposer_seq())
+            return;
+        QuorumTracker accepts = instance.getAccept_oks();
+        if (!accepts.vote(instance.indexOf(host), msg.getProposer_seq()))
+            return;
+        recordResponse(instance, host);
+        if (accepts.hasQuorum(quorums.phase2(instance.getAll_processes().size()))) {
+            instance.setDecided(instance.getProposer_value());
+            logger.debug("Decide at {} {}", msg.getInstance(), instance.getDecided());
+            triggerNotification(new DecidedNotification(msg.getInstance(), instance.getDecided()));
+            countDecision(true);
+            cancelTimeout(msg.getInstance());
+
+            DecideMessage compact = new DecideMessage(msg.getInstance(), instance.getProposer_seq(), null);
+            DecideMessage full = new DecideMessage(msg.getInstance(), instance.getProposer_seq(), instance.getProposer_encoded());
+            int index = 0;
+            for (Host h : instance.getAll_processes()) {
+                if (!h.equals(myself))
+                    sendMessage(accepts.hasVoted(index) ? compact : full, h);
+                index++;
+            }
+        }
+    }
+
+    private void uponDecideMessage(DecideMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("Decide {}", msg);
+        if (isActive(msg.getInstance())) {
+            PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
+            if (instance != null && instance.getDecided() != null)
+                return;
+            Operation value = msg.getValue();
+            //Any value accepted with this ballot or a higher one is the decided value
+            if (value == null && instance != null && instance.getHighest_value() != null
+                    && instance.getHighest_accepted() >= msg.getProposer_seq())
+                value = instance.getHighest_value();
+            if (value == null) {
+                logger.debug("Decide for instance {} without a known value", msg.getInstance());
+                return;
+            }
+            if (instance == null) {
+                int selfID = membership.indexOf(myself);
+                instance = new PaxosInstance(value, selfID, membership);
+                paxosInstancesMap.put(msg.getInstance(), instance);
+            }
+            instance.setDecided(value);
+            triggerNotification(new DecidedNotification(msg.getInstance(), value));
+            countDecision(instance.getProposer_seq() == msg.getProposer_seq());
+            cancelTimeout(msg.getInstance());
+        }
+    }
+
     private void uponAddReplica(AddReplicaRequest request, short sourceProto) {
         logger.debug("Received " + request);
         //The AddReplicaRequest contains an "instance" field, which we ignore in this incorrect protocol.
         //You should probably take it into account while doing whatever you do here.
         if(!membership.contains(request.getReplica())) {
-            membership.add(request.getReplica());
-            Set<Integer> keys = paxosInstancesMap.keySet();
-            for (Integer key : keys) {
-                if (key > request.getInstance()) {
-                    PaxosInstance paxos = paxosInstancesMap.get(key);
-                    if (paxos != null) {
-                        List<Host> processes = paxos.getAll_processes();
-                        processes.add(request.getReplica());
-                        paxos.setAll_processes(processes);
-                        paxosInstancesMap.put(key, paxos);
-                    }
-                }
-            }
+            membership = request.getMembership();
+            paxosInstancesMap.forEach((key, paxos) -> {
+                if (key > request.getInstance())
+                    paxos.setAll_processes(membership);
+            });
         }
 
 
@@ -362,21 +733,55 @@ public class Agreement extends GenericProtocol {
         logger.debug("Received " + request);
         //The RemoveReplicaRequest contains an "instance" field, which we ignore in this incorrect protocol.
         //You should probably take it into account while doing whatever you do here.
-        membership.remove(request.getReplica());
-        Set<Integer> keys = paxosInstancesMap.keySet();
-        for (Integer key : keys) {
-            if (key > request.getInstance()) {
-                PaxosInstance paxos = paxosInstancesMap.get(key);
-                if (paxos != null) {
-                    List<Host> processes = paxos.getAll_processes();
-                    processes.remove(request.getReplica());
-                    paxos.setAll_processes(processes);
-                    paxosInstancesMap.put(key, paxos);
-                }
-            }
+        membership = request.getMembership();
+        responders.remove(request.getReplica());
+        paxosInstancesMap.forEach((key, paxos) -> {
+            if (key > request.getInstance())
+                paxos.setAll_processes(membership);
+        });
+    }
+
+
+    /*--------------------------------- Read Index ---------------------------------------- */
+    //A new round supersedes the previous one, the state machine only keeps one in flight
+    private void uponReadIndexRequest(ReadIndexRequest request, short sourceProto) {
+        if (joinedInstance < 0)
+            return;
+        readRound = request.getRound();
+        readIndex = -1;
+        readRequester = sourceProto;
+        readOks.reset(readRound);
+        ReadIndexMessage message = new ReadIndexMessage(readRound);
+        for (Host host : membership) {
+            sendMessage(message, host);
         }
     }
 
+    private void uponReadIndexMessage(ReadIndexMessage msg, Host host, short sourceProto, int channelId) {
+        if (joinedInstance < 0 || !membership.contains(host))
+            return;
+        sendMessage(new ReadIndexOkMessage(msg.getRound(), highestAccepted), host);
+    }
+
+    //Anything decided before the round started was accepted by a phase 2 quorum, which intersects any phase 1 one
+    private void uponReadIndexOkMessage(ReadIndexOkMessage msg, Host host, short sourceProto, int channelId) {
+        if (msg.getRound() != readRound || !readOks.vote(membership.indexOf(host), readRound))
+            return;
+        readIndex = Math.max(readIndex, msg.getHighest_accepted());
+        if (readOks.getCount() == quorums.phase1(membership.size())) {
+            logger.debug("Read index round {} at instance {}", readRound, readIndex);
+            sendReply(new ReadIndexReply(readRound, readIndex), readRequester);
+        }
+    }
+
+    private void uponGarbageCollect(GarbageCollectRequest request, short sourceProto) {
+        if (request.getWatermark() <= gcWatermark)
+            return;
+        gcWatermark = request.getWatermark();
+        paxosInstancesMap.advanceTo(gcWatermark + 1);
+        acceptorLog.truncateBefore(gcWatermark + 1);
+        logger.debug("Discarded instances up to {}, {} left", gcWatermark, paxosInstancesMap.size());
+    }
 
     private void uponMsgFail(ProtoMessage msg, Host host, short destProto, Throwable throwable, int channelId) {
         //If a message fails to be sent, for whatever reason, log the message and the reason
@@ -384,23 +789,37 @@ public class Agreement extends GenericProtocol {
     }
 
     private void uponTimeout(Timeout timer, long timerID) {
-        try{
-            int InstanceId = timeoutInstancesMap.get(timerID);
-            PaxosInstance instance = paxosInstancesMap.get(InstanceId);
-            if (instance.getDecided() == null) {
-                int nSeq = instance.getProposer_seq() + instance.getAll_processes().size();
-                instance.setProposer_seq(nSeq);
-                PrepareMessage prepareMessage = new PrepareMessage(InstanceId, nSeq);
-                for (Host h : instance.getAll_processes()) {
-                    sendMessage(prepareMessage, h);
-                }
-                instance.setPrepare_ok_set(new LinkedList<Tuple>());
-                createTimeout(InstanceId);
-                paxosInstancesMap.put(InstanceId, instance);
-            }
-        }catch (NullPointerException e ){
-            logger.info("Timeout == null , instancia {}");
+        timeoutWheel.tick();
+        acceptorLog.tick();
+        if (mencius && joinedInstance >= 0)
+            revokeGaps();
+    }
+
+    private void uponInstanceTimeout(int InstanceId, long deadline) {
+        PaxosInstance instance = paxosInstancesMap.get(InstanceId);
+        //cancelled, rescheduled or discarded meanwhile
+        if (instance == null || instance.getTimerId() != deadline)
+            return;
+        instance.setTimerId(-1);
+        if (instance.getDecided() == null && instance.isThrifty() && !instance.isBacking_off()) {
+            widenAccept(InstanceId, instance);
+            return;
         }
+        if (instance.getDecided() == null) {
+            //a plain timeout (lost message, slow replica) retries right away, only preemptions back off
+            int nSeq = instance.getProposer_seq() + instance.getAll_processes().size();
+            //skip ballots that already lost to the highest prepare we have seen
+            while (nSeq <= instance.getHighest_prepare())
+                nSeq += instance.getAll_processes().size();
+            instance.setProposer_seq(nSeq);
+            PrepareMessage prepareMessage = new PrepareMessage(InstanceId, nSeq);
+            for (Host h : instance.getAll_processes()) {
+                sendMessage(prepareMessage, h);
+            }
+            instance.getPrepare_oks().reset(nSeq);
+            createTimeout(InstanceId);
+            paxosInstancesMap.put(InstanceId, instance);
         }
+    }
 
 }
@@ -1,12 +1,12 @@
 package protocols.agreement;
 
 import org.apache.commons.lang3.tuple.Pair;
+import protocols.agreement.utils.EncodedOperation;
+import protocols.agreement.utils.QuorumTracker;
+import protocols.agreement.utils.MembershipView;
 import protocols.app.utils.Operation;
-import protocols.app.utils.Tuple;
 import pt.unl.fct.di.novasys.network.data.Host;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.UUID;
 
 public class PaxosInstance {
@@ -17,29 +17,56 @@ public class PaxosInstance {
     private int highest_prepare;
     private int highest_accepted;
     private Operation highest_value;
-    private List<Tuple> prepare_ok_set;
-    private List<Tuple> accept_ok_set;
+    //Wire form of the two values above, encoded once and reused by every message carrying them.
+    //A value set in one form is only converted to the other when asked for it
+    private EncodedOperation proposer_encoded;
+    private EncodedOperation highest_encoded;
+    //Votes are indexed by position in all_processes
+    private QuorumTracker prepare_oks;
+    //In proposer mode, the replicas that acknowledged our own accept
+    private QuorumTracker accept_oks;
     private Operation decided;
-    private List<Host> all_processes;
+    private MembershipView all_processes;
 
+    //Deadline of the pending timeout in the agreement timing wheel, -1 if none
     private long timerId;
+    //The pending timeout is a backoff delay before the next ballot, not a phase timeout
+    private boolean backing_off;
+    //When our accept went out and whether it went only to the fastest quorum
+    private long accept_sent_at;
+    private boolean thrifty;
 
-    public PaxosInstance(Operation proposer_value, int proposer_seq,List<Host> membership) {
+    public PaxosInstance(Operation proposer_value, int proposer_seq,MembershipView membership) {
         this.proposer_value = proposer_value;
         this.proposer_seq = proposer_seq;
         this.all_processes=membership;
-        prepare_ok_set= new LinkedList<Tuple>();
-        accept_ok_set= new LinkedList<Tuple>();
+        prepare_oks= new QuorumTracker();
+        accept_oks= new QuorumTracker();
         timerId=-1;
 
     }
 
     public Operation getProposer_value() {
+        if (proposer_value == null && proposer_encoded != null)
+            proposer_value = proposer_encoded.getOperation();
         return proposer_value;
     }
 
     public void setProposer_value(Operation proposer_value) {
         this.proposer_value = proposer_value;
+        this.proposer_encoded = null;
+    }
+
+    //A value as it arrived, decoded only if we end up proposing it
+    public void setProposer_encoded(EncodedOperation proposer_encoded) {
+        this.proposer_value = null;
+        this.proposer_encoded = proposer_encoded;
+    }
+
+    public EncodedOperation getProposer_encoded() {
+        if (proposer_encoded == null)
+            proposer_encoded = EncodedOperation.of(proposer_value);
+        return proposer_encoded;
     }
 
     public int getProposer_seq() {
@@ -67,36 +94,38 @@ public class PaxosInstance {
     }
 
     public Operation getHighest_value() {
+        if (highest_value == null && highest_encoded != null)
+            highest_value = highest_encoded.getOperation();
         return highest_value;
     }
 
     public void setHighest_value(Operation highest_value) {
         this.highest_value = highest_value;
+        this.highest_encoded = null;
     }
 
-    public List<Tuple> getPrepare_ok_set() {
-        return prepare_ok_set;
+    //An accepted value as it arrived, so promises echo it without decoding or encoding it again
+    public void setHighest_value(EncodedOperation highest_value) {
+        this.highest_value = null;
+        this.highest_encoded = highest_value;
     }
 
-    public void add_prepare_ok(int na,Operation va){
-        Tuple pair = new Tuple(na,va);
-        prepare_ok_set.add(pair);
+    public EncodedOperation getHighest_encoded() {
+        if (highest_encoded == null)
+            highest_encoded = EncodedOperation.of(highest_value);
+        return highest_encoded;
     }
 
-    public void setPrepare_ok_set(List<Tuple> prepare_ok_set) {
-        this.prepare_ok_set = prepare_ok_set;
+    public QuorumTracker getPrepare_oks() {
+        return prepare_oks;
     }
 
-    public List<Tuple> getAccept_ok_set() {
-        return accept_ok_set;
+    public QuorumTracker getAccept_oks() {
+        return accept_oks;
     }
 
-    public void add_accept_ok(Tuple element){
-        accept_ok_set.add(element);
-    }
-
-    public void setAccept_ok_set(List<Tuple> accept_ok_set) {
-        this.accept_ok_set = accept_ok_set;
+    public int indexOf(Host host) {
+        return all_processes.indexOf(host);
     }
 
     public Operation getDecided() {
@@ -107,11 +136,18 @@ public class PaxosInstance {
         this.decided = decided;
     }
 
-    public List<Host> getAll_processes() {
+    public MembershipView getAll_processes() {
         return all_processes;
     }
 
-    public void setAll_processes(List<Host> all_processes) {
+    //Views only append joiners, so just the votes of replicas that left need to move
+    public void setAll_processes(MembershipView all_processes) {
+        for (int i = this.all_processes.size() - 1; i >= 0; i--) {
+            if (!all_processes.contains(this.all_processes.get(i))) {
+                prepare_oks.removeIndex(i);
+                accept_oks.removeIndex(i);
+            }
+        }
         this.all_processes = all_processes;
     }
 
@@ -122,4 +158,28 @@ public class PaxosInstance {
     public void setTimerId(long timerId) {
         this.timerId = timerId;
     }
+
+    public boolean isBacking_off() {
+        return backing_off;
+    }
+
+    public void setBacking_off(boolean backing_off) {
+        this.backing_off = backing_off;
+    }
+
+    public long getAccept_sent_at() {
+        return accept_sent_at;
+    }
+
+    public void setAccept_sent_at(long accept_sent_at) {
+        this.accept_sent_at = accept_sent_at;
+    }
+
+    public boolean isThrifty() {
+        return thrifty;
+    }
+
+    public void setThrifty(boolean thrifty) {
+        this.thrifty = thrifty;
+    }
 }
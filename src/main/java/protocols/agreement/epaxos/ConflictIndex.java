@@ -0,0 +1,108 @@
+package protocols.agreement.epaxos;
+
+import protocols.app.utils.Operation;
+import protocols.statemachine.utils.Batch;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Latest instance of every replica touching each HashApp key, and the highest sequence number
+ * handed out per key. Operations on different keys commute; membership operations (and anything
+ * that cannot be decoded) conflict with everything, which keysOf reports as null.
+ */
+public class ConflictIndex {
+
+    private final Map<Host, Map<String, Integer>> byKey;
+    //Latest instance of each replica conflicting with everything, and latest instance at all
+    private final Map<Host, Integer> barrier;
+    private final Map<Host, Integer> latest;
+    private final Map<String, Integer> seqByKey;
+    private int barrierSeq;
+    private int maxSeq;
+
+    public ConflictIndex() {
+        byKey = new HashMap<>();
+        barrier = new HashMap<>();
+        latest = new HashMap<>();
+        seqByKey = new HashMap<>();
+        barrierSeq = 0;
+        maxSeq = 0;
+    }
+
+    //Keys touched by the command, null if it conflicts with everything; a no-op conflicts with nothing
+    public static Set<String> keysOf(Operation command) {
+        if (command == null)
+            return Collections.emptySet();
+        if (command.getOpType() != Operation.NORMAL)
+            return null;
+        try {
+            Set<String> keys = new HashSet<>();
+            if (Batch.isBatch(command)) {
+                for (Operation op : Batch.unpack(command))
+                    keys.add(Operation.fromByteArray(op.getData()).getKey());
+            } else {
+                keys.add(Operation.fromByteArray(command.getData()).getKey());
+            }
+            return keys;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    public int seqFor(Set<String> keys) {
+        if (keys == null)
+            return maxSeq + 1;
+        int seq = barrierSeq;
+        for (String key : keys)
+            seq = Math.max(seq, seqByKey.getOrDefault(key, 0));
+        return seq + 1;
+    }
+
+    //The owner's own earlier instances are left out, every instance already follows its predecessor
+    public Map<Host, Integer> depsFor(Set<String> keys, Host owner) {
+        Map<Host, Integer> deps = new HashMap<>();
+        for (Map.Entry<Host, Integer> entry : latest.entrySet()) {
+            Host replica = entry.getKey();
+            if (replica.equals(owner))
+                continue;
+            int dep;
+            if (keys == null) {
+                dep = entry.getValue();
+            } else {
+                dep = barrier.getOrDefault(replica, -1);
+                Map<String, Integer> slots = byKey.get(replica);
+                if (slots != null) {
+                    for (String key : keys)
+                        dep = Math.max(dep, slots.getOrDefault(key, -1));
+                }
+            }
+            if (dep >= 0)
+                deps.put(replica, dep);
+        }
+        return deps;
+    }
+
+    public void record(Host owner, int slot, Set<String> keys, int seq) {
+        latest.merge(owner, slot, Math::max);
+        maxSeq = Math.max(maxSeq, seq);
+        if (keys == null) {
+            barrier.merge(owner, slot, Math::max);
+            barrierSeq = Math.max(barrierSeq, seq);
+            return;
+        }
+        Map<String, Integer> slots = byKey.computeIfAbsent(owner, h -> new HashMap<>());
+        for (String key : keys) {
+            slots.merge(key, slot, Math::max);
+            seqByKey.merge(key, seq, Math::max);
+        }
+    }
+
+    public static Map<Host, Integer> merge(Map<Host, Integer> a, Map<Host, Integer> b) {
+        Map<Host, Integer> merged = new HashMap<>(a);
+        for (Map.Entry<Host, Integer> entry : b.entrySet())
+            merged.merge(entry.getKey(), entry.getValue(), Math::max);
+        return merged;
+    }
+}
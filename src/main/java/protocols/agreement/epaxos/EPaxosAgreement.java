@@ -0,0 +1,666 @@
+package protocols.agreement.epaxos;
+
+import protocols.agreement.epaxos.messages.*;
+import protocols.agreement.notifications.DecidedNotification;
+import protocols.agreement.notifications.JoinedNotification;
+import protocols.agreement.requests.AddReplicaRequest;
+import protocols.agreement.requests.GarbageCollectRequest;
+import protocols.agreement.requests.ProposeRequest;
+import protocols.agreement.requests.RemoveReplicaRequest;
+import protocols.agreement.timers.Timeout;
+import protocols.agreement.utils.Backoff;
+import protocols.agreement.utils.QuorumTracker;
+import protocols.agreement.utils.MembershipView;
+import protocols.statemachine.StateMachine;
+import protocols.statemachine.notifications.ChannelReadyNotification;
+import pt.unl.fct.di.novasys.babel.core.GenericProtocol;
+import pt.unl.fct.di.novasys.babel.exceptions.HandlerRegistrationException;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.data.Host;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Leaderless agreement in the style of EPaxos. Each replica leads the commands proposed to it
+ * in its own row of instances. A command only has to follow the instances that touch the same
+ * HashApp keys, plus the previous instance of its own row. It commits after a single round trip
+ * when a fast quorum reports no conflicts it did not already know of, and needs one more Accept
+ * round otherwise. Committed instances run in dependency order and reach the state machine as a
+ * local sequence of decisions. Replicas only agree on the relative order of conflicting commands
+ * in that sequence. Membership operations conflict with everything, so every replica executes
+ * them after exactly the same set of commands.
+ */
+public class EPaxosAgreement extends GenericProtocol {
+
+    private static final Logger logger = LogManager.getLogger(EPaxosAgreement.class);
+
+    //Protocol information, to register in babel
+    public final static short PROTOCOL_ID = 100;
+    public final static String PROTOCOL_NAME = "EPaxos";
+    private final static int METRICS_INTERVAL = 1000;
+
+    //Lowest seq first, then a fixed order on owners and slots, so every replica runs a cycle alike
+    private final static Comparator<EPaxosInstance> EXECUTION_ORDER = Comparator
+            .comparingInt(EPaxosInstance::getSeq)
+            .thenComparing(i -> i.getOwner().toString())
+            .thenComparingInt(EPaxosInstance::getSlot);
+
+    private Host myself;
+    private final short stateMachineId;
+    private int joinedInstance;
+    private MembershipView membership;
+
+    private final Map<Host, Map<Integer, EPaxosInstance>> instances;
+    private final ConflictIndex conflicts;
+    //Next instance of our own row
+    private int nextSlot;
+    //Committed but waiting for their dependencies, and known but not committed yet
+    private final Set<EPaxosInstance> committed;
+    private final Set<EPaxosInstance> uncommitted;
+    //Number of the next decision handed to the state machine
+    private int executed;
+    //Per row: last slot up to which everything was executed, and the first slot still kept.
+    //Executed instances more than retain slots behind the frontier are dropped
+    private final Map<Host, Integer> executedFrontier;
+    private final Map<Host, Integer> keptFrom;
+    private final int retain;
+
+    //Committed instances whose execution stopped at an uncommitted one, retried once that one commits
+    private final Map<EPaxosInstance, List<EPaxosInstance>> blockedOn;
+
+    //Tarjan state for the execution in progress, and the uncommitted instance it stopped at
+    private int tarjanIndex;
+    private final Deque<EPaxosInstance> tarjanStack;
+    private final List<EPaxosInstance> tarjanVisited;
+    private EPaxosInstance tarjanBlocker;
+
+    private final int agreementTime;
+    //How long a command leader waits for the whole fast quorum before taking the slow path
+    private final int fastTimeout;
+    private final Backoff backoff;
+    private int decider;
+    private int fastCommits;
+    private int recoveries;
+
+    public EPaxosAgreement(Properties props) throws IOException, HandlerRegistrationException {
+        this(props, 0);
+    }
+
+    public EPaxosAgreement(Properties props, int group) throws IOException, HandlerRegistrationException {
+        super(group == 0 ? PROTOCOL_NAME : PROTOCOL_NAME + "-" + group, (short) (PROTOCOL_ID + group));
+        stateMachineId = (short) (StateMachine.PROTOCOL_ID + group);
+        joinedInstance = -1; //-1 means we have not yet joined the system
+        membership = null;
+        instances = new HashMap<>();
+        conflicts = new ConflictIndex();
+        nextSlot = 0;
+        committed = new LinkedHashSet<>();
+        uncommitted = new LinkedHashSet<>();
+        executed = 0;
+        executedFrontier = new HashMap<>();
+        keptFrom = new HashMap<>();
+        retain = Integer.parseInt(props.getProperty("instance_window", "8192"));
+        blockedOn = new HashMap<>();
+        tarjanStack = new ArrayDeque<>();
+        tarjanVisited = new ArrayList<>();
+
+        this.agreementTime = Integer.parseInt(props.getProperty("agreement_time", "10000"));
+        this.fastTimeout = Integer.parseInt(props.getProperty("epaxos_fast_timeout", "100"));
+        int agreementTick = Integer.parseInt(props.getProperty("agreement_tick", "50"));
+        backoff = new Backoff(Integer.parseInt(props.getProperty("backoff_base", String.valueOf(agreementTick))),
+                Integer.parseInt(props.getProperty("backoff_max", "2000")));
+        decider = 0;
+        fastCommits = 0;
+        recoveries = 0;
+
+        /*--------------------- Register Timer Handlers ----------------------------- */
+        registerTimerHandler(Timeout.TIMEOUT_ID, this::uponTimeout);
+
+        /*--------------------- Register Request Handlers ----------------------------- */
+        registerRequestHandler(ProposeRequest.REQUEST_ID, this::uponProposeRequest);
+        registerRequestHandler(AddReplicaRequest.REQUEST_ID, this::uponAddReplica);
+        registerRequestHandler(RemoveReplicaRequest.REQUEST_ID, this::uponRemoveReplica);
+        registerRequestHandler(GarbageCollectRequest.REQUEST_ID, this::uponGarbageCollect);
+
+        /*--------------------- Register Notification Handlers ----------------------------- */
+        subscribeNotification(ChannelReadyNotification.NOTIFICATION_ID, this::uponChannelCreated);
+        subscribeNotification(JoinedNotification.NOTIFICATION_ID, this::uponJoinedNotification);
+    }
+
+    @Override
+    public void init(Properties props) {
+        int agreementTick = Integer.parseInt(props.getProperty("agreement_tick", "50"));
+        setupPeriodicTimer(new Timeout(), agreementTick, agreementTick);
+    }
+
+    //Upon receiving the channelId from the membership, register our own callbacks and serializers
+    private void uponChannelCreated(ChannelReadyNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
+        int cId = notification.getChannelId();
+        myself = notification.getMyself();
+        logger.info("Channel {} created, I am {}", cId, myself);
+        // Allows this protocol to receive events from this channel.
+        registerSharedChannel(cId);
+        /*---------------------- Register Message Serializers ---------------------- */
+        registerMessageSerializer(cId, EPPreAcceptMessage.MSG_ID, EPPreAcceptMessage.serializer);
+        registerMessageSerializer(cId, EPPreAcceptOkMessage.MSG_ID, EPPreAcceptOkMessage.serializer);
+        registerMessageSerializer(cId, EPAcceptMessage.MSG_ID, EPAcceptMessage.serializer);
+        registerMessageSerializer(cId, EPAcceptOkMessage.MSG_ID, EPAcceptOkMessage.serializer);
+        registerMessageSerializer(cId, EPCommitMessage.MSG_ID, EPCommitMessage.serializer);
+        registerMessageSerializer(cId, EPPrepareMessage.MSG_ID, EPPrepareMessage.serializer);
+        registerMessageSerializer(cId, EPPrepareOkMessage.MSG_ID, EPPrepareOkMessage.serializer);
+        /*---------------------- Register Message Handlers -------------------------- */
+        try {
+            registerMessageHandler(cId, EPPreAcceptMessage.MSG_ID, this::uponPreAcceptMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPPreAcceptOkMessage.MSG_ID, this::uponPreAcceptOkMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPAcceptMessage.MSG_ID, this::uponAcceptMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPAcceptOkMessage.MSG_ID, this::uponAcceptOkMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPCommitMessage.MSG_ID, this::uponCommitMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPPrepareMessage.MSG_ID, this::uponPrepareMessage, this::uponMsgFail);
+            registerMessageHandler(cId, EPPrepareOkMessage.MSG_ID, this::uponPrepareOkMessage, this::uponMsgFail);
+        } catch (HandlerRegistrationException e) {
+            throw new AssertionError("Error registering message handler.", e);
+        }
+    }
+
+    private void uponJoinedNotification(JoinedNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
+        //We joined the system and can now start doing things
+        if (joinedInstance < 0 || joinedInstance != notification.getJoinInstance()) {
+            joinedInstance = notification.getJoinInstance();
+            membership = notification.getMembership();
+            //the state we joined with already reflects every decision below this one
+            executed = joinedInstance;
+            logger.info("Agreement starting at instance {},  membership: {}", joinedInstance, membership);
+        }
+    }
+
+    /*--------------------------------- Command Leader ---------------------------------------- */
+    //The instance number the state machine picked only matters to ordered protocols, ours come from the rows
+    private void uponProposeRequest(ProposeRequest request, short sourceProto) {
+        logger.debug("Received " + request);
+        if (joinedInstance < 0)
+            return;
+        EPaxosInstance instance = getOrCreateInstance(myself, nextSlot++);
+        instance.setCommand(request.getOperation());
+        instance.setSeq(conflicts.seqFor(instance.getKeys()));
+        instance.setDeps(conflicts.depsFor(instance.getKeys(), myself));
+        instance.setStatus(EPaxosInstance.PRE_ACCEPTED);
+        conflicts.record(myself, instance.getSlot(), instance.getKeys(), instance.getSeq());
+        startPreAccept(instance, 0);
+    }
+
+    //Only the initial ballot may take the fast path, a recovered command always goes through Accept
+    private void startPreAccept(EPaxosInstance instance, int ballot) {
+        instance.setLeading(true);
+        instance.setChanged(ballot != 0);
+        instance.setBallot(ballot);
+        instance.setAccepted_ballot(ballot);
+        instance.getOks().reset(ballot);
+        instance.getOks().vote(membership.indexOf(myself), ballot);
+        instance.setRecover_at(System.currentTimeMillis() + fastTimeout);
+        uncommitted.add(instance);
+
+        EPPreAcceptMessage message = new EPPreAcceptMessage(instance.getOwner(), instance.getSlot(), ballot,
+                instance.getCommand(), instance.getSeq(), instance.getDeps());
+        for (Host h : membership) {
+            if (!h.equals(myself))
+                sendMessage(message, h);
+        }
+        checkPreAccepted(instance);
+    }
+
+    private void uponPreAcceptMessage(EPPreAcceptMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("PreAccept {}", msg);
+        if (joinedInstance < 0 || !membership.contains(host) || isDropped(msg.getOwner(), msg.getSlot()))
+            return;
+        EPaxosInstance instance = getOrCreateInstance(msg.getOwner(), msg.getSlot());
+        if (msg.getBallot() < instance.getBallot() || instance.getStatus() >= EPaxosInstance.ACCEPTED)
+            return;
+        instance.setCommand(msg.getCommand());
+        //Whatever conflicting instance we know of and the leader did not is added
+        instance.setSeq(Math.max(msg.getSeq(), conflicts.seqFor(instance.getKeys())));
+        instance.setDeps(ConflictIndex.merge(msg.getDeps(), conflicts.depsFor(instance.getKeys(), msg.getOwner())));
+        instance.setStatus(EPaxosInstance.PRE_ACCEPTED);
+        instance.setBallot(msg.getBallot());
+        instance.setAccepted_ballot(msg.getBallot());
+        instance.setLeading(false);
+        conflicts.record(msg.getOwner(), msg.getSlot(), instance.getKeys(), instance.getSeq());
+        track(instance);
+        sendMessage(new EPPreAcceptOkMessage(msg.getOwner(), msg.getSlot(), msg.getBallot(),
+                instance.getSeq(), instance.getDeps()), host);
+    }
+
+    private void uponPreAcceptOkMessage(EPPreAcceptOkMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("PreAcceptOk {}", msg);
+        EPaxosInstance instance = getInstance(msg.getOwner(), msg.getSlot());
+        if (instance == null || !instance.isLeading() || instance.getStatus() != EPaxosInstance.PRE_ACCEPTED
+                || msg.getBallot() != instance.getBallot())
+            return;
+        if (!instance.getOks().vote(membership.indexOf(host), msg.getBallot()))
+            return;
+        if (msg.getSeq() != instance.getSeq() || !msg.getDeps().equals(instance.getDeps())) {
+            instance.setChanged(true);
+            instance.setSeq(Math.max(instance.getSeq(), msg.getSeq()));
+            instance.setDeps(ConflictIndex.merge(instance.getDeps(), msg.getDeps()));
+        }
+        checkPreAccepted(instance);
+    }
+
+    private void checkPreAccepted(EPaxosInstance instance) {
+        int count = instance.getOks().getCount();
+        if (!instance.isChanged() && count >= fastQuorum()) {
+            fastCommits++;
+            commit(instance);
+        } else if (instance.isChanged() && count >= QuorumTracker.quorum(membership.size())) {
+            startAccept(instance);
+        }
+    }
+
+    private void startAccept(EPaxosInstance instance) {
+        instance.setStatus(EPaxosInstance.ACCEPTED);
+        instance.setAccepted_ballot(instance.getBallot());
+        instance.getOks().reset(instance.getBallot());
+        instance.getOks().vote(membership.indexOf(myself), instance.getBallot());
+        instance.setRecover_at(System.currentTimeMillis() + agreementTime);
+        conflicts.record(instance.getOwner(), instance.getSlot(), instance.getKeys(), instance.getSeq());
+
+        EPAcceptMessage message = new EPAcceptMessage(instance.getOwner(), instance.getSlot(), instance.getBallot(),
+                instance.getCommand(), instance.getSeq(), instance.getDeps());
+        for (Host h : membership) {
+            if (!h.equals(myself))
+                sendMessage(message, h);
+        }
+        if (instance.getOks().getCount() >= QuorumTracker.quorum(membership.size()))
+            commit(instance);
+    }
+
+    private void uponAcceptMessage(EPAcceptMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("Accept {}", msg);
+        if (joinedInstance < 0 || !membership.contains(host) || isDropped(msg.getOwner(), msg.getSlot()))
+            return;
+        EPaxosInstance instance = getOrCreateInstance(msg.getOwner(), msg.getSlot());
+        if (msg.getBallot() < instance.getBallot() || instance.getStatus() >= EPaxosInstance.COMMITTED)
+            return;
+        instance.setCommand(msg.getCommand());
+        instance.setSeq(msg.getSeq());
+        instance.setDeps(msg.getDeps());
+        instance.setStatus(EPaxosInstance.ACCEPTED);
+        instance.setBallot(msg.getBallot());
+        instance.setAccepted_ballot(msg.getBallot());
+        instance.setLeading(false);
+        conflicts.record(msg.getOwner(), msg.getSlot(), instance.getKeys(), instance.getSeq());
+        track(instance);
+        sendMessage(new EPAcceptOkMessage(msg.getOwner(), msg.getSlot(), msg.getBallot()), host);
+    }
+
+    private void uponAcceptOkMessage(EPAcceptOkMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("AcceptOk {}", msg);
+        EPaxosInstance instance = getInstance(msg.getOwner(), msg.getSlot());
+        if (instance == null || !instance.isLeading() || instance.getStatus() != EPaxosInstance.ACCEPTED
+                || msg.getBallot() != instance.getBallot())
+            return;
+        if (instance.getOks().vote(membership.indexOf(host), msg.getBallot())
+                && instance.getOks().getCount() >= QuorumTracker.quorum(membership.size()))
+            commit(instance);
+    }
+
+    private void commit(EPaxosInstance instance) {
+        EPCommitMessage message = new EPCommitMessage(instance.getOwner(), instance.getSlot(),
+                instance.getCommand(), instance.getSeq(), instance.getDeps());
+        for (Host h : membership) {
+            if (!h.equals(myself))
+                sendMessage(message, h);
+        }
+        if (instance.getOwner().equals(myself) && instance.getBallot() == 0)
+            backoff.reset();
+        markCommitted(instance);
+    }
+
+    private void uponCommitMessage(EPCommitMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("Commit {}", msg);
+        if (joinedInstance < 0 || isDropped(msg.getOwner(), msg.getSlot()))
+            return;
+        EPaxosInstance instance = getOrCreateInstance(msg.getOwner(), msg.getSlot());
+        if (instance.getStatus() >= EPaxosInstance.COMMITTED)
+            return;
+        instance.setCommand(msg.getCommand());
+        instance.setSeq(msg.getSeq());
+        instance.setDeps(msg.getDeps());
+        conflicts.record(msg.getOwner(), msg.getSlot(), instance.getKeys(), instance.getSeq());
+        markCommitted(instance);
+    }
+
+    private void markCommitted(EPaxosInstance instance) {
+        instance.setStatus(EPaxosInstance.COMMITTED);
+        instance.setLeading(false);
+        instance.getRecovery().clear();
+        uncommitted.remove(instance);
+        committed.add(instance);
+        countDecision();
+        executeFrom(instance);
+    }
+
+    /*--------------------------------- Execution ---------------------------------------- */
+    //Only the new commit and the instances that were blocked on it can make progress, nothing else changed
+    private void executeFrom(EPaxosInstance committedNow) {
+        Deque<EPaxosInstance> ready = new ArrayDeque<>();
+        ready.add(committedNow);
+        while (!ready.isEmpty()) {
+            EPaxosInstance next = ready.poll();
+            if (next.getStatus() == EPaxosInstance.COMMITTED)
+                execute(next);
+            List<EPaxosInstance> waiting = blockedOn.remove(next);
+            if (waiting != null)
+                ready.addAll(waiting);
+        }
+    }
+
+    private void execute(EPaxosInstance root) {
+        tarjanIndex = 0;
+        tarjanBlocker = null;
+        boolean done = strongConnect(root);
+        for (EPaxosInstance visited : tarjanVisited) {
+            visited.setIndex(-1);
+            visited.setOn_stack(false);
+        }
+        tarjanVisited.clear();
+        tarjanStack.clear();
+        if (!done)
+            blockedOn.computeIfAbsent(tarjanBlocker, k -> new ArrayList<>()).add(root);
+    }
+
+    //Runs every strongly connected component reachable from v, false if some dependency is not committed yet
+    private boolean strongConnect(EPaxosInstance v) {
+        v.setIndex(tarjanIndex);
+        v.setLowlink(tarjanIndex);
+        tarjanIndex++;
+        tarjanStack.push(v);
+        v.setOn_stack(true);
+        tarjanVisited.add(v);
+
+        for (EPaxosInstance w : dependencies(v)) {
+            if (w.getStatus() == EPaxosInstance.EXECUTED)
+                continue;
+            if (w.getStatus() != EPaxosInstance.COMMITTED) {
+                track(w);
+                tarjanBlocker = w;
+                return false;
+            }
+            if (w.getIndex() < 0) {
+                if (!strongConnect(w))
+                    return false;
+                v.setLowlink(Math.min(v.getLowlink(), w.getLowlink()));
+            } else if (w.isOn_stack()) {
+                v.setLowlink(Math.min(v.getLowlink(), w.getIndex()));
+            }
+        }
+
+        if (v.getLowlink() == v.getIndex()) {
+            List<EPaxosInstance> component = new ArrayList<>();
+            EPaxosInstance w;
+            do {
+                w = tarjanStack.pop();
+                w.setOn_stack(false);
+                component.add(w);
+            } while (w != v);
+            component.sort(EXECUTION_ORDER);
+            for (EPaxosInstance instance : component)
+                deliver(instance);
+        }
+        return true;
+    }
+
+    //The conflicting instances recorded, and the previous instance of the same row; dropped ones ran long ago
+    private List<EPaxosInstance> dependencies(EPaxosInstance instance) {
+        List<EPaxosInstance> deps = new ArrayList<>(instance.getDeps().size() + 1);
+        for (Map.Entry<Host, Integer> dep : instance.getDeps().entrySet()) {
+            if (!isDropped(dep.getKey(), dep.getValue()))
+                deps.add(getOrCreateInstance(dep.getKey(), dep.getValue()));
+        }
+        if (instance.getSlot() > 0 && !isDropped(instance.getOwner(), instance.getSlot() - 1))
+            deps.add(getOrCreateInstance(instance.getOwner(), instance.getSlot() - 1));
+        return deps;
+    }
+
+    private void deliver(EPaxosInstance instance) {
+        instance.setStatus(EPaxosInstance.EXECUTED);
+        committed.remove(instance);
+        //a no-op only fills the slot of a command that was never proposed
+        if (instance.getCommand() != null) {
+            logger.debug("Executing {} as decision {}", instance, executed);
+            triggerNotification(new DecidedNotification(executed++, instance.getCommand()));
+        }
+        advanceFrontier(instance.getOwner());
+    }
+
+    private void advanceFrontier(Host owner) {
+        Map<Integer, EPaxosInstance> row = instances.get(owner);
+        int frontier = executedFrontier.getOrDefault(owner, -1);
+        EPaxosInstance next;
+        while ((next = row.get(frontier + 1)) != null && next.getStatus() == EPaxosInstance.EXECUTED)
+            frontier++;
+        executedFrontier.put(owner, frontier);
+        int from = keptFrom.getOrDefault(owner, 0);
+        int to = frontier - retain;
+        if (to < from)
+            return;
+        for (int slot = from; slot <= to; slot++)
+            row.remove(slot);
+        keptFrom.put(owner, to + 1);
+    }
+
+    /*--------------------------------- Recovery ---------------------------------------- */
+    private void uponTimeout(Timeout timeout, long timerId) {
+        long now = System.currentTimeMillis();
+        for (EPaxosInstance instance : new ArrayList<>(uncommitted)) {
+            if (now < instance.getRecover_at())
+                continue;
+            //The fast quorum did not answer in full, a majority is enough for the slow path
+            if (instance.isLeading() && instance.getStatus() == EPaxosInstance.PRE_ACCEPTED && !instance.isChanged()) {
+                instance.setChanged(true);
+                instance.setRecover_at(now + agreementTime);
+                checkPreAccepted(instance);
+            } else {
+                startRecovery(instance);
+            }
+        }
+    }
+
+    //Known to us but not committed: someone else's leader may be gone, recover it after a while
+    private void track(EPaxosInstance instance) {
+        if (instance.getStatus() < EPaxosInstance.COMMITTED && !instance.isLeading() && uncommitted.add(instance))
+            instance.setRecover_at(System.currentTimeMillis() + agreementTime + backoff.nextDelay());
+    }
+
+    private void startRecovery(EPaxosInstance instance) {
+        recoveries++;
+        int ballot = nextBallot(instance.getBallot());
+        logger.debug("Recovering {} with ballot {}", instance, ballot);
+        instance.setBallot(ballot);
+        instance.setLeading(true);
+        instance.getRecovery().clear();
+        instance.getOks().reset(ballot);
+        instance.getOks().vote(membership.indexOf(myself), ballot);
+        instance.getRecovery().add(prepareOk(instance, ballot));
+        instance.setRecover_at(System.currentTimeMillis() + agreementTime + backoff.nextDelay());
+
+        EPPrepareMessage message = new EPPrepareMessage(instance.getOwner(), instance.getSlot(), ballot);
+        for (Host h : membership) {
+            if (!h.equals(myself))
+                sendMessage(message, h);
+        }
+        if (instance.getOks().getCount() >= QuorumTracker.quorum(membership.size()))
+            recover(instance);
+    }
+
+    //Ballot 0 belongs to the owner, recovery ballots are selfID + n*k with k > 0
+    private int nextBallot(int ballot) {
+        int n = membership.size();
+        int next = n * (ballot / n + 1) + membership.indexOf(myself);
+        while (next <= ballot)
+            next += n;
+        return next;
+    }
+
+    private EPPrepareOkMessage prepareOk(EPaxosInstance instance, int ballot) {
+        return new EPPrepareOkMessage(instance.getOwner(), instance.getSlot(), ballot,
+                instance.getStatus(), instance.getAccepted_ballot(), instance.getCommand(),
+                instance.getSeq(), instance.getDeps());
+    }
+
+    private void uponPrepareMessage(EPPrepareMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("Prepare {}", msg);
+        if (joinedInstance < 0 || !membership.contains(host) || isDropped(msg.getOwner(), msg.getSlot()))
+            return;
+        EPaxosInstance instance = getOrCreateInstance(msg.getOwner(), msg.getSlot());
+        //a committed instance is reported to anyone asking
+        if (instance.getStatus() < EPaxosInstance.COMMITTED) {
+            if (msg.getBallot() <= instance.getBallot())
+                return;
+            instance.setBallot(msg.getBallot());
+            instance.setLeading(false);
+            track(instance);
+        }
+        sendMessage(prepareOk(instance, msg.getBallot()), host);
+    }
+
+    private void uponPrepareOkMessage(EPPrepareOkMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("PrepareOk {}", msg);
+        EPaxosInstance instance = getInstance(msg.getOwner(), msg.getSlot());
+        if (instance == null || !instance.isLeading() || instance.getStatus() >= EPaxosInstance.COMMITTED
+                || msg.getBallot() != instance.getBallot())
+            return;
+        if (msg.getStatus() >= EPaxosInstance.COMMITTED) {
+            instance.setCommand(msg.getCommand());
+            instance.setSeq(msg.getSeq());
+            instance.setDeps(msg.getDeps());
+            commit(instance);
+            return;
+        }
+        if (!instance.getOks().vote(membership.indexOf(host), msg.getBallot()))
+            return;
+        instance.getRecovery().add(msg);
+        if (instance.getOks().getCount() == QuorumTracker.quorum(membership.size()))
+            recover(instance);
+    }
+
+    //Picks what a majority of replies says could have been chosen, a no-op if none of them saw the command
+    private void recover(EPaxosInstance instance) {
+        List<EPPrepareOkMessage> replies = instance.getRecovery();
+        EPPrepareOkMessage accepted = null;
+        EPPrepareOkMessage preAccepted = null;
+        for (EPPrepareOkMessage reply : replies) {
+            if (reply.getStatus() == EPaxosInstance.ACCEPTED
+                    && (accepted == null || reply.getAccepted_ballot() > accepted.getAccepted_ballot()))
+                accepted = reply;
+            if (reply.getStatus() == EPaxosInstance.PRE_ACCEPTED && preAccepted == null)
+                preAccepted = reply;
+        }
+        if (accepted != null) {
+            adopt(instance, accepted);
+            startAccept(instance);
+            return;
+        }
+        //A fast path commit leaves at least f replicas other than the leader with the leader's attributes
+        EPPrepareOkMessage fast = fastPathCandidate(instance, replies);
+        if (fast != null) {
+            adopt(instance, fast);
+            startAccept(instance);
+            return;
+        }
+        if (preAccepted != null) {
+            adopt(instance, preAccepted);
+            instance.setSeq(Math.max(instance.getSeq(), conflicts.seqFor(instance.getKeys())));
+            instance.setDeps(ConflictIndex.merge(instance.getDeps(),
+                    conflicts.depsFor(instance.getKeys(), instance.getOwner())));
+            instance.setStatus(EPaxosInstance.PRE_ACCEPTED);
+            startPreAccept(instance, instance.getBallot());
+            return;
+        }
+        instance.setCommand(null);
+        instance.setSeq(0);
+        instance.setDeps(new HashMap<>());
+        startAccept(instance);
+    }
+
+    private EPPrepareOkMessage fastPathCandidate(EPaxosInstance instance, List<EPPrepareOkMessage> replies) {
+        int f = (membership.size() - 1) / 2;
+        for (EPPrepareOkMessage candidate : replies) {
+            if (candidate.getStatus() != EPaxosInstance.PRE_ACCEPTED || candidate.getAccepted_ballot() != 0)
+                continue;
+            int same = 0;
+            for (EPPrepareOkMessage reply : replies) {
+                if (reply.getStatus() == EPaxosInstance.PRE_ACCEPTED && reply.getAccepted_ballot() == 0
+                        && reply.getSeq() == candidate.getSeq() && reply.getDeps().equals(candidate.getDeps()))
+                    same++;
+            }
+            if (same >= Math.max(1, f))
+                return candidate;
+        }
+        return null;
+    }
+
+    private void adopt(EPaxosInstance instance, EPPrepareOkMessage reply) {
+        instance.setCommand(reply.getCommand());
+        instance.setSeq(reply.getSeq());
+        instance.setDeps(reply.getDeps());
+    }
+
+    /*--------------------------------- Membership ---------------------------------------- */
+    private void uponAddReplica(AddReplicaRequest request, short sourceProto) {
+        logger.debug("Received " + request);
+        if (!membership.contains(request.getReplica()))
+            membership = request.getMembership();
+    }
+
+    private void uponRemoveReplica(RemoveReplicaRequest request, short sourceProto) {
+        logger.debug("Received " + request);
+        membership = request.getMembership();
+    }
+
+    //Decisions are numbered locally, the watermark says nothing about which instances are safe to drop.
+    //Rows are trimmed as they execute instead, see advanceFrontier
+    private void uponGarbageCollect(GarbageCollectRequest request, short sourceProto) {
+        logger.debug("Ignoring " + request);
+    }
+
+    /*--------------------------------- Utils ---------------------------------------- */
+    private EPaxosInstance getInstance(Host owner, int slot) {
+        Map<Integer, EPaxosInstance> row = instances.get(owner);
+        return row == null ? null : row.get(slot);
+    }
+
+    //Executed and trimmed from its row, anything still arriving about it is stale
+    private boolean isDropped(Host owner, int slot) {
+        return slot < keptFrom.getOrDefault(owner, 0);
+    }
+
+    private EPaxosInstance getOrCreateInstance(Host owner, int slot) {
+        return instances.computeIfAbsent(owner, h -> new HashMap<>())
+                .computeIfAbsent(slot, s -> new EPaxosInstance(owner, s));
+    }
+
+    //The basic EPaxos fast quorum, 2f replicas counting the command leader
+    private int fastQuorum() {
+        int f = (membership.size() - 1) / 2;
+        return Math.max(2 * f, QuorumTracker.quorum(membership.size()));
+    }
+
+    private void countDecision() {
+        decider++;
+        if (decider % METRICS_INTERVAL == 0)
+            logger.info("Committed {} instances, {} of ours on the fast path, {} recoveries, {} waiting to execute",
+                    decider, fastCommits, recoveries, committed.size());
+    }
+
+    private void uponMsgFail(ProtoMessage msg, Host host, short destProto, Throwable throwable, int channelId) {
+        //If a message fails to be sent, for whatever reason, log the message and the reason
+        logger.error("Message {} to {} failed, reason: {}", msg, host, throwable);
+    }
+}
@@ -0,0 +1,186 @@
+package protocols.agreement.epaxos;
+
+import protocols.agreement.epaxos.messages.EPPrepareOkMessage;
+import protocols.agreement.utils.QuorumTracker;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.util.*;
+
+public class EPaxosInstance {
+
+    public static final byte NONE = 0;
+    public static final byte PRE_ACCEPTED = 1;
+    public static final byte ACCEPTED = 2;
+    public static final byte COMMITTED = 3;
+    public static final byte EXECUTED = 4;
+
+    private final Host owner;
+    private final int slot;
+    //A null command is a no-op, keys are null when it conflicts with everything
+    private Operation command;
+    private Set<String> keys;
+    private int seq;
+    private Map<Host, Integer> deps;
+    private byte status;
+    //Highest ballot promised, and the one the current attributes were accepted with
+    private int ballot;
+    private int accepted_ballot;
+
+    //Set while this replica drives the instance, as its leader or recovering it
+    private boolean leading;
+    //Some PreAcceptOk reported attributes different from ours, the fast path is off
+    private boolean changed;
+    private QuorumTracker oks;
+    private List<EPPrepareOkMessage> recovery;
+    //Local time (ms) after which an instance still not committed is taken over
+    private long recover_at;
+
+    //Tarjan bookkeeping while executing, -1 when not visited
+    private int index;
+    private int lowlink;
+    private boolean on_stack;
+
+    public EPaxosInstance(Host owner, int slot) {
+        this.owner = owner;
+        this.slot = slot;
+        command = null;
+        keys = Collections.emptySet();
+        seq = 0;
+        deps = new HashMap<>();
+        status = NONE;
+        ballot = 0;
+        accepted_ballot = 0;
+        oks = new QuorumTracker();
+        recovery = new ArrayList<>();
+        index = -1;
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public Operation getCommand() {
+        return command;
+    }
+
+    public Set<String> getKeys() {
+        return keys;
+    }
+
+    public void setCommand(Operation command) {
+        this.command = command;
+        this.keys = ConflictIndex.keysOf(command);
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public void setSeq(int seq) {
+        this.seq = seq;
+    }
+
+    public Map<Host, Integer> getDeps() {
+        return deps;
+    }
+
+    public void setDeps(Map<Host, Integer> deps) {
+        this.deps = deps;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public void setStatus(byte status) {
+        this.status = status;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public void setBallot(int ballot) {
+        this.ballot = ballot;
+    }
+
+    public int getAccepted_ballot() {
+        return accepted_ballot;
+    }
+
+    public void setAccepted_ballot(int accepted_ballot) {
+        this.accepted_ballot = accepted_ballot;
+    }
+
+    public boolean isLeading() {
+        return leading;
+    }
+
+    public void setLeading(boolean leading) {
+        this.leading = leading;
+    }
+
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public void setChanged(boolean changed) {
+        this.changed = changed;
+    }
+
+    public QuorumTracker getOks() {
+        return oks;
+    }
+
+    public List<EPPrepareOkMessage> getRecovery() {
+        return recovery;
+    }
+
+    public long getRecover_at() {
+        return recover_at;
+    }
+
+    public void setRecover_at(long recover_at) {
+        this.recover_at = recover_at;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public int getLowlink() {
+        return lowlink;
+    }
+
+    public void setLowlink(int lowlink) {
+        this.lowlink = lowlink;
+    }
+
+    public boolean isOn_stack() {
+        return on_stack;
+    }
+
+    public void setOn_stack(boolean on_stack) {
+        this.on_stack = on_stack;
+    }
+
+    @Override
+    public String toString() {
+        return "EPaxosInstance{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", status=" + status +
+                ", seq=" + seq +
+                ", deps=" + deps +
+                '}';
+    }
+}
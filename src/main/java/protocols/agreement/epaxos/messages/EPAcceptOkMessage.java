@@ -0,0 +1,68 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+
+public class EPAcceptOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 134;
+
+    private final Host owner;
+    private final int slot;
+    private final int ballot;
+
+    public EPAcceptOkMessage(Host owner, int slot, int ballot) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.ballot = ballot;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    @Override
+    public String toString() {
+        return "AcceptOkMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", ballot=" + ballot +
+                '}';
+    }
+
+    public static ISerializer<EPAcceptOkMessage> serializer = new ISerializer<EPAcceptOkMessage>() {
+        @Override
+        public void serialize(EPAcceptOkMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            out.writeInt(msg.ballot);
+        }
+
+        @Override
+        public EPAcceptOkMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            int ballot = in.readInt();
+            return new EPAcceptOkMessage(owner, slot, ballot);
+        }
+    };
+
+}
@@ -0,0 +1,49 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+//Encoding shared by the EPaxos messages: a missing command is a no-op
+final class EPCodec {
+
+    private EPCodec() {
+    }
+
+    static void writeOperation(Operation op, ByteBuf out) throws IOException {
+        if (op != null) {
+            out.writeByte(1);
+            Operation.serializer.serialize(op, out);
+        } else {
+            out.writeByte(0);
+        }
+    }
+
+    static Operation readOperation(ByteBuf in) throws IOException {
+        if (in.readByte() == 0)
+            return null;
+        return Operation.serializer.deserialize(in);
+    }
+
+    static void writeDeps(Map<Host, Integer> deps, ByteBuf out) throws IOException {
+        out.writeInt(deps.size());
+        for (Map.Entry<Host, Integer> entry : deps.entrySet()) {
+            Host.serializer.serialize(entry.getKey(), out);
+            out.writeInt(entry.getValue());
+        }
+    }
+
+    static Map<Host, Integer> readDeps(ByteBuf in) throws IOException {
+        int size = in.readInt();
+        Map<Host, Integer> deps = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            Host owner = Host.serializer.deserialize(in);
+            deps.put(owner, in.readInt());
+        }
+        return deps;
+    }
+}
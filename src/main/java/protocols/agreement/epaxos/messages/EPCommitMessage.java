@@ -0,0 +1,88 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class EPCommitMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 135;
+
+    private final Host owner;
+    private final int slot;
+    private final Operation command;
+    private final int seq;
+    private final Map<Host, Integer> deps;
+
+    public EPCommitMessage(Host owner, int slot, Operation command, int seq, Map<Host, Integer> deps) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.command = command;
+        this.seq = seq;
+        this.deps = deps;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public Operation getCommand() {
+        return command;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public Map<Host, Integer> getDeps() {
+        return deps;
+    }
+
+    @Override
+    public String toString() {
+        return "CommitMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", command=" + command +
+                ", seq=" + seq +
+                ", deps=" + deps +
+                '}';
+    }
+
+    public static ISerializer<EPCommitMessage> serializer = new ISerializer<EPCommitMessage>() {
+        @Override
+        public void serialize(EPCommitMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            EPCodec.writeOperation(msg.command, out);
+            out.writeInt(msg.seq);
+            EPCodec.writeDeps(msg.deps, out);
+        }
+
+        @Override
+        public EPCommitMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            Operation command = EPCodec.readOperation(in);
+            int seq = in.readInt();
+            Map<Host, Integer> deps = EPCodec.readDeps(in);
+            return new EPCommitMessage(owner, slot, command, seq, deps);
+        }
+    };
+
+}
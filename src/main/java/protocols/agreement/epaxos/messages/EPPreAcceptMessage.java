@@ -0,0 +1,98 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.Map;
+
+//Proposes a command with the dependencies and sequence number its leader saw
+public class EPPreAcceptMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 131;
+
+    private final Host owner;
+    private final int slot;
+    private final int ballot;
+    private final Operation command;
+    private final int seq;
+    private final Map<Host, Integer> deps;
+
+    public EPPreAcceptMessage(Host owner, int slot, int ballot, Operation command, int seq, Map<Host, Integer> deps) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.ballot = ballot;
+        this.command = command;
+        this.seq = seq;
+        this.deps = deps;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public Operation getCommand() {
+        return command;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public Map<Host, Integer> getDeps() {
+        return deps;
+    }
+
+    @Override
+    public String toString() {
+        return "PreAcceptMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", ballot=" + ballot +
+                ", command=" + command +
+                ", seq=" + seq +
+                ", deps=" + deps +
+                '}';
+    }
+
+    public static ISerializer<EPPreAcceptMessage> serializer = new ISerializer<EPPreAcceptMessage>() {
+        @Override
+        public void serialize(EPPreAcceptMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            out.writeInt(msg.ballot);
+            EPCodec.writeOperation(msg.command, out);
+            out.writeInt(msg.seq);
+            EPCodec.writeDeps(msg.deps, out);
+        }
+
+        @Override
+        public EPPreAcceptMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            int ballot = in.readInt();
+            Operation command = EPCodec.readOperation(in);
+            int seq = in.readInt();
+            Map<Host, Integer> deps = EPCodec.readDeps(in);
+            return new EPPreAcceptMessage(owner, slot, ballot, command, seq, deps);
+        }
+    };
+
+}
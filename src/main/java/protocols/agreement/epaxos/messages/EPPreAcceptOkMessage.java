@@ -0,0 +1,88 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.Map;
+
+//Attributes updated with the conflicting instances the sender knows of
+public class EPPreAcceptOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 132;
+
+    private final Host owner;
+    private final int slot;
+    private final int ballot;
+    private final int seq;
+    private final Map<Host, Integer> deps;
+
+    public EPPreAcceptOkMessage(Host owner, int slot, int ballot, int seq, Map<Host, Integer> deps) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.ballot = ballot;
+        this.seq = seq;
+        this.deps = deps;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public Map<Host, Integer> getDeps() {
+        return deps;
+    }
+
+    @Override
+    public String toString() {
+        return "PreAcceptOkMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", ballot=" + ballot +
+                ", seq=" + seq +
+                ", deps=" + deps +
+                '}';
+    }
+
+    public static ISerializer<EPPreAcceptOkMessage> serializer = new ISerializer<EPPreAcceptOkMessage>() {
+        @Override
+        public void serialize(EPPreAcceptOkMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            out.writeInt(msg.ballot);
+            out.writeInt(msg.seq);
+            EPCodec.writeDeps(msg.deps, out);
+        }
+
+        @Override
+        public EPPreAcceptOkMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            int ballot = in.readInt();
+            int seq = in.readInt();
+            Map<Host, Integer> deps = EPCodec.readDeps(in);
+            return new EPPreAcceptOkMessage(owner, slot, ballot, seq, deps);
+        }
+    };
+
+}
@@ -0,0 +1,69 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+
+//Takes over an instance whose leader stopped driving it
+public class EPPrepareMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 136;
+
+    private final Host owner;
+    private final int slot;
+    private final int ballot;
+
+    public EPPrepareMessage(Host owner, int slot, int ballot) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.ballot = ballot;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    @Override
+    public String toString() {
+        return "PrepareMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", ballot=" + ballot +
+                '}';
+    }
+
+    public static ISerializer<EPPrepareMessage> serializer = new ISerializer<EPPrepareMessage>() {
+        @Override
+        public void serialize(EPPrepareMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            out.writeInt(msg.ballot);
+        }
+
+        @Override
+        public EPPrepareMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            int ballot = in.readInt();
+            return new EPPrepareMessage(owner, slot, ballot);
+        }
+    };
+
+}
@@ -0,0 +1,116 @@
+package protocols.agreement.epaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.util.Map;
+
+//What the sender knows of the instance being recovered
+public class EPPrepareOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 137;
+
+    private final Host owner;
+    private final int slot;
+    private final int ballot;
+    private final byte status;
+    private final int accepted_ballot;
+    private final Operation command;
+    private final int seq;
+    private final Map<Host, Integer> deps;
+
+    public EPPrepareOkMessage(Host owner, int slot, int ballot, byte status, int accepted_ballot, Operation command, int seq, Map<Host, Integer> deps) {
+        super(MSG_ID);
+        this.owner = owner;
+        this.slot = slot;
+        this.ballot = ballot;
+        this.status = status;
+        this.accepted_ballot = accepted_ballot;
+        this.command = command;
+        this.seq = seq;
+        this.deps = deps;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Host getOwner() {
+        return owner;
+    }
+
+    public int getSlot() {
+        return slot;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public byte getStatus() {
+        return status;
+    }
+
+    public int getAccepted_ballot() {
+        return accepted_ballot;
+    }
+
+    public Operation getCommand() {
+        return command;
+    }
+
+    public int getSeq() {
+        return seq;
+    }
+
+    public Map<Host, Integer> getDeps() {
+        return deps;
+    }
+
+    @Override
+    public String toString() {
+        return "PrepareOkMessage{" +
+                "owner=" + owner +
+                ", slot=" + slot +
+                ", ballot=" + ballot +
+                ", status=" + status +
+                ", accepted_ballot=" + accepted_ballot +
+                ", command=" + command +
+                ", seq=" + seq +
+                ", deps=" + deps +
+                '}';
+    }
+
+    public static ISerializer<EPPrepareOkMessage> serializer = new ISerializer<EPPrepareOkMessage>() {
+        @Override
+        public void serialize(EPPrepareOkMessage msg, ByteBuf out) throws IOException {
+            Host.serializer.serialize(msg.owner, out);
+            out.writeInt(msg.slot);
+            out.writeInt(msg.ballot);
+            out.writeByte(msg.status);
+            out.writeInt(msg.accepted_ballot);
+            EPCodec.writeOperation(msg.command, out);
+            out.writeInt(msg.seq);
+            EPCodec.writeDeps(msg.deps, out);
+        }
+
+        @Override
+        public EPPrepareOkMessage deserialize(ByteBuf in) throws IOException {
+            Host owner = Host.serializer.deserialize(in);
+            int slot = in.readInt();
+            int ballot = in.readInt();
+            byte status = in.readByte();
+            int accepted_ballot = in.readInt();
+            Operation command = EPCodec.readOperation(in);
+            int seq = in.readInt();
+            Map<Host, Integer> deps = EPCodec.readDeps(in);
+            return new EPPrepareOkMessage(owner, slot, ballot, status, accepted_ballot, command, seq, deps);
+        }
+    };
+
+}
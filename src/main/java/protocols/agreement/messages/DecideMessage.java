@@ -0,0 +1,76 @@
+package protocols.agreement.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.agreement.utils.EncodedOperation;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+/*************************************************
+ * Sent by the proposer once it collected a quorum of AcceptOks.
+ * The value only goes to replicas that did not acknowledge the
+ * accept, the others already hold it as their highest accepted value.
+ *************************************************/
+public class DecideMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 107;
+
+    private final int instance;
+    private final int proposer_seq;
+    private final EncodedOperation value;
+
+    public DecideMessage(int instance, int proposer_seq, EncodedOperation value) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.proposer_seq = proposer_seq;
+        this.value = value;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "DecideMessage{" +
+                "instance=" + instance +
+                ", proposer_seq=" + proposer_seq +
+                ", value=" + getValue() +
+                '}';
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public int getProposer_seq() {
+        return proposer_seq;
+    }
+
+    public Operation getValue() {
+        return value == null ? null : value.getOperation();
+    }
+
+    public EncodedOperation getEncoded() {
+        return value;
+    }
+
+    public static ISerializer<DecideMessage> serializer = new ISerializer<DecideMessage>() {
+        @Override
+        public void serialize(DecideMessage msg, ByteBuf out) {
+            out.writeInt(msg.instance);
+            out.writeInt(msg.proposer_seq);
+            EncodedOperation.write(msg.value, out);
+        }
+
+        @Override
+        public DecideMessage deserialize(ByteBuf in) {
+            int instance = in.readInt();
+            int proposer_seq = in.readInt();
+            EncodedOperation value = EncodedOperation.read(in);
+            return new DecideMessage(instance, proposer_seq, value);
+        }
+    };
+
+}
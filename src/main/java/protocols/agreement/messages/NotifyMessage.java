@@ -1,31 +1,41 @@
 package protocols.agreement.messages;
 
 import io.netty.buffer.ByteBuf;
-import protocols.app.utils.Operation;
+import io.netty.buffer.Unpooled;
 import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
 import pt.unl.fct.di.novasys.network.ISerializer;
 import pt.unl.fct.di.novasys.network.data.Host;
 
 import java.io.IOException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
 
 public class NotifyMessage extends ProtoMessage {
 
     public static final short MSG_ID = 104;
 
     private int instance;
+    //Instance the state covers, up to instance: decisions in between are replayed on top of it
+    private int state_instance;
     private List<Host> membership;
-    private Map<Integer, Operation> decided;
+    //Decisions after state_instance as decided log records, in instance order and not decoded
+    private Map<Integer, ByteBuffer> decided;
+    //Client operations executed up to state_instance and where, so duplicates are still recognized
+    private Map<String, Integer> executed;
     private byte[] state;
 
-    public NotifyMessage(int instance, List<Host> membership, Map<Integer, Operation> decided,byte[] state) {
+    public NotifyMessage(int instance, int state_instance, List<Host> membership, Map<Integer, ByteBuffer> decided,
+                         Map<String, Integer> executed, byte[] state) {
         super(MSG_ID);
         this.instance = instance;
+        this.state_instance = state_instance;
         this.membership = membership;
         this.decided=decided;
+        this.executed = executed;
         this.state=state;
     }
 
@@ -39,18 +49,26 @@ public class NotifyMessage extends ProtoMessage {
         return this.instance;
     }
 
+    public int getState_instance() {
+        return state_instance;
+    }
+
     public List<Host> getMembership() {
         return this.membership;
     }
 
-    public Map<Integer, Operation> getDecided() {
+    public Map<Integer, ByteBuffer> getDecided() {
         return decided;
     }
 
-    public void setDecided(Map<Integer, Operation> decided) {
+    public void setDecided(Map<Integer, ByteBuffer> decided) {
         this.decided = decided;
     }
 
+    public Map<String, Integer> getExecuted() {
+        return executed;
+    }
+
     public byte[] getState() {
         return state;
     }
@@ -63,6 +81,7 @@ public class NotifyMessage extends ProtoMessage {
     public String toString() {
         return "PrepareMessage{" +
                 "instance=" + instance +
+                ", state_instance=" + state_instance +
                 "membership=" + membership +
                 '}';
     }
@@ -71,14 +90,23 @@ public class NotifyMessage extends ProtoMessage {
         @Override
         public void serialize(NotifyMessage msg, ByteBuf out) throws IOException {
             out.writeInt(msg.instance);
+            out.writeInt(msg.state_instance);
             out.writeInt(msg.getMembership().size());
             for (Host host : msg.membership) {
                 Host.serializer.serialize(host, out);
             }
             out.writeInt(msg.decided.size());
-            for (Map.Entry<Integer, Operation> entry : msg.decided.entrySet()) {
+            for (Map.Entry<Integer, ByteBuffer> entry : msg.decided.entrySet()) {
                 out.writeInt(entry.getKey());
-                Operation.serializer.serialize(entry.getValue(),out);
+                out.writeInt(entry.getValue().remaining());
+                out.writeBytes(Unpooled.wrappedBuffer(entry.getValue().duplicate()));
+            }
+            out.writeInt(msg.executed.size());
+            for (Map.Entry<String, Integer> entry : msg.executed.entrySet()) {
+                UUID id = UUID.fromString(entry.getKey());
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+                out.writeInt(entry.getValue());
             }
             out.writeInt(msg.getState().length);
             out.writeBytes(msg.getState());
@@ -87,6 +115,7 @@ public class NotifyMessage extends ProtoMessage {
         @Override
         public NotifyMessage deserialize(ByteBuf in) throws IOException {
             int instance = in.readInt();
+            int state_instance = in.readInt();
             int hostSize = in.readInt();
             List<Host> membership = new LinkedList<>();
             for (int i = 0; i < hostSize; i++) {
@@ -94,15 +123,22 @@ public class NotifyMessage extends ProtoMessage {
                 membership.add(i, host);
             }
             int map_Size = in.readInt();
-            Map<Integer, Operation> decided = new HashMap<>();
+            Map<Integer, ByteBuffer> decided = new LinkedHashMap<>();
             for (int i=0;i<map_Size;i++){
                 int decision_instance = in.readInt();
-                Operation op = Operation.serializer.deserialize(in);
-                decided.put(decision_instance,op);
+                byte[] record = new byte[in.readInt()];
+                in.readBytes(record);
+                decided.put(decision_instance, ByteBuffer.wrap(record));
+            }
+            int executedSize = in.readInt();
+            Map<String, Integer> executed = new LinkedHashMap<>();
+            for (int i = 0; i < executedSize; i++) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                executed.put(id.toString(), in.readInt());
             }
             byte[] state = new byte[in.readInt()];
             in.readBytes(state);
-            return new NotifyMessage(instance, membership,decided,state);
+            return new NotifyMessage(instance, state_instance, membership,decided,executed,state);
         }
     };
 
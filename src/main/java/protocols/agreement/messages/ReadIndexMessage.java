@@ -0,0 +1,48 @@
+package protocols.agreement.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class ReadIndexMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 108;
+
+    private final int round;
+
+    public ReadIndexMessage(int round) {
+        super(MSG_ID);
+        this.round = round;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexMessage{" +
+                "round=" + round +
+                '}';
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public static ISerializer<ReadIndexMessage> serializer = new ISerializer<ReadIndexMessage>() {
+        @Override
+        public void serialize(ReadIndexMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.round);
+        }
+
+        @Override
+        public ReadIndexMessage deserialize(ByteBuf in) throws IOException {
+            return new ReadIndexMessage(in.readInt());
+        }
+    };
+
+}
@@ -0,0 +1,59 @@
+package protocols.agreement.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class ReadIndexOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 109;
+
+    private final int round;
+    //Highest instance the sender accepted a value in
+    private final int highest_accepted;
+
+    public ReadIndexOkMessage(int round, int highest_accepted) {
+        super(MSG_ID);
+        this.round = round;
+        this.highest_accepted = highest_accepted;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexOkMessage{" +
+                "round=" + round +
+                ", highest_accepted=" + highest_accepted +
+                '}';
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getHighest_accepted() {
+        return highest_accepted;
+    }
+
+    public static ISerializer<ReadIndexOkMessage> serializer = new ISerializer<ReadIndexOkMessage>() {
+        @Override
+        public void serialize(ReadIndexOkMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.round);
+            out.writeInt(msg.highest_accepted);
+        }
+
+        @Override
+        public ReadIndexOkMessage deserialize(ByteBuf in) throws IOException {
+            int round = in.readInt();
+            int highest_accepted = in.readInt();
+            return new ReadIndexOkMessage(round, highest_accepted);
+        }
+    };
+
+}
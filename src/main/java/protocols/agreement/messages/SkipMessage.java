@@ -0,0 +1,59 @@
+package protocols.agreement.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+//Every slot the sender owns in [from, to) is a no-op, it never proposed anything there
+public class SkipMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 110;
+
+    private final int from;
+    private final int to;
+
+    public SkipMessage(int from, int to) {
+        super(MSG_ID);
+        this.from = from;
+        this.to = to;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "SkipMessage{" +
+                "from=" + from +
+                ", to=" + to +
+                '}';
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getTo() {
+        return to;
+    }
+
+    public static ISerializer<SkipMessage> serializer = new ISerializer<SkipMessage>() {
+        @Override
+        public void serialize(SkipMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.from);
+            out.writeInt(msg.to);
+        }
+
+        @Override
+        public SkipMessage deserialize(ByteBuf in) throws IOException {
+            int from = in.readInt();
+            int to = in.readInt();
+            return new SkipMessage(from, to);
+        }
+    };
+
+}
@@ -0,0 +1,27 @@
+package protocols.agreement.multipaxos;
+
+/**
+ * Hybrid logical clock: milliseconds of wall clock in the high bits and a counter in the low
+ * LOGICAL_BITS, so timestamps taken in the same millisecond (or after a remote one from a clock
+ * running ahead) still strictly increase.
+ */
+public class HybridClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private long last;
+
+    public HybridClock() {
+        last = 0;
+    }
+
+    public synchronized long now() {
+        last = Math.max(last + 1, System.currentTimeMillis() << LOGICAL_BITS);
+        return last;
+    }
+
+    //Timestamps seen from other replicas, anything taken afterwards orders after them
+    public synchronized void update(long remote) {
+        last = Math.max(last, remote);
+    }
+}
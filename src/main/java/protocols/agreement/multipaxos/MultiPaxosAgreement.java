@@ -3,58 +3,186 @@ package protocols.agreement.multipaxos;
 import protocols.agreement.PaxosInstance;
 import protocols.agreement.multipaxos.messages.*;
 import protocols.agreement.notifications.JoinedNotification;
+import protocols.agreement.notifications.LeaseNotification;
 import protocols.agreement.requests.*;
+import protocols.agreement.timers.LeaseTimer;
+import protocols.agreement.timers.LogSyncTimer;
 import protocols.agreement.timers.Timeout;
-import protocols.app.utils.Tuple;
+import protocols.agreement.utils.AcceptorLog;
+import protocols.agreement.utils.Backoff;
+import protocols.agreement.utils.QuorumTracker;
+import protocols.agreement.utils.Quorums;
+import protocols.agreement.utils.Responders;
+import protocols.agreement.utils.TimingWheel;
+import protocols.agreement.utils.EncodedOperation;
+import protocols.agreement.utils.InstanceStore;
+import protocols.agreement.utils.MembershipView;
+import protocols.app.utils.Operation;
 import pt.unl.fct.di.novasys.babel.core.GenericProtocol;
 import pt.unl.fct.di.novasys.babel.exceptions.HandlerRegistrationException;
 import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
 import pt.unl.fct.di.novasys.network.data.Host;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import protocols.statemachine.StateMachine;
 import protocols.statemachine.notifications.ChannelReadyNotification;
 import protocols.agreement.notifications.DecidedNotification;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.*;
 
 public class MultiPaxosAgreement extends GenericProtocol {
 
     private static final Logger logger = LogManager.getLogger(MultiPaxosAgreement.class);
 
-    //Protocol information, to register in babel
-    public final static short PROTOCOL_ID = 200;
+    //Protocol information, to register in babel. Replaces Agreement, so it answers to the same id
+    public final static short PROTOCOL_ID = 100;
     public final static String PROTOCOL_NAME = "MultiPaxosAgreement";
+    private final static int METRICS_INTERVAL = 1000;
 
     private Host myself;
+    private final short stateMachineId;
     private int joinedInstance;
-    private List<Host> membership;
+    private MembershipView membership;
 
-    private HashMap<Integer, PaxosInstance> paxosInstancesMap;
+    private InstanceStore<PaxosInstance> paxosInstancesMap;
     //no timeout for instances with no initial value to propose
-    private HashMap<Long, Integer> timeoutInstancesMap;
+    private final TimingWheel timeoutWheel;
+
+    //Instances up to here were executed by a quorum, their state was discarded
+    private int gcWatermark;
 
     private final int agreementTime;
     int decider;
+    //Retry delay after losing a ballot, and how often that happened
+    private final Backoff backoff;
+    private int preemptions;
+    //AcceptOks go only to the proposer, which then sends a compact Decide to everyone
+    private final boolean collectAcceptOk;
+    //Phase 1 and phase 2 quorum sizes, any pair intersects
+    private final Quorums quorums;
+    //Accepts go only to the fastest phase 2 quorum, the others are asked after thriftyTimeout (ms)
+    private final boolean thrifty;
+    private final int thriftyTimeout;
+    private final Responders responders;
+    //Write-ahead log of our promises (per instance, or from an instance onwards) and accepted values
+    private final AcceptorLog acceptorLog;
+    private final String dataDir;
+
+    //Stable leader mode: a single prepare covers every instance from preparingFrom/leaderFrom onwards
+    private final boolean stableLeader;
+    //Highest ballot promised to a leader for all instances >= promisedFrom
+    private int promisedSeq;
+    private int promisedFrom;
+    //Ballot we lead with (-1 if we are not the leader), the first instance it covers and the highest
+    //one we sent accepts for with it: everything chosen so far is at or below it, and ours to decide
+    private int leaderSeq;
+    private int leaderFrom;
+    private int leaderEnd;
+    //Highest ballot we accepted a value with, a new leader may reach us with accepts before its prepare does
+    private int acceptedSeq;
+    //Ballot of the prepare we are gathering a quorum for (-1 if none)
+    private int preparingSeq;
+    private int preparingFrom;
+    private QuorumTracker prepareOks;
+
+    //Leader lease (ms, 0 disables it): while the lease we granted holds, prepares from anyone else are ignored
+    private final int leaseDuration;
+    //Margin for clock drift, the leader assumes its lease ends this much earlier than the grantors do
+    private final int leaseDrift;
+    private Host leaseGrantedTo;
+    private long leaseGrantedUntil;
+    //Renewal round the leader is gathering grants for, and when it asked
+    private int leaseRound;
+    private long leaseRoundSentAt;
+    private QuorumTracker leaseOks;
+    //Leader we promised to and when we last heard from it: while it is around our values go to it,
+    //a prepare of our own only follows once it stayed silent for agreementTime
+    private Host promisedTo;
+    private long leaderHeardAt;
+
+    //Highest instance we accepted a value in, the answers of a majority bound every decided instance
+    private int highestAccepted;
+    //Read index round we are gathering answers for, the highest instance reported so far and who asked.
+    //In stable leader mode the index is the leader's log end, and readIndexSeq the ballot it leads with
+    private int readRound;
+    private int readIndex;
+    private int readIndexSeq;
+    private short readRequester;
+    private QuorumTracker readOks;
+
+    //Orders the entries of the operation logs this instance sends
+    private final HybridClock clock;
 
     public MultiPaxosAgreement(Properties props) throws IOException, HandlerRegistrationException {
-        super(PROTOCOL_NAME, PROTOCOL_ID);
+        this(props, 0);
+    }
+
+    public MultiPaxosAgreement(Properties props, int group) throws IOException, HandlerRegistrationException {
+        super(group == 0 ? PROTOCOL_NAME : PROTOCOL_NAME + "-" + group, (short) (PROTOCOL_ID + group));
+        stateMachineId = (short) (StateMachine.PROTOCOL_ID + group);
         joinedInstance = -1; //-1 means we have not yet joined the system
         membership = null;
-        paxosInstancesMap = new HashMap<>();
-        timeoutInstancesMap = new HashMap<>();
+        paxosInstancesMap = new InstanceStore<>(Integer.parseInt(props.getProperty("instance_window", "8192")));
+        gcWatermark = -1;
+        clock = new HybridClock();
 
         decider=0;
 
         this.agreementTime = Integer.parseInt(props.getProperty("agreement_time", "10000"));
+        int agreementTick = Integer.parseInt(props.getProperty("agreement_tick", "50"));
+        timeoutWheel = new TimingWheel(agreementTick, 512, this::uponInstanceTimeout);
+        backoff = new Backoff(Integer.parseInt(props.getProperty("backoff_base", String.valueOf(agreementTick))),
+                Integer.parseInt(props.getProperty("backoff_max", "2000")));
+        preemptions = 0;
+        this.collectAcceptOk = props.getProperty("accept_ok_mode", "all").equalsIgnoreCase("proposer");
+        this.quorums = new Quorums(Integer.parseInt(props.getProperty("phase1_quorum", "0")),
+                Integer.parseInt(props.getProperty("phase2_quorum", "0")));
+        this.thrifty = Boolean.parseBoolean(props.getProperty("thrifty_accept", "false"));
+        this.thriftyTimeout = Integer.parseInt(props.getProperty("thrifty_timeout", "200"));
+        responders = new Responders();
+        acceptorLog = new AcceptorLog(AcceptorLog.parseDurability(props.getProperty("wal_durability", "none")),
+                Integer.parseInt(props.getProperty("wal_group_window", "2")),
+                Integer.parseInt(props.getProperty("wal_group_max", "128")),
+                Long.parseLong(props.getProperty("wal_segment_bytes", "67108864")));
+        dataDir = props.getProperty("data_dir", "data");
+        this.stableLeader = Boolean.parseBoolean(props.getProperty("stable_leader", "false"));
+        promisedSeq = -1;
+        promisedFrom = -1;
+        leaderSeq = -1;
+        leaderFrom = -1;
+        leaderEnd = -1;
+        acceptedSeq = -1;
+        preparingSeq = -1;
+        preparingFrom = -1;
+        prepareOks = new QuorumTracker();
+        leaseDuration = Integer.parseInt(props.getProperty("lease_duration", "0"));
+        leaseDrift = Integer.parseInt(props.getProperty("lease_drift", "100"));
+        leaseGrantedTo = null;
+        leaseGrantedUntil = 0;
+        leaseRound = 0;
+        leaseRoundSentAt = 0;
+        leaseOks = new QuorumTracker();
+        promisedTo = null;
+        leaderHeardAt = 0;
+        highestAccepted = -1;
+        readRound = -1;
+        readIndex = -1;
+        readIndexSeq = -1;
+        readOks = new QuorumTracker();
 
         /*--------------------- Register Timer Handlers ----------------------------- */
         registerTimerHandler(Timeout.TIMEOUT_ID, this::uponTimeout);
+        registerTimerHandler(LeaseTimer.TIMEOUT_ID, this::uponLeaseTimer);
+        registerTimerHandler(LogSyncTimer.TIMEOUT_ID, this::uponLogSyncTimer);
 
         /*--------------------- Register Request Handlers ----------------------------- */
         registerRequestHandler(ProposeRequest.REQUEST_ID, this::uponProposeRequest);
         registerRequestHandler(AddReplicaRequest.REQUEST_ID, this::uponAddReplica);
         registerRequestHandler(RemoveReplicaRequest.REQUEST_ID, this::uponRemoveReplica);
+        registerRequestHandler(GarbageCollectRequest.REQUEST_ID, this::uponGarbageCollect);
+        registerRequestHandler(ReadIndexRequest.REQUEST_ID, this::uponReadIndexRequest);
 
         /*--------------------- Register Notification Handlers ----------------------------- */
         subscribeNotification(ChannelReadyNotification.NOTIFICATION_ID, this::uponChannelCreated);
@@ -63,11 +191,17 @@ public class MultiPaxosAgreement extends GenericProtocol {
 
     @Override
     public void init(Properties props) {
-        //Nothing to do here, we just wait for events from the application or agreement
+        //A single periodic tick drives every instance timeout
+        setupPeriodicTimer(new Timeout(), timeoutWheel.getTickMs(), timeoutWheel.getTickMs());
+        //Renewed well before it runs out so a single lost round does not drop it
+        if (stableLeader && leaseDuration > 0)
+            setupPeriodicTimer(new LeaseTimer(), leaseDuration / 3, leaseDuration / 3);
     }
 
     //Upon receiving the channelId from the membership, register our own callbacks and serializers
     private void uponChannelCreated(ChannelReadyNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
         int cId = notification.getChannelId();
         myself = notification.getMyself();
         logger.info("Channel {} created, I am {}", cId, myself);
@@ -80,6 +214,12 @@ public class MultiPaxosAgreement extends GenericProtocol {
         registerMessageSerializer(cId, MPNotifyMessage.MSG_ID, MPNotifyMessage.serializer);
         registerMessageSerializer(cId, MPPrepareMessage.MSG_ID, MPPrepareMessage.serializer);
         registerMessageSerializer(cId, MPPrepareOkMessage.MSG_ID, MPPrepareOkMessage.serializer);
+        registerMessageSerializer(cId, MPDecideMessage.MSG_ID, MPDecideMessage.serializer);
+        registerMessageSerializer(cId, MPLeaseMessage.MSG_ID, MPLeaseMessage.serializer);
+        registerMessageSerializer(cId, MPLeaseOkMessage.MSG_ID, MPLeaseOkMessage.serializer);
+        registerMessageSerializer(cId, MPReadIndexMessage.MSG_ID, MPReadIndexMessage.serializer);
+        registerMessageSerializer(cId, MPReadIndexOkMessage.MSG_ID, MPReadIndexOkMessage.serializer);
+        registerMessageSerializer(cId, MPForwardMessage.MSG_ID, MPForwardMessage.serializer);
         /*---------------------- Register Message Handlers -------------------------- */
         try {
             //registerMessageHandler(cId, BroadcastMessage.MSG_ID, this::uponBroadcastMessage, this::uponMsgFail);
@@ -87,6 +227,12 @@ public class MultiPaxosAgreement extends GenericProtocol {
             registerMessageHandler(cId, MPPrepareOkMessage.MSG_ID, this::uponPrepareOkMessage);
             registerMessageHandler(cId, MPAcceptMessage.MSG_ID, this::uponAcceptMessage);
             registerMessageHandler(cId, MPAcceptOkMessage.MSG_ID, this::uponAcceptOkMessage);
+            registerMessageHandler(cId, MPDecideMessage.MSG_ID, this::uponDecideMessage);
+            registerMessageHandler(cId, MPLeaseMessage.MSG_ID, this::uponLeaseMessage);
+            registerMessageHandler(cId, MPLeaseOkMessage.MSG_ID, this::uponLeaseOkMessage);
+            registerMessageHandler(cId, MPReadIndexMessage.MSG_ID, this::uponReadIndexMessage);
+            registerMessageHandler(cId, MPReadIndexOkMessage.MSG_ID, this::uponReadIndexOkMessage);
+            registerMessageHandler(cId, MPForwardMessage.MSG_ID, this::uponForwardMessage);
         } catch (HandlerRegistrationException e) {
             throw new AssertionError("Error registering message handler.", e);
         }
@@ -103,11 +249,20 @@ public class MultiPaxosAgreement extends GenericProtocol {
     }
 
     private void uponJoinedNotification(JoinedNotification notification, short sourceProto) {
+        if (sourceProto != stateMachineId)
+            return;
         //We joined the system and can now start doing things
         if (joinedInstance < 0 || joinedInstance != notification.getJoinInstance()){
+            boolean restarting = joinedInstance < 0;
             joinedInstance = notification.getJoinInstance();
-            membership = new LinkedList<>(notification.getMembership());
-            logger.info("Agreement starting at instance {},  membership: {}", joinedInstance, membership);
+            membership = notification.getMembership();
+            //nothing below the join instance is ever handled
+            paxosInstancesMap.advanceTo(joinedInstance);
+            if (restarting)
+                openAcceptorLog();
+            //The state we joined with already holds everything decided below it
+            highestAccepted = Math.max(highestAccepted, joinedInstance - 1);
+            logger.info("Agreement starting at instance {},  membership: {}, {}", joinedInstance, membership, quorums);
         }
 
         /*System.out.println(myself.getPort());
@@ -117,19 +272,21 @@ public class MultiPaxosAgreement extends GenericProtocol {
         System.out.println("Teste");*/
     }
 
-    private int buildSeqNum(Host[] membership) {
-        for (int selfID = 0; selfID < membership.length; selfID++)
-            if (membership[selfID].equals(myself))
-                return selfID;
-        return -1;
+    //We joined before this instance and did not discard it yet
+    private boolean isActive(int instance) {
+        return joinedInstance >= 0 && joinedInstance <= instance && instance > gcWatermark;
     }
 
     private void uponProposeRequest(ProposeRequest request, short sourceProto) {
         logger.debug("Received " + request);
-        if (joinedInstance <= request.getInstance() && joinedInstance >= 0) {
+        if (isActive(request.getInstance())) {
+            if (stableLeader) {
+                proposeAsLeader(request);
+                return;
+            }
             int instanceID = request.getInstance();
             PaxosInstance instance = paxosInstancesMap.get(instanceID);
-            int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
+            int selfID = membership.indexOf(myself);
             if (instance == null) {
                 //create instance in map
                 instance = new PaxosInstance(request.getOperation(), selfID+(membership.size()*request.getHandicap()), membership);
@@ -137,7 +294,7 @@ public class MultiPaxosAgreement extends GenericProtocol {
             } else {
                 instance.setProposer_seq(selfID+(membership.size()*request.getHandicap()));
                 instance.setProposer_value(request.getOperation());
-                instance.setPrepare_ok_set(new LinkedList<Tuple>());
+                instance.getPrepare_oks().reset(instance.getProposer_seq());
             }
 
             //broadcast prepare for all replicas
@@ -149,75 +306,372 @@ public class MultiPaxosAgreement extends GenericProtocol {
         }
     }
 
+    /*--------------------------------- Stable Leader ---------------------------------------- */
+    private PaxosInstance getOrCreateInstance(int instanceID, Operation value) {
+        PaxosInstance instance = paxosInstancesMap.get(instanceID);
+        if (instance == null) {
+            int selfID = membership.indexOf(myself);
+            instance = new PaxosInstance(value, selfID, membership);
+            //instances we never heard of are still covered by the promise made to the current leader
+            if (promisedSeq >= 0 && instanceID >= promisedFrom)
+                instance.setHighest_prepare(promisedSeq);
+            paxosInstancesMap.put(instanceID, instance);
+        }
+        return instance;
+    }
+
+    private void proposeAsLeader(ProposeRequest request) {
+        int instanceID = request.getInstance();
+        PaxosInstance instance = getOrCreateInstance(instanceID, request.getOperation());
+        if (instance.getDecided() != null)
+            return;
+        if (leaderSeq >= 0 && instanceID >= leaderFrom) {
+            //A value is already out with our ballot here (forwarded by a follower), a second one would break it
+            if (instance.getProposer_seq() == leaderSeq && instance.getAccept_sent_at() > 0)
+                return;
+            //Phase 1 already covers this instance, go straight to accept
+            instance.setProposer_value(request.getOperation());
+            instance.setProposer_seq(leaderSeq);
+            sendAccept(instanceID, instance);
+            return;
+        }
+        instance.setProposer_value(request.getOperation());
+        if (leaderSeq < 0 && leaderAlive()) {
+            //Preempting a live leader would only move leadership around, it proposes the value for us
+            sendMessage(new MPForwardMessage(instanceID, logOf(instance.getProposer_encoded())), promisedTo);
+            createTimeout(instanceID);
+        } else if (preparingSeq < 0 || instanceID < preparingFrom) {
+            startPrepare(instanceID, request.getHandicap());
+        }
+        //otherwise the value is sent as soon as the ongoing prepare gathers a quorum
+    }
+
+    private boolean leaderAlive() {
+        return promisedTo != null && !promisedTo.equals(myself) && membership.contains(promisedTo)
+                && System.currentTimeMillis() - leaderHeardAt < agreementTime;
+    }
+
+    private void heardFrom(Host host) {
+        if (host.equals(promisedTo))
+            leaderHeardAt = System.currentTimeMillis();
+    }
+
+    //Proposed like our own value, unless the instance already carries one of ours; the follower then
+    //learns another decision there and its state machine proposes the value again elsewhere
+    private void uponForwardMessage(MPForwardMessage msg, Host host, short sourceProto, int channelId) {
+        if (!stableLeader || leaderSeq < 0 || msg.getInstance() < leaderFrom || !isActive(msg.getInstance())
+                || !membership.contains(host))
+            return;
+        EncodedOperation value = received(msg.getValue());
+        if (value != null)
+            proposeAsLeader(new ProposeRequest(msg.getInstance(), null, value.getOperation(), 0));
+    }
+
+    //A one entry log per message, around the value in the form the instance already keeps it
+    private OperationLog logOf(EncodedOperation value) {
+        return OperationLog.of(value, clock.now());
+    }
+
+    //The value of a received log, whose timestamp anything we append afterwards orders after
+    private EncodedOperation received(OperationLog log) {
+        if (log == null || log.isEmpty())
+            return null;
+        clock.update(log.getLastStamp());
+        return log.getLastEncoded();
+    }
+
+    private void startPrepare(int fromInstance, int handicap) {
+        int n = membership.size();
+        int seq = membership.indexOf(myself) + n * handicap;
+        while (seq <= promisedSeq || seq <= preparingSeq)
+            seq += n;
+        leaderSeq = -1;
+        preparingSeq = seq;
+        preparingFrom = fromInstance;
+        prepareOks.reset(seq);
+
+        //a single prepare for every instance from fromInstance onwards
+        MPPrepareMessage prepareMessage = new MPPrepareMessage(fromInstance, seq);
+        for (Host host : membership) {
+            sendMessage(prepareMessage, host);
+        }
+        createTimeout(fromInstance);
+    }
+
+    private void sendAccept(int instanceID, PaxosInstance instance) {
+        instance.getAccept_oks().reset(instance.getProposer_seq());
+        MPAcceptMessage acceptMessage = new MPAcceptMessage(instanceID,
+                instance.getProposer_seq(),
+                logOf(instance.getProposer_encoded()));
+        Iterable<Host> targets = instance.getAll_processes();
+        if (thrifty)
+            targets = responders.fastest(targets, quorums.phase2(instance.getAll_processes().size()), myself);
+        for (Host h : targets) {
+            sendMessage(acceptMessage, h);
+        }
+        instance.setThrifty(thrifty);
+        instance.setAccept_sent_at(System.currentTimeMillis());
+        if (leaderSeq >= 0 && instance.getProposer_seq() == leaderSeq)
+            leaderEnd = Math.max(leaderEnd, instanceID);
+        createTimeout(instanceID, thrifty ? thriftyTimeout : agreementTime);
+    }
+
+    //The fastest quorum did not answer in time, ask everyone that has not
+    private void widenAccept(int instanceID, PaxosInstance instance) {
+        MPAcceptMessage acceptMessage = new MPAcceptMessage(instanceID,
+                instance.getProposer_seq(),
+                logOf(instance.getProposer_encoded()));
+        int index = 0;
+        for (Host h : instance.getAll_processes()) {
+            if (!instance.getAccept_oks().hasVoted(index))
+                sendMessage(acceptMessage, h);
+            index++;
+        }
+        instance.setThrifty(false);
+        createTimeout(instanceID);
+    }
+
+    private void uponLeaderPrepare(MPPrepareMessage msg, Host host) {
+        if (!membership.contains(host) || msg.getProposer_seq() < promisedSeq)
+            return;
+        //The lease holder keeps leading until the lease we granted runs out
+        if (leaseGrantedTo != null && !leaseGrantedTo.equals(host) && System.currentTimeMillis() < leaseGrantedUntil)
+            return;
+        //Someone with a higher ballot is taking over
+        if (msg.getProposer_seq() > preparingSeq)
+            preparingSeq = -1;
+        if (msg.getProposer_seq() > leaderSeq)
+            leaderSeq = -1;
+        promisedSeq = msg.getProposer_seq();
+        //A prepare from further ahead still leaves the earlier instances covered by the promise
+        int from = msg.getInstance();
+        promisedFrom = promisedFrom < 0 ? from : Math.min(promisedFrom, from);
+        promisedTo = host;
+        leaderHeardAt = System.currentTimeMillis();
+        acceptorLog.promiseFrom(promisedFrom, promisedSeq);
+
+        //Values accepted after the prepared instance go first, so the new leader knows them
+        //by the time the reply that counts for its quorum arrives
+        List<MPPrepareOkMessage> replies = new ArrayList<>();
+        paxosInstancesMap.forEach((key, paxos) -> {
+            if (key < promisedFrom)
+                return;
+            paxos.setHighest_prepare(promisedSeq);
+            if (key > from && paxos.getHighest_value() != null) {
+                replies.add(new MPPrepareOkMessage(key, promisedSeq,
+                        paxos.getHighest_accepted(), logOf(paxos.getHighest_encoded())));
+            }
+        });
+        PaxosInstance instance = getOrCreateInstance(from, null);
+        instance.setHighest_prepare(promisedSeq);
+        OperationLog accepted = instance.getHighest_encoded() == null ? null : logOf(instance.getHighest_encoded());
+        replies.add(new MPPrepareOkMessage(from, promisedSeq, instance.getHighest_accepted(), accepted));
+        afterLogged(() -> {
+            for (MPPrepareOkMessage reply : replies)
+                sendMessage(reply, host);
+        });
+    }
+
+    private void uponLeaderPrepareOk(MPPrepareOkMessage msg, Host host) {
+        int index = membership.indexOf(host);
+        if (msg.getProposer_seq() != preparingSeq || index < 0)
+            return;
+        EncodedOperation accepted = received(msg.getHighest_val());
+        if (accepted != null)
+            getOrCreateInstance(msg.getInstance(), null).getPrepare_oks().report(msg.getHighest_seq(), accepted.getOperation());
+        if (msg.getInstance() == preparingFrom && prepareOks.vote(index, preparingSeq)
+                && prepareOks.getCount() == quorums.phase1(membership.size()))
+            becomeLeader();
+    }
+
+    private void becomeLeader() {
+        leaderSeq = preparingSeq;
+        leaderFrom = preparingFrom;
+        leaderEnd = leaderFrom - 1;
+        preparingSeq = -1;
+        prepareOks.reset(-1);
+        logger.info("Leading with ballot {} from instance {}", leaderSeq, leaderFrom);
+        if (leaseDuration > 0)
+            requestLease();
+
+        //Re-propose whatever was accepted before, and our own values where nothing was
+        paxosInstancesMap.forEach((key, instance) -> {
+            if (key < leaderFrom || instance.getDecided() != null)
+                return;
+            QuorumTracker promises = instance.getPrepare_oks();
+            if (promises.getHighestValue() != null)
+                instance.setProposer_value(promises.getHighestValue());
+            promises.reset(-1);
+            if (instance.getProposer_value() != null) {
+                instance.setProposer_seq(leaderSeq);
+                sendAccept(key, instance);
+            }
+        });
+    }
+
+    /*--------------------------------- Leader Lease ---------------------------------------- */
+    private void uponLeaseTimer(LeaseTimer timer, long timerId) {
+        if (leaderSeq >= 0)
+            requestLease();
+    }
+
+    private void requestLease() {
+        leaseRound++;
+        leaseRoundSentAt = System.currentTimeMillis();
+        leaseOks.reset(leaseRound);
+        MPLeaseMessage message = new MPLeaseMessage(leaderSeq, leaseRound);
+        for (Host host : membership) {
+            sendMessage(message, host);
+        }
+    }
+
+    //Only the leader we promised to can hold the lease
+    private void uponLeaseMessage(MPLeaseMessage msg, Host host, short sourceProto, int channelId) {
+        if (joinedInstance < 0 || msg.getProposer_seq() != promisedSeq || !membership.contains(host))
+            return;
+        heardFrom(host);
+        leaseGrantedTo = host;
+        leaseGrantedUntil = System.currentTimeMillis() + leaseDuration;
+        //The state machine forwards its operations to the holder meanwhile
+        if (!host.equals(myself))
+            triggerNotification(new LeaseNotification(host, leaseGrantedUntil, promisedFrom));
+        sendMessage(new MPLeaseOkMessage(msg.getProposer_seq(), msg.getRound()), host);
+    }
+
+    private void uponLeaseOkMessage(MPLeaseOkMessage msg, Host host, short sourceProto, int channelId) {
+        if (msg.getProposer_seq() != leaderSeq || msg.getRound() != leaseRound)
+            return;
+        //Any phase 1 quorum a rival needs includes one of our grantors
+        if (leaseOks.vote(membership.indexOf(host), leaseRound)
+                && leaseOks.getCount() == quorums.phase2(membership.size())) {
+            //Counted from when we asked, grantors count from when they answered
+            long expiresAt = leaseRoundSentAt + leaseDuration - leaseDrift;
+            //Local reads need every decision of our ballot to reach us first, so only in proposer mode
+            if (collectAcceptOk)
+                triggerNotification(new LeaseNotification(myself, expiresAt, leaderFrom));
+            logger.debug("Lease round {} granted until {}", leaseRound, expiresAt);
+        }
+    }
+
     private void uponPrepareMessage(MPPrepareMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("Prepare from {} " + msg.toString(), host.toString());
+        logger.debug("Prepare from {} {}", host, msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
+            if (stableLeader) {
+                uponLeaderPrepare(msg, host);
+                return;
+            }
             if (instance == null) {
                 if (membership.contains(host)) {
-                    int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
+                    int selfID = membership.indexOf(myself);
 
                     instance = new PaxosInstance(null, selfID, membership);
                     instance.setHighest_prepare(msg.getProposer_seq());
                     paxosInstancesMap.put(msg.getInstance(), instance);
+                    acceptorLog.promise(msg.getInstance(), msg.getProposer_seq());
                     MPPrepareOkMessage message = new MPPrepareOkMessage(
                             msg.getInstance(),
                             msg.getProposer_seq(),
                             -1,
                             null);
-                    sendMessage(message, host);
+                    afterLogged(() -> sendMessage(message, host));
                 }
             } else {
                 if (instance.getAll_processes().contains(host)) {
                     if (msg.getProposer_seq() > instance.getHighest_prepare()) {
                         instance.setHighest_prepare(msg.getProposer_seq());
+                        //Someone outbid our ongoing ballot, no point in waiting for the full timeout
+                        if (instance.getDecided() == null && instance.getTimerId() != -1 && !instance.isBacking_off()
+                                && msg.getProposer_seq() > instance.getProposer_seq())
+                            backOff(msg.getInstance(), instance);
+                        acceptorLog.promise(msg.getInstance(), msg.getProposer_seq());
                         MPPrepareOkMessage message = new MPPrepareOkMessage(
                                 msg.getInstance(),
                                 msg.getProposer_seq(),
                                 instance.getHighest_accepted(),
-                                new OperationLog(instance.getHighest_value()));
-                        sendMessage(message, host);
+                                logOf(instance.getHighest_encoded()));
+                        afterLogged(() -> sendMessage(message, host));
                     }
                 }
             }
         }
     }
 
-    //searches for the highest seq_number and returns the corresponding tuple
-    private Tuple highest(List<Tuple> set) {
-        Tuple res = null;
-        for (Tuple pair : set) {
-            if (res == null) {
-                res = pair;
-            } else {
-                if (pair.getSeq() > res.getSeq())
-                    res = pair;
-            }
+    /*--------------------------------- Acceptor Log ---------------------------------------- */
+    private void openAcceptorLog() {
+        if (!acceptorLog.isEnabled())
+            return;
+        try {
+            acceptorLog.open(Paths.get(dataDir), "acceptor-" + getProtoId() + "-" + myself.getPort(),
+                    new AcceptorLog.Replayer() {
+                        @Override
+                        public void promise(int instanceID, int ballot) {
+                            if (!isActive(instanceID))
+                                return;
+                            PaxosInstance instance = getOrCreateInstance(instanceID, null);
+                            instance.setHighest_prepare(Math.max(ballot, instance.getHighest_prepare()));
+                        }
+
+                        @Override
+                        public void promiseFrom(int fromInstance, int ballot) {
+                            if (ballot < promisedSeq)
+                                return;
+                            promisedSeq = ballot;
+                            promisedFrom = promisedFrom < 0 ? fromInstance : Math.min(promisedFrom, fromInstance);
+                        }
+
+                        @Override
+                        public void accept(int instanceID, int ballot, Operation value) {
+                            if (!isActive(instanceID))
+                                return;
+                            PaxosInstance instance = getOrCreateInstance(instanceID, null);
+                            if (ballot < instance.getHighest_accepted())
+                                return;
+                            instance.setHighest_prepare(Math.max(ballot, instance.getHighest_prepare()));
+                            instance.setHighest_accepted(ballot);
+                            instance.setHighest_value(value);
+                            highestAccepted = Math.max(highestAccepted, instanceID);
+                        }
+                    });
+        } catch (IOException e) {
+            throw new AssertionError("Could not open the acceptor log", e);
         }
-        return res;
+    }
+
+    private void afterLogged(Runnable reply) {
+        if (acceptorLog.afterSync(reply))
+            setupTimer(new LogSyncTimer(), acceptorLog.getGroupWindow());
+    }
+
+    private void uponLogSyncTimer(LogSyncTimer timer, long timerId) {
+        acceptorLog.sync();
     }
 
     //Nao deverá ser nula a instacia pois ja fez prepare
     private void uponPrepareOkMessage(MPPrepareOkMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("PrepareOk {} " + msg.toString());
+        logger.debug("PrepareOk {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
-            if (instance.getAll_processes().contains(host)) {
-                if (msg.getProposer_seq() == instance.getProposer_seq()) {
-                    instance.add_prepare_ok(msg.getHighest_seq(), msg.getHighest_val().getLastOperation());
-                    if (instance.getPrepare_ok_set().size() >= (instance.getAll_processes().size() / 2) + 1) {
-                        Tuple highest = highest(instance.getPrepare_ok_set());
-                        if (highest.getVal() != null) {
-                            instance.setProposer_value(highest.getVal());
-                        }
-                        MPAcceptMessage acceptMessage = new MPAcceptMessage(msg.getInstance(),
-                                instance.getProposer_seq(),
-                                new OperationLog(instance.getProposer_value()));
-                        for (Host h : instance.getAll_processes()) {
-                            sendMessage(acceptMessage, h);
+        if (isActive(msg.getInstance())) {
+            if (stableLeader) {
+                uponLeaderPrepareOk(msg, host);
+                return;
+            }
+            //a late reply for an instance already collected, or one we never proposed in
+            if (instance == null)
+                return;
+            int index = instance.indexOf(host);
+            if (index >= 0) {
+                QuorumTracker promises = instance.getPrepare_oks();
+                if (msg.getProposer_seq() == instance.getProposer_seq() && promises.vote(index, msg.getProposer_seq())) {
+                    EncodedOperation accepted = received(msg.getHighest_val());
+                    if (accepted != null)
+                        promises.report(msg.getHighest_seq(), accepted.getOperation());
+                    //only the vote completing the quorum moves on to phase 2
+                    if (promises.getCount() == quorums.phase1(instance.getAll_processes().size())) {
+                        if (promises.getHighestValue() != null) {
+                            instance.setProposer_value(promises.getHighestValue());
                         }
-                        instance.setPrepare_ok_set(new LinkedList<Tuple>());
-                        createTimeout(msg.getInstance());
+                        sendAccept(msg.getInstance(), instance);
                     }
                 }
             }
@@ -225,88 +679,117 @@ public class MultiPaxosAgreement extends GenericProtocol {
     }
 
     private void createTimeout(int instance) {
-        //setupPeriodicTimer(timeOut, this.fixTime, this.fixTime);
-        cancelTimeout(instance);
-        long timerId = setupTimer(new Timeout(), this.agreementTime);
+        createTimeout(instance, this.agreementTime);
+    }
+
+    private void createTimeout(int instance, long delay) {
         PaxosInstance paxos = paxosInstancesMap.get(instance);
-        paxos.setTimerId(timerId);
-        timeoutInstancesMap.put(timerId, instance);
+        paxos.setBacking_off(false);
+        paxos.setTimerId(timeoutWheel.schedule(instance, delay));
+    }
+
+    private void recordResponse(PaxosInstance instance, Host host) {
+        if (thrifty && instance.getAccept_sent_at() > 0 && !host.equals(myself))
+            responders.record(host, System.currentTimeMillis() - instance.getAccept_sent_at());
     }
 
+    //The wheel entry stays behind and is ignored when it expires
     private void cancelTimeout(int instance) {
         PaxosInstance paxos = paxosInstancesMap.get(instance);
-        cancelTimer(paxos.getTimerId());
-        timeoutInstancesMap.remove(paxos.getTimerId());
+        paxos.setTimerId(-1);
+        paxos.setBacking_off(false);
+    }
+
+    //Waits a randomized, growing delay before retrying with a higher ballot
+    private void backOff(int instanceID, PaxosInstance instance) {
+        preemptions++;
+        instance.setBacking_off(true);
+        instance.setTimerId(timeoutWheel.schedule(instanceID, backoff.nextDelay()));
+    }
+
+    //Ballots are selfID + n*k, so a decided ballot equal to our proposer_seq is ours
+    private void countDecision(boolean ownBallot) {
+        decider++;
+        if (ownBallot)
+            backoff.reset();
+        if (decider % METRICS_INTERVAL == 0)
+            logger.info("Decided {} instances, {} preemptions ({} per instance), backoff level {}",
+                    decider, preemptions, String.format("%.3f", (double) preemptions / decider), backoff.getAttempts());
     }
 
     private void uponAcceptMessage(MPAcceptMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("Accept {} " + msg.toString());
+        logger.debug("Accept {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
+            EncodedOperation value = received(msg.getValue());
             if (instance == null) {
-                int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
-                instance = new PaxosInstance(msg.getValue().getLastOperation(), selfID, membership);
+                instance = getOrCreateInstance(msg.getInstance(), null);
+                instance.setProposer_encoded(value);
             }
             if (instance.getAll_processes().contains(host)) {
+                heardFrom(host);
+                //An accept with a higher ballot means our leadership was preempted
+                if (msg.getProposer_seq() > leaderSeq && leaderSeq >= 0 && !host.equals(myself))
+                    leaderSeq = -1;
+                //Another proposer got a higher ballot accepted, ours was preempted
+                if (instance.getDecided() == null && instance.getTimerId() != -1 && !instance.isBacking_off()
+                        && !host.equals(myself) && msg.getProposer_seq() > instance.getProposer_seq())
+                    backOff(msg.getInstance(), instance);
                 if (msg.getProposer_seq() >= instance.getHighest_prepare()) {
                     instance.setHighest_prepare(msg.getProposer_seq());
                     instance.setHighest_accepted(msg.getProposer_seq());
-                    instance.setHighest_value(msg.getValue().getLastOperation());
+                    highestAccepted = Math.max(highestAccepted, msg.getInstance());
+                    acceptedSeq = Math.max(acceptedSeq, msg.getProposer_seq());
+                    instance.setHighest_value(value);
+                    acceptorLog.accept(msg.getInstance(), msg.getProposer_seq(), value);
+                    if (collectAcceptOk) {
+                        //the proposer already knows the value
+                        MPAcceptOkMessage message = new MPAcceptOkMessage(msg.getInstance(), msg.getProposer_seq(), null);
+                        afterLogged(() -> sendMessage(message, host));
+                        return;
+                    }
                     MPAcceptOkMessage message = new MPAcceptOkMessage(
                             msg.getInstance(),
                             msg.getProposer_seq(),
                             msg.getValue());
-                    for (Host h : instance.getAll_processes()) {
-                        sendMessage(message, h);
-                    }
+                    MembershipView processes = instance.getAll_processes();
+                    afterLogged(() -> {
+                        for (Host h : processes) {
+                            sendMessage(message, h);
+                        }
+                    });
                 }
             }
         }
     }
 
-    private boolean verifyIfAllEq(List<Tuple> accept_set, Tuple pair) {
-        for (Tuple tup : accept_set) {
-            if (!pair.getVal().equals(tup.getVal()))
-                return false;
-            if (pair.getSeq() != tup.getSeq())
-                return false;
-        }
-        return true;
-    }
-
-    private boolean verifyIfBigger(List<Tuple> accept_set, Tuple pair) {
-        for (Tuple tup : accept_set) {
-            if (tup.getSeq() < pair.getSeq())
-                return true;
-        }
-        return false;
-    }
-
     private void uponAcceptOkMessage(MPAcceptOkMessage msg, Host host, short sourceProto, int channelId) {
-        logger.debug("AcceptOk " + msg.toString());
+        logger.debug("AcceptOk {}", msg);
         PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
-        if (joinedInstance <= msg.getInstance() && joinedInstance >= 0) {
+        if (isActive(msg.getInstance())) {
+            if (collectAcceptOk) {
+                uponCollectedAcceptOk(msg, host, instance);
+                return;
+            }
+            EncodedOperation encoded = received(msg.getValue());
             if (instance == null) {
-                int selfID = buildSeqNum(membership.toArray(new Host[membership.size()]));
-                instance = new PaxosInstance(msg.getValue().getLastOperation(), selfID, membership);
+                instance = getOrCreateInstance(msg.getInstance(), null);
+                instance.setProposer_encoded(encoded);
             }
 
-            if (instance.getAll_processes().contains(host)) {
-                Tuple pair = new Tuple(msg.getProposer_seq(), msg.getValue().getLastOperation());
-
-                if (verifyIfAllEq(instance.getAccept_ok_set(), pair)) {
-                    instance.add_accept_ok(pair);
-                } else if (verifyIfBigger(instance.getAccept_ok_set(), pair)) {
-                    List<Tuple> list = new LinkedList<Tuple>();
-                    list.add(pair);
-                    instance.setAccept_ok_set(list);
-                }
-                if (instance.getDecided() == null && instance.getAccept_ok_set().size() >= (instance.getAll_processes().size() / 2) + 1) {
-                    instance.setDecided(pair.getVal());
-                    logger.debug("Decide at {} " + pair.getVal(),msg.getInstance());
-                    triggerNotification(new DecidedNotification(msg.getInstance(), pair.getVal()));
-                    decider++;
-                    if (instance.getProposer_seq() == pair.getSeq())
+            //Only the highest ballot seen counts, all its votes carry the same value
+            int index = instance.indexOf(host);
+            if (index >= 0 && instance.getAccept_oks().vote(index, msg.getProposer_seq())) {
+                if (instance.getProposer_seq() == msg.getProposer_seq())
+                    recordResponse(instance, host);
+                if (instance.getDecided() == null && instance.getAccept_oks().hasQuorum(quorums.phase2(instance.getAll_processes().size()))) {
+                    //Decoded once here, for the state machine
+                    Operation value = encoded == null ? null : encoded.getOperation();
+                    instance.setDecided(value);
+                    logger.debug("Decide at {} {}", msg.getInstance(), value);
+                    triggerNotification(new DecidedNotification(msg.getInstance(), value));
+                    countDecision(instance.getProposer_seq() == msg.getProposer_seq());
+                    if (instance.getProposer_seq() == msg.getProposer_seq())
                         cancelTimeout(msg.getInstance());
 
                 }
@@ -314,24 +797,71 @@ public class MultiPaxosAgreement extends GenericProtocol {
         }
     }
 
+    //Only the proposer receives AcceptOks in this mode, they carry no value
+    private void uponCollectedAcceptOk(MPAcceptOkMessage msg, Host host, PaxosInstance instance) {
+        if (instance == null || instance.getDecided() != null || msg.getProposer_seq() != instance.getProposer_seq())
+            return;
+        QuorumTracker accepts = instance.getAccept_oks();
+        if (!accepts.vote(instance.indexOf(host), msg.getProposer_seq()))
+            return;
+        recordResponse(instance, host);
+        if (accepts.hasQuorum(quorums.phase2(instance.getAll_processes().size()))) {
+            instance.setDecided(instance.getProposer_value());
+            logger.debug("Decide at {} {}", msg.getInstance(), instance.getDecided());
+            triggerNotification(new DecidedNotification(msg.getInstance(), instance.getDecided()));
+            countDecision(true);
+            cancelTimeout(msg.getInstance());
+
+            MPDecideMessage compact = new MPDecideMessage(msg.getInstance(), instance.getProposer_seq(), null);
+            MPDecideMessage full = new MPDecideMessage(msg.getInstance(), instance.getProposer_seq(), logOf(instance.getProposer_encoded()));
+            int index = 0;
+            for (Host h : instance.getAll_processes()) {
+                if (!h.equals(myself))
+                    sendMessage(accepts.hasVoted(index) ? compact : full, h);
+                index++;
+            }
+        }
+    }
+
+    private void uponDecideMessage(MPDecideMessage msg, Host host, short sourceProto, int channelId) {
+        logger.debug("Decide {}", msg);
+        heardFrom(host);
+        if (isActive(msg.getInstance())) {
+            PaxosInstance instance = paxosInstancesMap.get(msg.getInstance());
+            if (instance != null && instance.getDecided() != null)
+                return;
+            EncodedOperation encoded = received(msg.getValue());
+            Operation value = encoded == null ? null : encoded.getOperation();
+            //Any value accepted with this ballot or a higher one is the decided value
+            if (value == null && instance != null && instance.getHighest_value() != null
+                    && instance.getHighest_accepted() >= msg.getProposer_seq())
+                value = instance.getHighest_value();
+            if (value == null) {
+                logger.debug("Decide for instance {} without a known value", msg.getInstance());
+                return;
+            }
+            if (instance == null) {
+                int selfID = membership.indexOf(myself);
+                instance = new PaxosInstance(value, selfID, membership);
+                paxosInstancesMap.put(msg.getInstance(), instance);
+            }
+            instance.setDecided(value);
+            triggerNotification(new DecidedNotification(msg.getInstance(), value));
+            countDecision(instance.getProposer_seq() == msg.getProposer_seq());
+            cancelTimeout(msg.getInstance());
+        }
+    }
+
     private void uponAddReplica(AddReplicaRequest request, short sourceProto) {
         logger.debug("Received " + request);
         //The AddReplicaRequest contains an "instance" field, which we ignore in this incorrect protocol.
         //You should probably take it into account while doing whatever you do here.
         if(!membership.contains(request.getReplica())) {
-            membership.add(request.getReplica());
-            Set<Integer> keys = paxosInstancesMap.keySet();
-            for (Integer key : keys) {
-                if (key > request.getInstance()) {
-                    PaxosInstance paxos = paxosInstancesMap.get(key);
-                    if (paxos != null) {
-                        List<Host> processes = paxos.getAll_processes();
-                        processes.add(request.getReplica());
-                        paxos.setAll_processes(processes);
-                        paxosInstancesMap.put(key, paxos);
-                    }
-                }
-            }
+            membership = request.getMembership();
+            paxosInstancesMap.forEach((key, paxos) -> {
+                if (key > request.getInstance())
+                    paxos.setAll_processes(membership);
+            });
         }
 
 
@@ -356,21 +886,86 @@ public class MultiPaxosAgreement extends GenericProtocol {
         logger.debug("Received " + request);
         //The RemoveReplicaRequest contains an "instance" field, which we ignore in this incorrect protocol.
         //You should probably take it into account while doing whatever you do here.
-        membership.remove(request.getReplica());
-        Set<Integer> keys = paxosInstancesMap.keySet();
-        for (Integer key : keys) {
-            if (key > request.getInstance()) {
-                PaxosInstance paxos = paxosInstancesMap.get(key);
-                if (paxos != null) {
-                    List<Host> processes = paxos.getAll_processes();
-                    processes.remove(request.getReplica());
-                    paxos.setAll_processes(processes);
-                    paxosInstancesMap.put(key, paxos);
-                }
-            }
+        membership = request.getMembership();
+        responders.remove(request.getReplica());
+        paxosInstancesMap.forEach((key, paxos) -> {
+            if (key > request.getInstance())
+                paxos.setAll_processes(membership);
+        });
+    }
+
+
+    /*--------------------------------- Read Index ---------------------------------------- */
+    //A new round supersedes the previous one, the state machine only keeps one in flight
+    private void uponReadIndexRequest(ReadIndexRequest request, short sourceProto) {
+        if (joinedInstance < 0)
+            return;
+        readRound = request.getRound();
+        readIndex = -1;
+        readIndexSeq = -1;
+        readRequester = sourceProto;
+        readOks.reset(stableLeader ? -1 : readRound);
+        MPReadIndexMessage message = new MPReadIndexMessage(readRound);
+        for (Host host : membership) {
+            sendMessage(message, host);
+        }
+    }
+
+    private void uponReadIndexMessage(MPReadIndexMessage msg, Host host, short sourceProto, int channelId) {
+        if (joinedInstance < 0 || !membership.contains(host))
+            return;
+        if (!stableLeader) {
+            sendMessage(new MPReadIndexOkMessage(msg.getRound(), highestAccepted, -1), host);
+            return;
+        }
+        int ballot = Math.max(leaderSeq, Math.max(promisedSeq, acceptedSeq));
+        int logEnd = leaderSeq >= 0 && leaderSeq == ballot ? leaderEnd : -1;
+        sendMessage(new MPReadIndexOkMessage(msg.getRound(), logEnd, ballot), host);
+    }
+
+    //The leader's log end holds every chosen instance, and a phase 1 quorum still at its ballot means no newer
+    //leader got anything chosen: one would have needed a phase 2 quorum, which intersects ours.
+    //An accepted value the leader never saw (left by an older one) is not waited for
+    private void uponLeaderReadIndexOk(MPReadIndexOkMessage msg, Host host) {
+        //a higher ballot discards the confirmations gathered for a lower one
+        if (!readOks.vote(membership.indexOf(host), msg.getBallot()))
+            return;
+        if (msg.getHighest_accepted() >= 0 && msg.getBallot() == readOks.getBallot()) {
+            readIndex = msg.getHighest_accepted();
+            readIndexSeq = msg.getBallot();
+        }
+        if (readIndexSeq == readOks.getBallot() && readOks.hasQuorum(quorums.phase1(membership.size()))) {
+            logger.debug("Read index round {} at instance {}, leader ballot {}", readRound, readIndex, readIndexSeq);
+            sendReply(new ReadIndexReply(readRound, readIndex), readRequester);
+            readRound = -1;
+        }
+    }
+
+    //Anything decided before the round started was accepted by a phase 2 quorum, which intersects any phase 1 one
+    private void uponReadIndexOkMessage(MPReadIndexOkMessage msg, Host host, short sourceProto, int channelId) {
+        if (msg.getRound() != readRound)
+            return;
+        if (stableLeader) {
+            uponLeaderReadIndexOk(msg, host);
+            return;
+        }
+        if (!readOks.vote(membership.indexOf(host), readRound))
+            return;
+        readIndex = Math.max(readIndex, msg.getHighest_accepted());
+        if (readOks.getCount() == quorums.phase1(membership.size())) {
+            logger.debug("Read index round {} at instance {}", readRound, readIndex);
+            sendReply(new ReadIndexReply(readRound, readIndex), readRequester);
         }
     }
 
+    private void uponGarbageCollect(GarbageCollectRequest request, short sourceProto) {
+        if (request.getWatermark() <= gcWatermark)
+            return;
+        gcWatermark = request.getWatermark();
+        paxosInstancesMap.advanceTo(gcWatermark + 1);
+        acceptorLog.truncateBefore(gcWatermark + 1);
+        logger.debug("Discarded instances up to {}, {} left", gcWatermark, paxosInstancesMap.size());
+    }
 
     private void uponMsgFail(ProtoMessage msg, Host host, short destProto, Throwable throwable, int channelId) {
         //If a message fails to be sent, for whatever reason, log the message and the reason
@@ -378,22 +973,46 @@ public class MultiPaxosAgreement extends GenericProtocol {
     }
 
     private void uponTimeout(Timeout timer, long timerID) {
-        try{
-            int InstanceId = timeoutInstancesMap.get(timerID);
-            PaxosInstance instance = paxosInstancesMap.get(InstanceId);
-            if (instance.getDecided() == null) {
-                int nSeq = instance.getProposer_seq() + instance.getAll_processes().size();
-                instance.setProposer_seq(nSeq);
-                MPPrepareMessage MPPrepareMessage = new MPPrepareMessage(InstanceId, nSeq);
-                for (Host h : instance.getAll_processes()) {
-                    sendMessage(MPPrepareMessage, h);
-                }
-                instance.setPrepare_ok_set(new LinkedList<Tuple>());
+        timeoutWheel.tick();
+        acceptorLog.tick();
+    }
+
+    private void uponInstanceTimeout(int InstanceId, long deadline) {
+        PaxosInstance instance = paxosInstancesMap.get(InstanceId);
+        //cancelled, rescheduled or discarded meanwhile
+        if (instance == null || instance.getTimerId() != deadline)
+            return;
+        instance.setTimerId(-1);
+        if (instance.getDecided() == null && instance.isThrifty() && !instance.isBacking_off()) {
+            widenAccept(InstanceId, instance);
+            return;
+        }
+        if (instance.getDecided() == null && stableLeader) {
+            if (leaderSeq < 0 && leaderAlive()) {
+                //the leader is still around, it may just have missed our value
+                sendMessage(new MPForwardMessage(InstanceId, logOf(instance.getProposer_encoded())), promisedTo);
                 createTimeout(InstanceId);
-                paxosInstancesMap.put(InstanceId, instance);
+            } else if (preparingSeq >= 0 && InstanceId >= preparingFrom) {
+                //the ongoing prepare already covers this instance
+                createTimeout(InstanceId);
+            } else {
+                //Our ballot was preempted (or replies were lost), run phase 1 again from here
+                startPrepare(InstanceId, 0);
+            }
+        } else if (instance.getDecided() == null) {
+            //a plain timeout (lost message, slow replica) retries right away, only preemptions back off
+            int nSeq = instance.getProposer_seq() + instance.getAll_processes().size();
+            //skip ballots that already lost to the highest prepare we have seen
+            while (nSeq <= instance.getHighest_prepare())
+                nSeq += instance.getAll_processes().size();
+            instance.setProposer_seq(nSeq);
+            MPPrepareMessage MPPrepareMessage = new MPPrepareMessage(InstanceId, nSeq);
+            for (Host h : instance.getAll_processes()) {
+                sendMessage(MPPrepareMessage, h);
             }
-        }catch (NullPointerException e ){
-            logger.info("Timeout == null , instancia {}");
+            instance.getPrepare_oks().reset(nSeq);
+            createTimeout(InstanceId);
+            paxosInstancesMap.put(InstanceId, instance);
         }
     }
 
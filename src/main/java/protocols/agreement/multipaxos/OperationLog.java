@@ -1,91 +1,139 @@
 package protocols.agreement.multipaxos;
 
 import io.netty.buffer.ByteBuf;
-import org.apache.logging.log4j.LogManager;
-import org.apache.logging.log4j.Logger;
+import protocols.agreement.utils.EncodedOperation;
 import protocols.app.utils.Operation;
-import protocols.statemachine.messages.RPCMessage;
 import pt.unl.fct.di.novasys.network.ISerializer;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.SortedMap;
-import java.util.TreeMap;
-
+import java.util.Arrays;
+
+/**
+ * Append-only log of operations, kept as parallel arrays of operations and their hybrid logical
+ * clock timestamps, taken from the clock of the protocol that appends them. Operations stay in
+ * their wire form, so a log is sent as one block and nothing in it is decoded until asked for.
+ * Timestamps increase along the log, so merging another log only appends its suffix newer than
+ * our last entry.
+ */
 public class OperationLog {
 
-    // We use a sorted map so the key, a timestamp, are ordered among themselves
-    private SortedMap<Long, Operation> log;
+    private static final EncodedOperation[] NO_OPS = new EncodedOperation[0];
+    private static final long[] NO_STAMPS = new long[0];
+
+    private EncodedOperation[] ops;
+    private long[] stamps;
+    private int size;
+    //The arrays are borrowed from another log and copied before we append to them
+    private boolean shared;
 
     public OperationLog() {
-        log = new TreeMap<>();
+        this(NO_OPS, NO_STAMPS);
+    }
+
+    private OperationLog(EncodedOperation[] ops, long[] stamps) {
+        this.ops = ops;
+        this.stamps = stamps;
+        this.size = ops.length;
+        this.shared = false;
+    }
+
+    //A single operation, what every MP message carries, in arrays of exactly one entry
+    public static OperationLog of(EncodedOperation op, long stamp) {
+        if (op == null)
+            return new OperationLog();
+        return new OperationLog(new EncodedOperation[]{op}, new long[]{stamp});
+    }
+
+    public int size() {
+        return size;
     }
 
-    public OperationLog(Map<Long, Operation> previous) {
-        log = new TreeMap<>();
-        log.putAll(previous);
+    public boolean isEmpty() {
+        return size == 0;
     }
 
-    public OperationLog(Operation op){
-        log = new TreeMap<>();
-        log.put(System.currentTimeMillis(), op);
+    public Operation get(int position) {
+        return ops[position].getOperation();
     }
 
-    public SortedMap<Long, Operation> getLog() {
-        return log;
+    public void append(EncodedOperation op, long stamp) {
+        if (shared || size == ops.length) {
+            int capacity = Math.max(size * 2, 4);
+            ops = Arrays.copyOf(ops, capacity);
+            stamps = Arrays.copyOf(stamps, capacity);
+            shared = false;
+        }
+        ops[size] = op;
+        stamps[size] = stamp;
+        size++;
     }
 
-    // Merge logs by concatenating the entries that come after the las timestamp present
-    public void mergeLogs(SortedMap<Long, Operation> otherLog) {
-        if (log.isEmpty()) {
-            log.putAll(otherLog);
+    // Merge logs by concatenating the entries that come after our last timestamp
+    public void mergeLogs(OperationLog other) {
+        if (other.isEmpty())
+            return;
+        if (isEmpty()) {
+            ops = other.ops;
+            stamps = other.stamps;
+            size = other.size;
+            shared = true;
+            other.shared = true;
             return;
         }
-        // Adds all entries with a key (timestamp) larger than the largest currently on the log
-        log.putAll(otherLog.tailMap(log.lastKey()));
+        int from = Arrays.binarySearch(other.stamps, 0, other.size, getLastStamp());
+        from = from >= 0 ? from + 1 : -from - 1;
+        for (int i = from; i < other.size; i++)
+            append(other.ops[i], other.stamps[i]);
     }
 
     public Operation getLastOperation() {
-        return log.get(log.lastKey());
+        EncodedOperation last = getLastEncoded();
+        return last == null ? null : last.getOperation();
+    }
+
+    public EncodedOperation getLastEncoded() {
+        if (size == 0)
+            return null;
+        return ops[size - 1];
+    }
+
+    //-1 if empty
+    public long getLastStamp() {
+        return size == 0 ? -1 : stamps[size - 1];
     }
 
-    int compare(OperationLog other) {
-        if (this.log.isEmpty() && other.getLog().isEmpty())
-            return 0;
-        if (this.log.isEmpty())
-            return -1;
-        if (other.getLog().isEmpty())
-            return 1;
-        return this.log.lastKey().compareTo(other.getLog().lastKey());
+    @Override
+    public String toString() {
+        return "OperationLog{" +
+                "size=" + size +
+                ", last=" + getLastOperation() +
+                '}';
     }
 
+    //[size][timestamps][operations], the timestamps as one block ahead of the encoded operations
     public static ISerializer<OperationLog> serializer = new ISerializer<OperationLog>() {
 
         @Override
-        public void serialize(OperationLog log, ByteBuf out) {
-            out.writeInt(log.getLog().size());
-
-            log.getLog().forEach((k, v) -> {
-                out.writeLong(k);
-                try {
-                    Operation.serializer.serialize(v, out);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            });
+        public void serialize(OperationLog log, ByteBuf out) throws IOException {
+            out.writeInt(log.size);
+            for (int i = 0; i < log.size; i++)
+                out.writeLong(log.stamps[i]);
+            for (int i = 0; i < log.size; i++)
+                EncodedOperation.write(log.ops[i], out);
         }
 
         @Override
         public OperationLog deserialize(ByteBuf in) throws IOException {
             int n = in.readInt();
-            TreeMap<Long, Operation> t = new TreeMap<>();
-            for (int i = 0; i < n; i++) {
-                long key = in.readLong();
-                Operation op = Operation.serializer.deserialize(in);
-                t.put(key, op);
-            }
-            return new OperationLog(t);
+            if (n == 0)
+                return new OperationLog();
+            long[] stamps = new long[n];
+            for (int i = 0; i < n; i++)
+                stamps[i] = in.readLong();
+            EncodedOperation[] ops = new EncodedOperation[n];
+            for (int i = 0; i < n; i++)
+                ops[i] = EncodedOperation.read(in);
+            return new OperationLog(ops, stamps);
         }
     };
 
@@ -9,7 +9,7 @@ import java.io.IOException;
 
 public class MPAcceptMessage extends ProtoMessage {
 
-    public static final short MSG_ID = 201;
+    public static final short MSG_ID = 111;
 
     private int instance;
     private int proposer_seq;
@@ -11,7 +11,7 @@ import java.nio.charset.StandardCharsets;
 
 public class MPAcceptOkMessage extends ProtoMessage {
 
-    public static final short MSG_ID = 202;
+    public static final short MSG_ID = 112;
 
     private int instance;
     private int proposer_seq;
@@ -15,7 +15,7 @@ import java.nio.charset.StandardCharsets;
  *************************************************/
 public class MPBroadcastMessage extends ProtoMessage {
 
-    public final static short MSG_ID = 203;
+    public final static short MSG_ID = 113;
 
     private final int instance;
     private final OperationLog op;
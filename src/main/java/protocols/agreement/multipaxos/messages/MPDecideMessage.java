@@ -0,0 +1,79 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.agreement.multipaxos.OperationLog;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class MPDecideMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 117;
+
+    private final int instance;
+    private final int proposer_seq;
+    private final OperationLog value;
+
+    public MPDecideMessage(int instance, int proposer_seq, OperationLog value) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.proposer_seq = proposer_seq;
+        this.value = value;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "DecideMessage{" +
+                "instance=" + instance +
+                ", proposer_seq=" + proposer_seq +
+                ", value=" + value +
+                '}';
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public int getProposer_seq() {
+        return proposer_seq;
+    }
+
+    public OperationLog getValue() {
+        return value;
+    }
+
+    public static ISerializer<MPDecideMessage> serializer = new ISerializer<MPDecideMessage>() {
+        @Override
+        public void serialize(MPDecideMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.instance);
+            out.writeInt(msg.proposer_seq);
+
+            if (msg.value != null) {
+                out.writeByte(1);
+                OperationLog.serializer.serialize(msg.getValue(), out);
+            } else {
+                out.writeByte(0);
+            }
+        }
+
+        @Override
+        public MPDecideMessage deserialize(ByteBuf in) throws IOException {
+            int instance = in.readInt();
+            int proposer_seq = in.readInt();
+
+            OperationLog val = null;
+            if (in.readByte() == 1) {
+                val = OperationLog.serializer.deserialize(in);
+            }
+
+            return new MPDecideMessage(instance, proposer_seq, val);
+        }
+    };
+
+}
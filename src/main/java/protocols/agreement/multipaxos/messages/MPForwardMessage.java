@@ -0,0 +1,64 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.agreement.multipaxos.OperationLog;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+/*************************************************
+ * Sent by a replica that is not the leader to the
+ * leader it promised to, which proposes the value
+ * in the instance on its behalf.
+ *************************************************/
+public class MPForwardMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 122;
+
+    private final int instance;
+    private final OperationLog value;
+
+    public MPForwardMessage(int instance, OperationLog value) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.value = value;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardMessage{" +
+                "instance=" + instance +
+                ", value=" + value +
+                '}';
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public OperationLog getValue() {
+        return value;
+    }
+
+    public static ISerializer<MPForwardMessage> serializer = new ISerializer<MPForwardMessage>() {
+        @Override
+        public void serialize(MPForwardMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.instance);
+            OperationLog.serializer.serialize(msg.value, out);
+        }
+
+        @Override
+        public MPForwardMessage deserialize(ByteBuf in) throws IOException {
+            int instance = in.readInt();
+            OperationLog value = OperationLog.serializer.deserialize(in);
+            return new MPForwardMessage(instance, value);
+        }
+    };
+
+}
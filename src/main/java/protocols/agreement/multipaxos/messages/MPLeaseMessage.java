@@ -0,0 +1,59 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+//Sent by the leader to have its lease granted (or renewed) for another lease_duration
+public class MPLeaseMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 118;
+
+    private final int proposer_seq;
+    private final int round;
+
+    public MPLeaseMessage(int proposer_seq, int round) {
+        super(MSG_ID);
+        this.proposer_seq = proposer_seq;
+        this.round = round;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "LeaseMessage{" +
+                "proposer_seq=" + proposer_seq +
+                ", round=" + round +
+                '}';
+    }
+
+    public int getProposer_seq() {
+        return proposer_seq;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public static ISerializer<MPLeaseMessage> serializer = new ISerializer<MPLeaseMessage>() {
+        @Override
+        public void serialize(MPLeaseMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.proposer_seq);
+            out.writeInt(msg.round);
+        }
+
+        @Override
+        public MPLeaseMessage deserialize(ByteBuf in) throws IOException {
+            int proposer_seq = in.readInt();
+            int round = in.readInt();
+            return new MPLeaseMessage(proposer_seq, round);
+        }
+    };
+
+}
@@ -0,0 +1,58 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class MPLeaseOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 119;
+
+    private final int proposer_seq;
+    private final int round;
+
+    public MPLeaseOkMessage(int proposer_seq, int round) {
+        super(MSG_ID);
+        this.proposer_seq = proposer_seq;
+        this.round = round;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "LeaseOkMessage{" +
+                "proposer_seq=" + proposer_seq +
+                ", round=" + round +
+                '}';
+    }
+
+    public int getProposer_seq() {
+        return proposer_seq;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public static ISerializer<MPLeaseOkMessage> serializer = new ISerializer<MPLeaseOkMessage>() {
+        @Override
+        public void serialize(MPLeaseOkMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.proposer_seq);
+            out.writeInt(msg.round);
+        }
+
+        @Override
+        public MPLeaseOkMessage deserialize(ByteBuf in) throws IOException {
+            int proposer_seq = in.readInt();
+            int round = in.readInt();
+            return new MPLeaseOkMessage(proposer_seq, round);
+        }
+    };
+
+}
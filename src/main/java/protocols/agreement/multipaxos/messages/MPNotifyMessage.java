@@ -15,7 +15,7 @@ import java.util.Map;
 
 public class MPNotifyMessage extends ProtoMessage {
 
-    public static final short MSG_ID = 204;
+    public static final short MSG_ID = 114;
 
     private int instance;
     private List<Host> membership;
@@ -6,7 +6,7 @@ import pt.unl.fct.di.novasys.network.ISerializer;
 
 public class MPPrepareMessage extends ProtoMessage {
 
-    public static final short MSG_ID = 205;
+    public static final short MSG_ID = 115;
 
     private int instance;
     private int proposer_seq;
@@ -11,7 +11,7 @@ import java.nio.charset.StandardCharsets;
 
 public class MPPrepareOkMessage extends ProtoMessage {
 
-    public static final short MSG_ID = 206;
+    public static final short MSG_ID = 116;
 
     private int instance;
     private int proposer_seq;
@@ -0,0 +1,48 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class MPReadIndexMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 120;
+
+    private final int round;
+
+    public MPReadIndexMessage(int round) {
+        super(MSG_ID);
+        this.round = round;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexMessage{" +
+                "round=" + round +
+                '}';
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public static ISerializer<MPReadIndexMessage> serializer = new ISerializer<MPReadIndexMessage>() {
+        @Override
+        public void serialize(MPReadIndexMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.round);
+        }
+
+        @Override
+        public MPReadIndexMessage deserialize(ByteBuf in) throws IOException {
+            return new MPReadIndexMessage(in.readInt());
+        }
+    };
+
+}
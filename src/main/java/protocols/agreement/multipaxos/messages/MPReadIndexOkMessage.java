@@ -0,0 +1,69 @@
+package protocols.agreement.multipaxos.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+public class MPReadIndexOkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 121;
+
+    private final int round;
+    //Highest instance the sender accepted a value in. In stable leader mode the leader's log end
+    //instead, -1 from the other replicas, which only confirm the ballot they are at
+    private final int highest_accepted;
+    private final int ballot;
+
+    public MPReadIndexOkMessage(int round, int highest_accepted, int ballot) {
+        super(MSG_ID);
+        this.round = round;
+        this.highest_accepted = highest_accepted;
+        this.ballot = ballot;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexOkMessage{" +
+                "round=" + round +
+                ", highest_accepted=" + highest_accepted +
+                ", ballot=" + ballot +
+                '}';
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getHighest_accepted() {
+        return highest_accepted;
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public static ISerializer<MPReadIndexOkMessage> serializer = new ISerializer<MPReadIndexOkMessage>() {
+        @Override
+        public void serialize(MPReadIndexOkMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.round);
+            out.writeInt(msg.highest_accepted);
+            out.writeInt(msg.ballot);
+        }
+
+        @Override
+        public MPReadIndexOkMessage deserialize(ByteBuf in) throws IOException {
+            int round = in.readInt();
+            int highest_accepted = in.readInt();
+            int ballot = in.readInt();
+            return new MPReadIndexOkMessage(round, highest_accepted, ballot);
+        }
+    };
+
+}
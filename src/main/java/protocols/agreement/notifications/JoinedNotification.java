@@ -1,18 +1,16 @@
 package protocols.agreement.notifications;
 
+import protocols.agreement.utils.MembershipView;
 import pt.unl.fct.di.novasys.babel.generic.ProtoNotification;
-import pt.unl.fct.di.novasys.network.data.Host;
-
-import java.util.List;
 
 public class JoinedNotification extends ProtoNotification {
 
     public static final short NOTIFICATION_ID = 102;
 
-    private final List<Host> membership;
+    private final MembershipView membership;
     private final int joinInstance;
 
-    public JoinedNotification(List<Host> membership, int joinInstance) {
+    public JoinedNotification(MembershipView membership, int joinInstance) {
         super(NOTIFICATION_ID);
         this.membership = membership;
         this.joinInstance = joinInstance;
@@ -22,7 +20,7 @@ public class JoinedNotification extends ProtoNotification {
         return joinInstance;
     }
 
-    public List<Host> getMembership() {
+    public MembershipView getMembership() {
         return membership;
     }
 
@@ -0,0 +1,43 @@
+package protocols.agreement.notifications;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoNotification;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+public class LeaseNotification extends ProtoNotification {
+
+    public static final short NOTIFICATION_ID = 103;
+
+    //Replica holding the lease and until when (local clock, ms) no other replica can take over
+    private final Host holder;
+    private final long expiresAt;
+    //First instance decided under the holder's ballot, everything before it came from older leaders
+    private final int fromInstance;
+
+    public LeaseNotification(Host holder, long expiresAt, int fromInstance) {
+        super(NOTIFICATION_ID);
+        this.holder = holder;
+        this.expiresAt = expiresAt;
+        this.fromInstance = fromInstance;
+    }
+
+    public Host getHolder() {
+        return holder;
+    }
+
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    public int getFromInstance() {
+        return fromInstance;
+    }
+
+    @Override
+    public String toString() {
+        return "LeaseNotification{" +
+                "holder=" + holder +
+                ", expiresAt=" + expiresAt +
+                ", fromInstance=" + fromInstance +
+                '}';
+    }
+}
@@ -0,0 +1,30 @@
+package protocols.agreement.requests;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoRequest;
+
+/**
+ * Every instance up to (and including) the watermark was decided and executed by a quorum,
+ * so the agreement protocol can drop their state and ignore late messages about them.
+ */
+public class GarbageCollectRequest extends ProtoRequest {
+
+    public static final short REQUEST_ID = 104;
+
+    private final int watermark;
+
+    public GarbageCollectRequest(int watermark) {
+        super(REQUEST_ID);
+        this.watermark = watermark;
+    }
+
+    public int getWatermark() {
+        return watermark;
+    }
+
+    @Override
+    public String toString() {
+        return "GarbageCollectRequest{" +
+                "watermark=" + watermark +
+                '}';
+    }
+}
@@ -0,0 +1,33 @@
+package protocols.agreement.requests;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoReply;
+
+public class ReadIndexReply extends ProtoReply {
+
+    public static final short REPLY_ID = 106;
+
+    private final int round;
+    private final int index;
+
+    public ReadIndexReply(int round, int index) {
+        super(REPLY_ID);
+        this.round = round;
+        this.index = index;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexReply{" +
+                "round=" + round +
+                ", index=" + index +
+                '}';
+    }
+}
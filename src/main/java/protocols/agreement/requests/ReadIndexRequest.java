@@ -0,0 +1,30 @@
+package protocols.agreement.requests;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoRequest;
+
+/**
+ * Asks for the highest instance a majority of replicas accepted a value in. Every operation
+ * that completed before the request was sent sits at or below that instance.
+ */
+public class ReadIndexRequest extends ProtoRequest {
+
+    public static final short REQUEST_ID = 105;
+
+    private final int round;
+
+    public ReadIndexRequest(int round) {
+        super(REQUEST_ID);
+        this.round = round;
+    }
+
+    public int getRound() {
+        return round;
+    }
+
+    @Override
+    public String toString() {
+        return "ReadIndexRequest{" +
+                "round=" + round +
+                '}';
+    }
+}
@@ -1,5 +1,6 @@
 package protocols.agreement.requests;
 
+import protocols.agreement.utils.MembershipView;
 import pt.unl.fct.di.novasys.babel.generic.ProtoRequest;
 import pt.unl.fct.di.novasys.network.data.Host;
 
@@ -9,11 +10,14 @@ public class RemoveReplicaRequest extends ProtoRequest {
 
     private final int instance;
     private final Host replica;
+    //The view in effect once this change is applied
+    private final MembershipView membership;
 
-    public RemoveReplicaRequest(int instance, Host replica) {
+    public RemoveReplicaRequest(int instance, Host replica, MembershipView membership) {
         super(REQUEST_ID);
         this.instance = instance;
         this.replica = replica;
+        this.membership = membership;
     }
 
     public int getInstance() {
@@ -23,6 +27,10 @@ public class RemoveReplicaRequest extends ProtoRequest {
     public Host getReplica() {
     	return replica;
     }
+
+    public MembershipView getMembership() {
+        return membership;
+    }
    
 
     @Override
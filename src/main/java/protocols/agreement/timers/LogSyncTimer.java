@@ -0,0 +1,21 @@
+package protocols.agreement.timers;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoTimer;
+
+public class LogSyncTimer extends ProtoTimer {
+
+    public static final short TIMEOUT_ID = 103;
+
+    public LogSyncTimer() {
+        super(TIMEOUT_ID);
+    }
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    @Override
+    public ProtoTimer clone() {
+        return this;
+    }
+}
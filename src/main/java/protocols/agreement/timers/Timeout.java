@@ -16,6 +16,6 @@ public class Timeout extends ProtoTimer {
 
     @Override
     public ProtoTimer clone() {
-        return null;
+        return this;
     }
 }
@@ -0,0 +1,366 @@
+package protocols.agreement.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import protocols.app.utils.Operation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only write-ahead log of the acceptor state (promises and accepted values), so a
+ * restarted replica still honours what it promised before answering anyone again.
+ * Replies are handed to {@link #afterSync} and only leave once the records they depend on
+ * are on disk, according to the durability level:
+ * <ul>
+ *     <li>NONE: nothing is written</li>
+ *     <li>ASYNC: records are written right away and forced every tick, replies do not wait</li>
+ *     <li>GROUP: replies wait for a single force shared by every record of the last groupWindow ms</li>
+ *     <li>SYNC: every record is forced before its reply</li>
+ * </ul>
+ * Each record is [length][crc32][type][instance][ballot][value], replay stops at the first torn one.
+ * Values are kept in their {@link EncodedOperation} wire form, accepts write the bytes they arrived in.
+ * The log is split in segments of about segmentBytes, a segment whose records all belong to instances
+ * below the garbage collection watermark is deleted. The latest stable leader promise is written again
+ * at the start of every segment, so it survives the segment it was first logged in.
+ */
+public class AcceptorLog {
+    private static final Logger logger = LogManager.getLogger(AcceptorLog.class);
+
+    public enum Durability {NONE, ASYNC, GROUP, SYNC}
+
+    public interface Replayer {
+        void promise(int instance, int ballot);
+
+        //Stable leader promise, covering every instance from fromInstance onwards
+        void promiseFrom(int fromInstance, int ballot);
+
+        void accept(int instance, int ballot, Operation value);
+    }
+
+    private static final byte PROMISE = 1;
+    private static final byte PROMISE_FROM = 2;
+    private static final byte ACCEPT = 3;
+    private static final int HEADER = 8;
+    private static final int METRICS_INTERVAL = 1000;
+
+    private static class Segment {
+        final long number;
+        final Path file;
+        //Highest instance of a promise or accept in the segment, -1 if none
+        int maxInstance;
+
+        Segment(long number, Path file) {
+            this.number = number;
+            this.file = file;
+            this.maxInstance = -1;
+        }
+    }
+
+    private final Durability durability;
+    private final int groupWindow;
+    private final int groupMax;
+    private final long segmentBytes;
+    private Path dir;
+    private String prefix;
+    private final Deque<Segment> segments;
+    //Channel of the last segment, the one appended to
+    private FileChannel channel;
+    private boolean dirty;
+    //Latest stable leader promise, -1 if none
+    private int promisedFrom;
+    private int promisedBallot;
+
+    //Replies waiting for the next force, and when the oldest of them was queued (ns)
+    private final List<Runnable> waiting;
+    private long groupStart;
+
+    //Commit latency: time from a reply being queued to the force that released it
+    private long syncs;
+    private long committed;
+    private long latencyTotal;
+    private long latencyMax;
+
+    public AcceptorLog(Durability durability, int groupWindow, int groupMax, long segmentBytes) {
+        this.durability = durability;
+        this.groupWindow = groupWindow;
+        this.groupMax = groupMax;
+        this.segmentBytes = segmentBytes;
+        segments = new ArrayDeque<>();
+        waiting = new ArrayList<>();
+        dirty = false;
+        promisedFrom = -1;
+        promisedBallot = -1;
+    }
+
+    public static Durability parseDurability(String value) {
+        return Durability.valueOf(value.trim().toUpperCase());
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public int getGroupWindow() {
+        return groupWindow;
+    }
+
+    public boolean isEnabled() {
+        return durability != Durability.NONE;
+    }
+
+    //Opens (or creates) the segments prefix-*.wal in dir, replaying whatever a previous run left in them
+    public void open(Path dir, String prefix, Replayer replayer) throws IOException {
+        if (!isEnabled())
+            return;
+        this.dir = dir;
+        this.prefix = prefix;
+        Files.createDirectories(dir);
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> existing = Files.newDirectoryStream(dir, prefix + "-*.wal")) {
+            for (Path file : existing)
+                files.add(file);
+        }
+        //Segment numbers are zero padded, the names sort in log order
+        files.sort(null);
+        long replayed = 0;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            Segment segment = new Segment(Long.parseLong(name.substring(prefix.length() + 1, name.length() - 4)), file);
+            try (FileChannel existing = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel = existing;
+                long valid = replay(segment, replayer);
+                if (valid < channel.size()) {
+                    logger.warn("Truncating torn tail of {} at {} of {} bytes", file, valid, channel.size());
+                    channel.truncate(valid);
+                }
+                replayed += valid;
+            }
+            segments.addLast(segment);
+        }
+        channel = null;
+        roll();
+        logger.info("Acceptor log {} opened with durability {}, {} bytes replayed from {} segments",
+                dir.resolve(prefix), durability, replayed, files.size());
+    }
+
+    //Starts a new segment, carrying the latest stable leader promise over
+    private void roll() throws IOException {
+        if (channel != null) {
+            if (dirty)
+                force();
+            channel.close();
+        }
+        long number = segments.isEmpty() ? 0 : segments.peekLast().number + 1;
+        Segment segment = new Segment(number, dir.resolve(String.format("%s-%010d.wal", prefix, number)));
+        channel = FileChannel.open(segment.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        segments.addLast(segment);
+        if (promisedFrom >= 0)
+            write(PROMISE_FROM, promisedFrom, promisedBallot, null);
+    }
+
+    private long replay(Segment segment, Replayer replayer) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        CRC32 crc = new CRC32();
+        long position = 0;
+        while (true) {
+            header.clear();
+            if (channel.read(header, position) < HEADER)
+                return position;
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 9 || position + HEADER + length > channel.size())
+                return position;
+            ByteBuffer body = ByteBuffer.allocate(length);
+            channel.read(body, position + HEADER);
+            crc.reset();
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != checksum)
+                return position;
+            body.flip();
+            byte type = body.get();
+            int instance = body.getInt();
+            int ballot = body.getInt();
+            if (type != PROMISE_FROM)
+                segment.maxInstance = Math.max(segment.maxInstance, instance);
+            if (type == PROMISE) {
+                replayer.promise(instance, ballot);
+            } else if (type == PROMISE_FROM) {
+                if (ballot >= promisedBallot) {
+                    promisedFrom = instance;
+                    promisedBallot = ballot;
+                }
+                replayer.promiseFrom(instance, ballot);
+            } else if (type == ACCEPT) {
+                Operation value = body.hasRemaining() ? EncodedOperation.wrap(body).getOperation() : null;
+                replayer.accept(instance, ballot, value);
+            }
+            position += HEADER + length;
+        }
+    }
+
+    public void promise(int instance, int ballot) {
+        append(PROMISE, instance, ballot, null);
+    }
+
+    public void promiseFrom(int fromInstance, int ballot) {
+        if (isEnabled()) {
+            promisedFrom = fromInstance;
+            promisedBallot = ballot;
+        }
+        append(PROMISE_FROM, fromInstance, ballot, null);
+    }
+
+    public void accept(int instance, int ballot, Operation value) {
+        if (isEnabled())
+            append(ACCEPT, instance, ballot, EncodedOperation.of(value));
+    }
+
+    public void accept(int instance, int ballot, EncodedOperation value) {
+        append(ACCEPT, instance, ballot, value);
+    }
+
+    private void append(byte type, int instance, int ballot, EncodedOperation value) {
+        if (!isEnabled())
+            return;
+        try {
+            if (channel.position() >= segmentBytes)
+                roll();
+            if (type != PROMISE_FROM)
+                segments.peekLast().maxInstance = Math.max(segments.peekLast().maxInstance, instance);
+            write(type, instance, ballot, value);
+            if (durability == Durability.SYNC)
+                force();
+        } catch (IOException e) {
+            throw new AssertionError("Could not append to the acceptor log", e);
+        }
+    }
+
+    private void write(byte type, int instance, int ballot, EncodedOperation value) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER + 9 + (value == null ? 0 : value.size()));
+        record.position(HEADER);
+        record.put(type).putInt(instance).putInt(ballot);
+        if (value != null)
+            value.copyTo(record);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), HEADER, record.position() - HEADER);
+        record.putInt(0, record.position() - HEADER);
+        record.putInt(4, (int) crc.getValue());
+        record.flip();
+        while (record.hasRemaining())
+            channel.write(record);
+        dirty = true;
+    }
+
+    //Deletes every segment but the last one whose records all belong to instances below instance
+    public void truncateBefore(int instance) {
+        if (!isEnabled())
+            return;
+        Segment last = segments.peekLast();
+        int deleted = 0;
+        for (Segment segment : new ArrayList<>(segments)) {
+            if (segment == last || segment.maxInstance >= instance)
+                continue;
+            try {
+                Files.deleteIfExists(segment.file);
+            } catch (IOException e) {
+                logger.warn("Could not delete acceptor log segment {}", segment.file, e);
+                continue;
+            }
+            segments.remove(segment);
+            deleted++;
+        }
+        if (deleted > 0)
+            logger.debug("Deleted {} acceptor log segments below instance {}, {} left", deleted, instance, segments.size());
+    }
+
+    /**
+     * Runs the reply once the records appended so far are durable. Returns true when the reply
+     * opened a new group, the caller then has to call {@link #sync} within groupWindow ms.
+     */
+    public boolean afterSync(Runnable reply) {
+        if (durability != Durability.GROUP) {
+            reply.run();
+            return false;
+        }
+        if (waiting.isEmpty())
+            groupStart = System.nanoTime();
+        waiting.add(reply);
+        if (waiting.size() >= groupMax) {
+            sync();
+            return false;
+        }
+        return waiting.size() == 1;
+    }
+
+    //Forces the pending group to disk and releases its replies
+    public void sync() {
+        if (waiting.isEmpty())
+            return;
+        try {
+            force();
+        } catch (IOException e) {
+            throw new AssertionError("Could not sync the acceptor log", e);
+        }
+        long latency = (System.nanoTime() - groupStart) / 1000;
+        List<Runnable> released = new ArrayList<>(waiting);
+        waiting.clear();
+        committed += released.size();
+        latencyTotal += latency * released.size();
+        latencyMax = Math.max(latencyMax, latency);
+        for (Runnable reply : released)
+            reply.run();
+    }
+
+    //Called on every agreement tick, the background force of ASYNC
+    public void tick() {
+        if (durability != Durability.ASYNC || !dirty)
+            return;
+        try {
+            force();
+        } catch (IOException e) {
+            throw new AssertionError("Could not sync the acceptor log", e);
+        }
+    }
+
+    private void force() throws IOException {
+        long start = System.nanoTime();
+        channel.force(false);
+        dirty = false;
+        syncs++;
+        if (durability == Durability.SYNC) {
+            long latency = (System.nanoTime() - start) / 1000;
+            committed++;
+            latencyTotal += latency;
+            latencyMax = Math.max(latencyMax, latency);
+        }
+        if (syncs % METRICS_INTERVAL == 0)
+            logger.info("Acceptor log {}: {} syncs, {} replies per sync, commit latency avg {} us max {} us",
+                    durability, syncs, String.format("%.2f", (double) committed / syncs),
+                    committed == 0 ? 0 : latencyTotal / committed, latencyMax);
+    }
+
+    public void close() {
+        if (channel == null)
+            return;
+        try {
+            sync();
+            channel.force(false);
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Could not close the acceptor log", e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package protocols.agreement.utils;
+
+import java.util.Random;
+
+/**
+ * Randomized exponential backoff shared by all instances a replica proposes in. Every
+ * preemption doubles the window the next retry delay is drawn from, up to maxMs; one of
+ * our ballots getting decided means contention went away and shrinks it back to baseMs.
+ * Drawing uniformly from the whole window keeps dueling proposers from retrying in lockstep.
+ */
+public class Backoff {
+
+    private final long baseMs;
+    private final long maxMs;
+    private final Random random;
+    private int attempts;
+
+    public Backoff(long baseMs, long maxMs) {
+        this.baseMs = baseMs;
+        this.maxMs = Math.max(baseMs, maxMs);
+        this.random = new Random();
+        this.attempts = 0;
+    }
+
+    public long nextDelay() {
+        if (attempts < 30)
+            attempts++;
+        long window = Math.min(maxMs, baseMs << attempts);
+        return baseMs + (long) (random.nextDouble() * (window - baseMs + 1));
+    }
+
+    public void reset() {
+        attempts = 0;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+}
@@ -0,0 +1,90 @@
+package protocols.agreement.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import protocols.app.utils.Operation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An operation together with its wire form, [type][key length][key][data length][data], encoded
+ * once and copied as a single block into every message that carries it, to every destination
+ * and on every retransmission. Received operations keep the bytes they arrived in, so echoing
+ * them back (AcceptOk, PrepareOk) encodes nothing, and the Operation is only decoded from those
+ * bytes the first time someone asks for it. The buffer is unpooled heap memory, messages have no
+ * release point so it is left to the garbage collector instead of reference counting.
+ */
+public class EncodedOperation {
+
+    private Operation operation;
+    private final ByteBuf encoded;
+
+    private EncodedOperation(Operation operation, ByteBuf encoded) {
+        this.operation = operation;
+        this.encoded = encoded;
+    }
+
+    public static EncodedOperation of(Operation operation) {
+        if (operation == null)
+            return null;
+        byte[] data = operation.getData();
+        int keyBytes = ByteBufUtil.utf8Bytes(operation.getKey());
+        ByteBuf encoded = Unpooled.buffer(9 + keyBytes + data.length);
+        encoded.writeByte(operation.getOpType());
+        encoded.writeInt(keyBytes);
+        ByteBufUtil.writeUtf8(encoded, operation.getKey());
+        encoded.writeInt(data.length);
+        encoded.writeBytes(data);
+        return new EncodedOperation(operation, encoded);
+    }
+
+    //Decoded once and cached, PaxosInstance compares it by identity
+    public Operation getOperation() {
+        if (operation == null) {
+            byte opType = encoded.getByte(0);
+            int keyBytes = encoded.getInt(1);
+            String key = encoded.slice(5, keyBytes).toString(StandardCharsets.UTF_8);
+            int dataOffset = 9 + keyBytes;
+            byte[] data = ByteBufUtil.getBytes(encoded, dataOffset, encoded.getInt(5 + keyBytes));
+            operation = new Operation(opType, key, data);
+        }
+        return operation;
+    }
+
+    public int size() {
+        return encoded.readableBytes();
+    }
+
+    //The encoded form alone, into a log record
+    public void copyTo(ByteBuffer out) {
+        out.put(encoded.nioBuffer());
+    }
+
+    //Takes over the remaining bytes of a log record, nothing is decoded until asked
+    public static EncodedOperation wrap(ByteBuffer in) {
+        byte[] raw = new byte[in.remaining()];
+        in.get(raw);
+        return new EncodedOperation(null, Unpooled.wrappedBuffer(raw));
+    }
+
+    //[present][length][encoded operation], absent values are a single 0
+    public static void write(EncodedOperation value, ByteBuf out) {
+        if (value == null) {
+            out.writeByte(0);
+            return;
+        }
+        out.writeByte(1);
+        out.writeInt(value.encoded.readableBytes());
+        out.writeBytes(value.encoded, value.encoded.readerIndex(), value.encoded.readableBytes());
+    }
+
+    public static EncodedOperation read(ByteBuf in) {
+        if (in.readByte() == 0)
+            return null;
+        byte[] raw = new byte[in.readInt()];
+        in.readBytes(raw);
+        return new EncodedOperation(null, Unpooled.wrappedBuffer(raw));
+    }
+}
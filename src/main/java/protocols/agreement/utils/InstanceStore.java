@@ -0,0 +1,127 @@
+package protocols.agreement.utils;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Per-instance state indexed by instance number. Instances are dense and close to the
+ * execution frontier, so they live in a ring buffer addressed by (instance - base);
+ * the rare instance too far ahead of the base goes to a sorted fallback map and is
+ * moved into the ring once the base catches up. Instances below the base are discarded.
+ */
+public class InstanceStore<T> {
+
+    public interface Visitor<T> {
+        void visit(int instance, T value);
+    }
+
+    private final Object[] window;
+    private final int mask;
+    private final TreeMap<Integer, T> overflow;
+    private int base;
+    private int size;
+
+    public InstanceStore(int capacity) {
+        int slots = 1;
+        while (slots < capacity)
+            slots <<= 1;
+        window = new Object[slots];
+        mask = slots - 1;
+        overflow = new TreeMap<>();
+        base = 0;
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(int instance) {
+        int offset = instance - base;
+        if (offset < 0)
+            return null;
+        if (offset < window.length)
+            return (T) window[instance & mask];
+        return overflow.isEmpty() ? null : overflow.get(instance);
+    }
+
+    //Instances below the base were already discarded and are ignored
+    public void put(int instance, T value) {
+        int offset = instance - base;
+        if (offset < 0)
+            return;
+        if (offset < window.length) {
+            if (window[instance & mask] == null)
+                size++;
+            window[instance & mask] = value;
+        } else if (overflow.put(instance, value) == null) {
+            size++;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T remove(int instance) {
+        int offset = instance - base;
+        if (offset < 0)
+            return null;
+        T old;
+        if (offset < window.length) {
+            old = (T) window[instance & mask];
+            window[instance & mask] = null;
+        } else {
+            old = overflow.remove(instance);
+        }
+        if (old != null)
+            size--;
+        return old;
+    }
+
+    //Discards every instance below newBase and pulls far-ahead instances into the ring
+    public void advanceTo(int newBase) {
+        if (newBase <= base)
+            return;
+        int end = Math.min(newBase, base + window.length);
+        for (int i = base; i < end; i++) {
+            if (window[i & mask] != null) {
+                window[i & mask] = null;
+                size--;
+            }
+        }
+        base = newBase;
+        while (!overflow.isEmpty() && overflow.firstKey() < base + window.length) {
+            Map.Entry<Integer, T> entry = overflow.pollFirstEntry();
+            if (entry.getKey() >= base)
+                window[entry.getKey() & mask] = entry.getValue();
+            else
+                size--;
+        }
+    }
+
+    //Visits every stored instance in increasing order
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<T> visitor) {
+        for (int i = base; i < base + window.length; i++) {
+            Object value = window[i & mask];
+            if (value != null)
+                visitor.visit(i, (T) value);
+        }
+        for (Map.Entry<Integer, T> entry : overflow.entrySet())
+            visitor.visit(entry.getKey(), entry.getValue());
+    }
+
+    public Map<Integer, T> toMap() {
+        Map<Integer, T> map = new HashMap<>();
+        forEach(map::put);
+        return map;
+    }
+
+    public int getBase() {
+        return base;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,91 @@
+package protocols.agreement.utils;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable membership shared by the state machine and the agreement protocol. A replica's
+ * index is its position in the view; joining replicas are appended so the others keep theirs.
+ * The version is the instance whose decision produced the view (-1 for the initial one),
+ * so a change is applied by swapping the whole view.
+ */
+public class MembershipView implements Iterable<Host> {
+
+    private final int version;
+    private final List<Host> hosts;
+    private final Map<Host, Integer> indexes;
+
+    public MembershipView(int version, Collection<Host> hosts) {
+        this.version = version;
+        this.hosts = Collections.unmodifiableList(new ArrayList<>(hosts));
+        this.indexes = new HashMap<>();
+        for (int i = 0; i < this.hosts.size(); i++)
+            indexes.put(this.hosts.get(i), i);
+    }
+
+    public MembershipView withAdded(int version, Host host) {
+        if (contains(host))
+            return this;
+        List<Host> next = new ArrayList<>(hosts);
+        next.add(host);
+        return new MembershipView(version, next);
+    }
+
+    public MembershipView withRemoved(int version, Host host) {
+        if (!contains(host))
+            return this;
+        List<Host> next = new ArrayList<>(hosts);
+        next.remove(host);
+        return new MembershipView(version, next);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    //-1 if the host is not a member
+    public int indexOf(Host host) {
+        Integer index = indexes.get(host);
+        return index == null ? -1 : index;
+    }
+
+    public boolean contains(Host host) {
+        return indexes.containsKey(host);
+    }
+
+    public Host get(int index) {
+        return hosts.get(index);
+    }
+
+    public int size() {
+        return hosts.size();
+    }
+
+    public boolean isEmpty() {
+        return hosts.isEmpty();
+    }
+
+    public List<Host> getHosts() {
+        return hosts;
+    }
+
+    @Override
+    public Iterator<Host> iterator() {
+        return hosts.iterator();
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipView{" +
+                "version=" + version +
+                ", hosts=" + hosts +
+                '}';
+    }
+}
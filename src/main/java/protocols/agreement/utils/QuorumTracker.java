@@ -0,0 +1,94 @@
+package protocols.agreement.utils;
+
+import protocols.app.utils.Operation;
+
+/**
+ * Votes collected for one ballot of a Paxos phase. Each voter is identified by its index in
+ * the instance's process list and owns one bit of a mask, so duplicated messages are not
+ * counted twice and a quorum check is a single comparison. A vote for a higher ballot
+ * discards the previous ones; votes for lower ballots are ignored.
+ * Supports up to 64 replicas.
+ */
+public class QuorumTracker {
+
+    public static final int MAX_REPLICAS = 64;
+
+    private int ballot;
+    private long voters;
+    private int count;
+
+    //Highest accepted value reported alongside the votes (phase 1 only)
+    private int highestSeq;
+    private Operation highestValue;
+
+    public QuorumTracker() {
+        reset(-1);
+    }
+
+    public void reset(int ballot) {
+        this.ballot = ballot;
+        voters = 0L;
+        count = 0;
+        highestSeq = -1;
+        highestValue = null;
+    }
+
+    //Returns true if the vote was counted, false if stale, duplicated or from an unknown voter
+    public boolean vote(int index, int ballot) {
+        if (index < 0 || index >= MAX_REPLICAS || ballot < this.ballot)
+            return false;
+        if (ballot > this.ballot)
+            reset(ballot);
+        long bit = 1L << index;
+        if ((voters & bit) != 0)
+            return false;
+        voters |= bit;
+        count++;
+        return true;
+    }
+
+    public void report(int seq, Operation value) {
+        if (value != null && (highestValue == null || seq > highestSeq)) {
+            highestSeq = seq;
+            highestValue = value;
+        }
+    }
+
+    public boolean hasVoted(int index) {
+        return index >= 0 && index < MAX_REPLICAS && (voters & (1L << index)) != 0;
+    }
+
+    public static int quorum(int processes) {
+        return (processes / 2) + 1;
+    }
+
+    public boolean hasQuorum(int size) {
+        return count >= size;
+    }
+
+    //Keeps the bits aligned with the process list when the replica at index leaves it
+    public void removeIndex(int index) {
+        if (index < 0 || index >= MAX_REPLICAS)
+            return;
+        long below = voters & ((1L << index) - 1);
+        long above = index == MAX_REPLICAS - 1 ? 0L : (voters >>> (index + 1)) << index;
+        voters = below | above;
+        count = Long.bitCount(voters);
+    }
+
+    public int getBallot() {
+        return ballot;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public int getHighestSeq() {
+        return highestSeq;
+    }
+
+    public Operation getHighestValue() {
+        return highestValue;
+    }
+}
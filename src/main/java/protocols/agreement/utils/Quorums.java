@@ -0,0 +1,38 @@
+package protocols.agreement.utils;
+
+/**
+ * Flexible Paxos quorum sizes. Any phase 1 quorum only has to intersect every phase 2 quorum
+ * (q1 + q2 > n), so a stable leader can commit with fewer than a majority of AcceptOks and
+ * pay for the larger phase 1 quorum only when leadership changes. A size of 0 means a majority.
+ * Sizes are checked against the current membership, phase 1 grows when the configured pair
+ * no longer intersects (e.g. after replicas were added).
+ */
+public class Quorums {
+
+    private final int phase1;
+    private final int phase2;
+
+    public Quorums(int phase1, int phase2) {
+        this.phase1 = Math.max(0, phase1);
+        this.phase2 = Math.max(0, phase2);
+    }
+
+    //Promises needed to take over instances, also enough to see every decided value
+    public int phase1(int processes) {
+        int q1 = phase1 > 0 ? Math.min(phase1, processes) : QuorumTracker.quorum(processes);
+        return Math.max(q1, processes - phase2(processes) + 1);
+    }
+
+    //AcceptOks needed to decide
+    public int phase2(int processes) {
+        return phase2 > 0 ? Math.min(phase2, processes) : QuorumTracker.quorum(processes);
+    }
+
+    @Override
+    public String toString() {
+        return "Quorums{" +
+                "phase1=" + (phase1 > 0 ? String.valueOf(phase1) : "majority") +
+                ", phase2=" + (phase2 > 0 ? String.valueOf(phase2) : "majority") +
+                '}';
+    }
+}
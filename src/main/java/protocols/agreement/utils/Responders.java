@@ -0,0 +1,51 @@
+package protocols.agreement.utils;
+
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.util.*;
+
+/**
+ * Smoothed AcceptOk latency of every replica, used to send accepts only to the quorum
+ * expected to answer first. Replicas never measured rank first so they get a chance to be.
+ */
+public class Responders {
+
+    //Weight of the newest sample, as in TCP's smoothed RTT
+    private static final double ALPHA = 0.125;
+
+    private final Map<Host, Double> latency;
+
+    public Responders() {
+        this.latency = new HashMap<>();
+    }
+
+    public void record(Host host, long latencyMs) {
+        latency.merge(host, (double) latencyMs, (old, sample) -> old + ALPHA * (sample - old));
+    }
+
+    //Ourselves plus the fastest others, size replicas in total
+    public List<Host> fastest(Iterable<Host> processes, int size, Host myself) {
+        List<Host> others = new ArrayList<>();
+        boolean member = false;
+        for (Host h : processes) {
+            if (h.equals(myself))
+                member = true;
+            else
+                others.add(h);
+        }
+        others.sort(Comparator.comparingDouble(h -> latency.getOrDefault(h, 0.0)));
+        List<Host> chosen = new ArrayList<>(size);
+        if (member)
+            chosen.add(myself);
+        for (Host h : others) {
+            if (chosen.size() >= size)
+                break;
+            chosen.add(h);
+        }
+        return chosen;
+    }
+
+    public void remove(Host host) {
+        latency.remove(host);
+    }
+}
@@ -0,0 +1,82 @@
+package protocols.agreement.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timing wheel for per-instance agreement timeouts, driven by a single periodic tick.
+ * Scheduling is O(1) and does not allocate once the slots have grown to the working set.
+ * Entries are never removed when cancelled: the owner keeps the deadline returned by
+ * {@link #schedule} and ignores expirations whose deadline no longer matches.
+ */
+public class TimingWheel {
+
+    public interface ExpiryHandler {
+        void onExpired(int instance, long deadline);
+    }
+
+    private static final int INITIAL_SLOT_CAPACITY = 16;
+
+    private final long tickMs;
+    private final int mask;
+    private final ExpiryHandler handler;
+
+    private final int[][] instances;
+    private final long[][] deadlines;
+    private final int[] sizes;
+
+    private long currentTick;
+
+    public TimingWheel(long tickMs, int slots, ExpiryHandler handler) {
+        if (Integer.bitCount(slots) != 1)
+            throw new IllegalArgumentException("Number of slots must be a power of two: " + slots);
+        this.tickMs = tickMs;
+        this.mask = slots - 1;
+        this.handler = handler;
+        instances = new int[slots][INITIAL_SLOT_CAPACITY];
+        deadlines = new long[slots][INITIAL_SLOT_CAPACITY];
+        sizes = new int[slots];
+        currentTick = 0;
+    }
+
+    public long getTickMs() {
+        return tickMs;
+    }
+
+    //Returns the deadline (in ticks) the caller should keep to recognise this timeout
+    public long schedule(int instance, long delayMs) {
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        long deadline = currentTick + ticks;
+        append((int) (deadline & mask), instance, deadline);
+        return deadline;
+    }
+
+    //Advances one tick and fires every entry due in it. Entries for later rounds stay in the slot.
+    public void tick() {
+        currentTick++;
+        int slot = (int) (currentTick & mask);
+        int size = sizes[slot];
+        int[] slotInstances = instances[slot];
+        long[] slotDeadlines = deadlines[slot];
+        //Entries are compacted in place; anything appended by the handler lands on already visited positions
+        sizes[slot] = 0;
+        for (int i = 0; i < size; i++) {
+            int instance = slotInstances[i];
+            long deadline = slotDeadlines[i];
+            if (deadline > currentTick)
+                append(slot, instance, deadline);
+            else
+                handler.onExpired(instance, deadline);
+        }
+    }
+
+    private void append(int slot, int instance, long deadline) {
+        int size = sizes[slot];
+        if (size == instances[slot].length) {
+            instances[slot] = Arrays.copyOf(instances[slot], size * 2);
+            deadlines[slot] = Arrays.copyOf(deadlines[slot], size * 2);
+        }
+        instances[slot][size] = instance;
+        deadlines[slot][size] = deadline;
+        sizes[slot] = size + 1;
+    }
+}
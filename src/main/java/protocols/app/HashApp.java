@@ -19,6 +19,8 @@ import protocols.app.requests.InstallStateRequest;
 import protocols.app.utils.Operation;
 import protocols.statemachine.StateMachine;
 import protocols.statemachine.notifications.ExecuteNotification;
+import protocols.statemachine.requests.LocalReadReply;
+import protocols.statemachine.requests.LocalReadRequest;
 import protocols.statemachine.requests.OrderRequest;
 
 import java.io.*;
@@ -34,22 +36,36 @@ public class HashApp extends GenericProtocol {
     public static final String PROTO_NAME = "HashApp";
     public static final short PROTO_ID = 300;
 
-    //Application state
-    private int executedOps;
-    private final Map<String, byte[]> data;
-    private byte[] cumulativeHash;
+    //Application state, one partition per agreement group. Each key belongs to a single group,
+    //so every group executes (and hashes) its own partition in its own order
+    private final int groups;
+    private final int[] executedOps;
+    private final List<Map<String, byte[]>> data;
+    private final byte[][] cumulativeHash;
+    //hash_mode=sum: the hash does not depend on the execution order, for EPaxos, which runs commuting
+    //operations in a different order on each replica. The default chains the operations in order
+    private final boolean unordered;
 
 
     //Client callbacks
     private final Map<UUID, Pair<Host, Long>> clientIdMapper;
+    //Keys of reads the state machine may let us answer without ordering them
+    private final Map<UUID, String> localReads;
 
     public HashApp(Properties properties) throws HandlerRegistrationException, IOException {
         super(PROTO_NAME, PROTO_ID);
 
-        executedOps = 0;
-        data = new HashMap<>();
+        groups = Integer.parseInt(properties.getProperty("agreement_groups", "1"));
+        unordered = properties.getProperty("hash_mode", "chain").equalsIgnoreCase("sum");
+        executedOps = new int[groups];
+        data = new ArrayList<>(groups);
+        cumulativeHash = new byte[groups][];
+        for (int g = 0; g < groups; g++) {
+            data.add(new HashMap<>());
+            cumulativeHash[g] = new byte[0];
+        }
         clientIdMapper = new TreeMap<>();
-        cumulativeHash = new byte[0];
+        localReads = new HashMap<>();
 
         String address = properties.getProperty("address");
         String port = properties.getProperty("server_port");
@@ -85,16 +101,28 @@ public class HashApp extends GenericProtocol {
         registerRequestHandler(CurrentStateRequest.REQUEST_ID, this::uponCurrentStateRequest);
         registerRequestHandler(InstallStateRequest.REQUEST_ID, this::uponInstallStateRequest);
 
+        /*-------------------- Register Reply Handler ------------------------------ */
+        registerReplyHandler(LocalReadReply.REPLY_ID, this::uponLocalReadReply);
+
     }
 
     @Override
     public void init(Properties props) {
     }
 
+    //The state machine of group g is protocol StateMachine.PROTOCOL_ID + g
+    private static int groupOf(short sourceProto) {
+        return sourceProto - StateMachine.PROTOCOL_ID;
+    }
+
+    private int groupOf(String key) {
+        return Math.floorMod(key.hashCode(), groups);
+    }
+
     private void uponCurrentStateRequest(CurrentStateRequest req, short sourceProto) {
         byte[] state;
         try {
-            state = this.getCurrentState();
+            state = this.getCurrentState(groupOf(sourceProto));
         } catch (IOException e) {
             throw new AssertionError("Could not get current state of the application.", e);
         }
@@ -103,9 +131,10 @@ public class HashApp extends GenericProtocol {
 
     private void uponInstallStateRequest(InstallStateRequest req, short sourceProto) {
         try {
-            this.installState(req.getState());
-            logger.info("State installed N_OPS= {}, MAP_SIZE={}, HASH={}",
-                    executedOps, data.size(), Hex.encodeHexString(cumulativeHash));
+            int group = groupOf(sourceProto);
+            this.installState(group, req.getState());
+            logger.info("State installed GROUP={}, N_OPS= {}, MAP_SIZE={}, HASH={}", group,
+                    executedOps[group], data.get(group).size(), Hex.encodeHexString(cumulativeHash[group]));
         } catch (IOException e) {
             throw new AssertionError("Failed in installing a new state on the application.", e);
         }
@@ -116,31 +145,51 @@ public class HashApp extends GenericProtocol {
         UUID opUUID = UUID.randomUUID();
         clientIdMapper.put(opUUID, Pair.of(host, msg.getOpId()));
         Operation op = new Operation(msg.getOpType(), msg.getKey(), msg.getData());
+        short stateMachine = (short) (StateMachine.PROTOCOL_ID + groupOf(msg.getKey()));
         try {
-            sendRequest(new OrderRequest(opUUID, op.toByteArray()), StateMachine.PROTOCOL_ID);
+            if (msg.getOpType() == RequestMessage.READ) {
+                localReads.put(opUUID, msg.getKey());
+                sendRequest(new LocalReadRequest(opUUID, op.toByteArray()), stateMachine);
+            } else {
+                sendRequest(new OrderRequest(opUUID, op.toByteArray()), stateMachine);
+            }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
         }
     }
 
+    //Served under the leader's lease: nothing executes, so nothing goes into the hash either
+    private void uponLocalReadReply(LocalReadReply reply, short sourceProto) {
+        String key = localReads.remove(reply.getOpId());
+        Pair<Host, Long> pair = clientIdMapper.remove(reply.getOpId());
+        if (key == null || pair == null)
+            return;
+        sendMessage(new ResponseMessage(pair.getRight(), data.get(groupOf(key)).getOrDefault(key, new byte[0])),
+                pair.getLeft());
+    }
+
     private void uponExecuteNotification(ExecuteNotification not, short sourceProto) {
         try {
             //Deserialize operation received
             Operation op = Operation.fromByteArray(not.getOperation());
+            int group = groupOf(sourceProto);
+            Map<String, byte[]> partition = data.get(group);
 
-            cumulativeHash = appendOpToHash(cumulativeHash, op.getData());
+            cumulativeHash[group] = unordered ? addOpToHash(cumulativeHash[group], op.getData())
+                    : appendOpToHash(cumulativeHash[group], op.getData());
 
             logger.debug("Executing: " + op);
             //Execute if it is a write operation
             if (op.getOpType() == RequestMessage.WRITE)
-                data.put(op.getKey(), op.getData());
-            executedOps++;
-            if (executedOps % 1000 == 0) {
-                logger.info("Current state N_OPS= {}, MAP_SIZE={}, HASH={}",
-                        executedOps, data.size(), Hex.encodeHexString(cumulativeHash));
+                partition.put(op.getKey(), op.getData());
+            executedOps[group]++;
+            if (executedOps[group] % 1000 == 0) {
+                logger.info("Current state GROUP={}, N_OPS= {}, MAP_SIZE={}, HASH={}", group,
+                        executedOps[group], partition.size(), Hex.encodeHexString(cumulativeHash[group]));
             }
             //Check if the operation was issued by me
+            localReads.remove(not.getOpId());
             Pair<Host, Long> pair = clientIdMapper.remove(not.getOpId());
             if (pair != null) {
                 //Generate a response to the client
@@ -148,7 +197,7 @@ public class HashApp extends GenericProtocol {
                 if (op.getOpType() == RequestMessage.WRITE)
                     resp = new ResponseMessage(pair.getRight(), new byte[0]);
                 else
-                    resp = new ResponseMessage(pair.getRight(), data.getOrDefault(op.getKey(), new byte[0]));
+                    resp = new ResponseMessage(pair.getRight(), partition.getOrDefault(op.getKey(), new byte[0]));
                 //Respond
                 sendMessage(resp, pair.getLeft());
             }
@@ -179,6 +228,28 @@ public class HashApp extends GenericProtocol {
         }
     }
 
+    //Sum of the digests of every operation (mod 2^256), the same for any execution order
+    public static byte[] addOpToHash(byte[] hash, byte[] op) {
+        MessageDigest mDigest;
+        try {
+            mDigest = MessageDigest.getInstance("sha-256");
+        } catch (NoSuchAlgorithmException e) {
+            logger.error("sha-256 not available...");
+            throw new AssertionError("sha-256 not available...");
+        }
+        byte[] digest = mDigest.digest(op);
+        byte[] sum = new byte[digest.length];
+        int carry = 0;
+        for (int i = digest.length - 1; i >= 0; i--) {
+            //the initial hash is empty
+            int previous = hash.length == 0 ? 0 : hash[i] & 0xff;
+            int total = previous + (digest[i] & 0xff) + carry;
+            sum[i] = (byte) total;
+            carry = total >>> 8;
+        }
+        return sum;
+    }
+
     private String computeDataHash() {
         MessageDigest mDigest;
         try {
@@ -191,9 +262,11 @@ public class HashApp extends GenericProtocol {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
         try {
-            for (Map.Entry<String, byte[]> entry : data.entrySet()) {
-                dos.writeUTF(entry.getKey());
-                dos.write(entry.getValue());
+            for (Map<String, byte[]> partition : data) {
+                for (Map.Entry<String, byte[]> entry : partition.entrySet()) {
+                    dos.writeUTF(entry.getKey());
+                    dos.write(entry.getValue());
+                }
             }
             byte[] hash = mDigest.digest(baos.toByteArray());
             return Hex.encodeHexString(hash);
@@ -216,14 +289,15 @@ public class HashApp extends GenericProtocol {
         logger.info(event);
     }
 
-    private byte[] getCurrentState() throws IOException {
+    private byte[] getCurrentState(int group) throws IOException {
+        Map<String, byte[]> partition = data.get(group);
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
-        dos.writeInt(executedOps);
-        dos.writeInt(cumulativeHash.length);
-        dos.write(cumulativeHash);
-        dos.writeInt(data.size());
-        for (Map.Entry<String, byte[]> entry : data.entrySet()) {
+        dos.writeInt(executedOps[group]);
+        dos.writeInt(cumulativeHash[group].length);
+        dos.write(cumulativeHash[group]);
+        dos.writeInt(partition.size());
+        for (Map.Entry<String, byte[]> entry : partition.entrySet()) {
             dos.writeUTF(entry.getKey());
             dos.writeInt(entry.getValue().length);
             dos.write(entry.getValue());
@@ -231,19 +305,20 @@ public class HashApp extends GenericProtocol {
         return baos.toByteArray();
     }
 
-    private void installState(byte[] newState) throws IOException {
-        data.clear();
+    private void installState(int group, byte[] newState) throws IOException {
+        Map<String, byte[]> partition = data.get(group);
+        partition.clear();
         ByteArrayInputStream bais = new ByteArrayInputStream(newState);
         DataInputStream dis = new DataInputStream(bais);
-        executedOps = dis.readInt();
-        cumulativeHash = new byte[dis.readInt()];
-        dis.read(cumulativeHash);
+        executedOps[group] = dis.readInt();
+        cumulativeHash[group] = new byte[dis.readInt()];
+        dis.read(cumulativeHash[group]);
         int mapSize = dis.readInt();
         for (int i = 0; i < mapSize; i++) {
             String key = dis.readUTF();
             byte[] value = new byte[dis.readInt()];
             dis.read(value);
-            data.put(key, value);
+            partition.put(key, value);
         }
     }
 
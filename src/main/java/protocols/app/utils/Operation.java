@@ -0,0 +1,95 @@
+package protocols.app.utils;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.commons.codec.binary.Hex;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+public class Operation {
+
+    public static final byte NORMAL = 0;
+    public static final byte ADD = 1;
+    public static final byte REMOVE = 2;
+
+    private final byte opType;
+    private final String key;
+    private final byte[] data;
+
+    public Operation(byte opType, String key, byte[] data) {
+        this.opType = opType;
+        this.key = key;
+        this.data = data;
+    }
+
+    public byte getOpType() {
+        return opType;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "Operation{" +
+                "opType=" + opType +
+                ", key='" + key + '\'' +
+                ", data=" + Hex.encodeHexString(data) +
+                '}';
+    }
+
+    //[type][key length][key][data length][data], the same layout the serializer writes
+    public byte[] toByteArray() throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(9 + keyBytes.length + data.length);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeByte(opType);
+        dos.writeInt(keyBytes.length);
+        dos.write(keyBytes);
+        dos.writeInt(data.length);
+        dos.write(data);
+        return baos.toByteArray();
+    }
+
+    public static Operation fromByteArray(byte[] bytes) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte opType = dis.readByte();
+        byte[] keyBytes = new byte[dis.readInt()];
+        dis.readFully(keyBytes);
+        byte[] data = new byte[dis.readInt()];
+        dis.readFully(data);
+        return new Operation(opType, new String(keyBytes, StandardCharsets.UTF_8), data);
+    }
+
+    public static ISerializer<Operation> serializer = new ISerializer<Operation>() {
+        @Override
+        public void serialize(Operation op, ByteBuf out) {
+            byte[] keyBytes = op.key.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(op.opType);
+            out.writeInt(keyBytes.length);
+            out.writeBytes(keyBytes);
+            out.writeInt(op.data.length);
+            out.writeBytes(op.data);
+        }
+
+        @Override
+        public Operation deserialize(ByteBuf in) {
+            byte opType = in.readByte();
+            byte[] keyBytes = new byte[in.readInt()];
+            in.readBytes(keyBytes);
+            byte[] data = new byte[in.readInt()];
+            in.readBytes(data);
+            return new Operation(opType, new String(keyBytes, StandardCharsets.UTF_8), data);
+        }
+    };
+}
@@ -9,11 +9,28 @@ import protocols.app.HashApp;
 import protocols.app.requests.CurrentStateReply;
 import protocols.app.requests.CurrentStateRequest;
 import protocols.app.requests.InstallStateRequest;
+import protocols.statemachine.messages.FetchMessage;
+import protocols.statemachine.messages.FetchReplyMessage;
+import protocols.statemachine.messages.ForwardMessage;
 import protocols.statemachine.messages.RPCMessage;
+import protocols.statemachine.messages.StateChunkAckMessage;
+import protocols.statemachine.messages.StateChunkMessage;
 import protocols.agreement.notifications.JoinedNotification;
+import protocols.agreement.notifications.LeaseNotification;
 import protocols.agreement.requests.AddReplicaRequest;
+import protocols.agreement.requests.GarbageCollectRequest;
+import protocols.agreement.requests.ReadIndexReply;
+import protocols.agreement.requests.ReadIndexRequest;
 import protocols.agreement.requests.RemoveReplicaRequest;
+import protocols.statemachine.timer.BatchTimer;
+import protocols.statemachine.timer.GapTimer;
 import protocols.statemachine.timer.TimerRPC;
+import protocols.statemachine.utils.Batch;
+import protocols.statemachine.utils.DecidedLog;
+import protocols.statemachine.utils.Noop;
+import protocols.statemachine.utils.StateTransfer;
+import protocols.agreement.utils.InstanceStore;
+import protocols.agreement.utils.MembershipView;
 import protocols.app.utils.Operation;
 
 import pt.unl.fct.di.novasys.babel.core.GenericProtocol;
@@ -29,12 +46,17 @@ import protocols.statemachine.notifications.ChannelReadyNotification;
 import protocols.agreement.notifications.DecidedNotification;
 import protocols.agreement.requests.ProposeRequest;
 import protocols.statemachine.notifications.ExecuteNotification;
+import protocols.statemachine.requests.LocalReadReply;
+import protocols.statemachine.requests.LocalReadRequest;
 import protocols.statemachine.requests.OrderRequest;
 
 import java.io.*;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -57,8 +79,6 @@ public class StateMachine extends GenericProtocol {
 
     private enum State {JOINING, ACTIVE}
 
-    private static final int ONGOING = 1;
-
     //Protocol information, to register in babel
     public static final String PROTOCOL_NAME = "StateMachine";
     public static final short PROTOCOL_ID = 200;
@@ -67,12 +87,37 @@ public class StateMachine extends GenericProtocol {
 
     private final Host self;     //My own address/port
     private final int channelId; //Id of the created channel
+    //Agreement group this state machine executes, and the id of the agreement protocol ordering it
+    private final int group;
+    private final short agreementId;
 
     private State state;
-    private List<Host> membership;
+    private MembershipView membership;
     private List<Host> connected;
-    private Map<Integer, Operation> decided;
-    private Map<Integer, Operation> mine_decided;
+    //The reorder buffer: decisions above lastDecided wait here until triggerExecute reaches them
+    private InstanceStore<Operation> decided;
+    //Executed decisions, in memory-mapped segments off the heap
+    private final DecidedLog decidedLog;
+    //Latest HashApp snapshot (on disk) and the instance it covers, taken every snapshotInterval instances
+    //(0 disables them). The log before it is truncated, joiners get the snapshot and the decisions after it
+    private final Path dataDir;
+    private final int snapshotInterval;
+    private Path snapshotFile;
+    private int snapshotInstance;
+
+    //State streamed to each joiner in chunks of stateChunkBytes, at most stateWindow of them unacknowledged
+    private final int stateChunkBytes;
+    private final int stateWindow;
+    private Map<Host, StateTransfer> transfers;
+    //Joiners still to report in, and the member streaming their state. Only that one sends it
+    private Map<Host, Host> streamers;
+    //While joining: the state being received, from whom, how much of it arrived and since when
+    private byte[] incomingState;
+    private Host incomingFrom;
+    private int incomingInstance;
+    private int incomingReceived;
+    private long incomingSince;
+    private InstanceStore<Operation> mine_decided;
 
     private Map<Integer, Host> joiningNodes;
 
@@ -88,28 +133,134 @@ public class StateMachine extends GenericProtocol {
     private Map<Host,Integer> failedConn;
 
     private int handicap=0;
+    //The agreement orders decisions itself (EPaxos): the instance we proposed at means nothing
+    private final boolean leaderless;
+    //epaxos_joins=false keeps the membership of a leaderless agreement fixed, since a joiner would execute old rows again
+    private final boolean leaderlessJoins;
+    //Mencius: we only propose in the instances we own, i mod n == our index
+    private final boolean mencius;
+    //Maximum number of our own proposals waiting for a decision at the same time
+    private final int pipelineWindow;
+
+    //Last instance executed by each replica, advertised periodically through RPCMessage
+    private final int rpcInterval;
+    private Map<Host, Integer> peersDecided;
+    private int gcWatermark;
+    //Catch-up: with no progress since the last round while a peer executed further, we fetch
+    //catchupBatch decisions at a time from the most up-to-date one
+    private final int catchupBatch;
+    private int decidedAtLastRound;
+    //Gap filling: an instance nobody proposed blocks execution of everything decided after it,
+    //once such a hole is older than gapTimeout ms (0 disables it) we propose a no-op in it
+    private final int gapTimeout;
+    private long gapSince;
+    //Holes we already proposed a no-op into, from then on the agreement retries them with higher ballots
+    private Set<Integer> filling;
+
+    //Client operations packed into a single instance, bounded by count, bytes and linger time (ms)
+    private final int batchMaxOps;
+    private final int batchMaxBytes;
+    private final int batchLinger;
+    private long batchTimer;
+    private boolean lingerExpired;
+
+    //Leader lease as last reported by the agreement. While someone else holds it our operations
+    //are forwarded to them; while we hold it reads are served locally once we are caught up
+    private Host leaseHolder;
+    private long leaseExpiry;
+    private int leaseFrom;
+    private int maxDecided;
+    //Forwarded operations not executed yet, sent again if the lease moves elsewhere
+    private Map<String, Operation> forwarded;
+    //Client operations executed in the last dedupeWindow instances and where, in execution order. A
+    //re-forwarded operation can be decided twice, only its first decision runs
+    private final int dedupeWindow;
+    private Map<String, Integer> executedIds;
+
+    //Reads confirmed with a majority instead (no clocks involved): those waiting for the next round,
+    //those in the round in flight and when it started, and those waiting for their index to be executed
+    private final boolean readIndex;
+    private List<LocalReadRequest> readQueue;
+    private List<LocalReadRequest> readRoundReads;
+    private int readRound;
+    private long readRoundStart;
+    private TreeMap<Integer, List<LocalReadRequest>> readsAt;
+    private Map<Integer, Long> readsAtSince;
+    private short readClient;
 
     public StateMachine(Properties props) throws IOException, HandlerRegistrationException {
-        super(PROTOCOL_NAME, PROTOCOL_ID);
+        this(props, 0);
+    }
+
+    //Each group is an independent lane: its own protocol ids, channel (port) and instance space
+    public StateMachine(Properties props, int group) throws IOException, HandlerRegistrationException {
+        super(group == 0 ? PROTOCOL_NAME : PROTOCOL_NAME + "-" + group, (short) (PROTOCOL_ID + group));
+        this.group = group;
+        this.agreementId = (short) (Agreement.PROTOCOL_ID + group);
         nextInstance = 0;
         lastDecided = -1;
         waiting_decision = 0;
+        pipelineWindow = Integer.parseInt(props.getProperty("pipeline_window", "1"));
+        leaderless = props.getProperty("agreement_protocol", "paxos").equalsIgnoreCase("epaxos");
+        leaderlessJoins = Boolean.parseBoolean(props.getProperty("epaxos_joins", "true"));
+        mencius = Boolean.parseBoolean(props.getProperty("mencius", "false"))
+                && props.getProperty("agreement_protocol", "paxos").equalsIgnoreCase("paxos");
+        rpcInterval = Integer.parseInt(props.getProperty("rpc_interval", "1000"));
+        snapshotInterval = Integer.parseInt(props.getProperty("snapshot_interval", "0"));
+        dataDir = Paths.get(props.getProperty("data_dir", "data"));
+        snapshotFile = null;
+        snapshotInstance = -1;
+        stateChunkBytes = Integer.parseInt(props.getProperty("state_chunk_bytes", "65536"));
+        stateWindow = Integer.parseInt(props.getProperty("state_window", "8"));
+        transfers = new HashMap<>();
+        streamers = new HashMap<>();
+        incomingState = null;
+        peersDecided = new HashMap<>();
+        gcWatermark = -1;
+        catchupBatch = Integer.parseInt(props.getProperty("catchup_batch", "256"));
+        decidedAtLastRound = -1;
+        gapTimeout = Integer.parseInt(props.getProperty("gap_timeout", "0"));
+        gapSince = -1;
+        filling = new HashSet<>();
+        batchMaxOps = Integer.parseInt(props.getProperty("batch_max_ops", "1"));
+        batchMaxBytes = Integer.parseInt(props.getProperty("batch_max_bytes", "65536"));
+        batchLinger = Integer.parseInt(props.getProperty("batch_linger", "0"));
+        batchTimer = -1;
+        lingerExpired = false;
+        leaseHolder = null;
+        leaseExpiry = 0;
+        leaseFrom = 0;
+        maxDecided = -1;
+        forwarded = new LinkedHashMap<>();
+        dedupeWindow = Integer.parseInt(props.getProperty("dedupe_window", "100000"));
+        executedIds = new LinkedHashMap<>();
+        //Leaderless decisions are numbered locally, an index from other replicas would mean nothing
+        readIndex = Boolean.parseBoolean(props.getProperty("read_index", "false")) && !leaderless;
+        readQueue = new LinkedList<>();
+        readRoundReads = null;
+        readRound = 0;
+        readRoundStart = 0;
+        readsAt = new TreeMap<>();
+        readsAtSince = new HashMap<>();
 
         setConnThread();
 
         failedConn = new HashMap<>();
-        decided = new HashMap<Integer, Operation>();
+        int instanceWindow = Integer.parseInt(props.getProperty("instance_window", "8192"));
+        decided = new InstanceStore<>(instanceWindow);
         pending = new LinkedList<Operation>();
         deciding = new HashMap<Integer, Operation>();
-        mine_decided = new HashMap<Integer, Operation>();
+        mine_decided = new InstanceStore<>(instanceWindow);
         connected = new LinkedList<>();
         joiningNodes = new HashMap<>();
 
         String address = props.getProperty("address");
-        String port = props.getProperty("p2p_port");
+        String port = String.valueOf(groupPort(props, Integer.parseInt(props.getProperty("p2p_port")), group));
 
-        logger.info("Listening on {}:{}", address, port);
+        logger.info("Group {} listening on {}:{}", group, address, port);
         this.self = new Host(InetAddress.getByName(address), Integer.parseInt(port));
+        decidedLog = new DecidedLog(dataDir, "decided-" + getProtoId() + "-" + port,
+                Integer.parseInt(props.getProperty("decided_segment_bytes", "16777216")));
 
         Properties channelProps = new Properties();
         channelProps.setProperty(TCPChannel.ADDRESS_KEY, address);
@@ -126,18 +277,36 @@ public class StateMachine extends GenericProtocol {
         registerChannelEventHandler(channelId, InConnectionUp.EVENT_ID, this::uponInConnectionUp);
         registerChannelEventHandler(channelId, InConnectionDown.EVENT_ID, this::uponInConnectionDown);
 
+        registerMessageSerializer(channelId, RPCMessage.MSG_ID, RPCMessage.serializer);
+        registerMessageSerializer(channelId, NotifyMessage.MSG_ID, NotifyMessage.serializer);
+        registerMessageSerializer(channelId, ForwardMessage.MSG_ID, ForwardMessage.serializer);
+        registerMessageSerializer(channelId, StateChunkMessage.MSG_ID, StateChunkMessage.serializer);
+        registerMessageSerializer(channelId, StateChunkAckMessage.MSG_ID, StateChunkAckMessage.serializer);
+        registerMessageSerializer(channelId, FetchMessage.MSG_ID, FetchMessage.serializer);
+        registerMessageSerializer(channelId, FetchReplyMessage.MSG_ID, FetchReplyMessage.serializer);
         registerMessageHandler(channelId, NotifyMessage.MSG_ID, this::uponNotifyMessage);
+        registerMessageHandler(channelId, RPCMessage.MSG_ID, this::uponRPCMessage);
+        registerMessageHandler(channelId, ForwardMessage.MSG_ID, this::uponForwardMessage);
+        registerMessageHandler(channelId, StateChunkMessage.MSG_ID, this::uponStateChunkMessage);
+        registerMessageHandler(channelId, StateChunkAckMessage.MSG_ID, this::uponStateChunkAckMessage);
+        registerMessageHandler(channelId, FetchMessage.MSG_ID, this::uponFetchMessage);
+        registerMessageHandler(channelId, FetchReplyMessage.MSG_ID, this::uponFetchReplyMessage);
         /*--------------------- Register Reply Handlers ----------------------------- */
         registerReplyHandler(CurrentStateReply.REQUEST_ID,this::uponCurrentStateReply);
+        registerReplyHandler(ReadIndexReply.REPLY_ID, this::uponReadIndexReply);
 
         /*--------------------- Register Request Handlers ----------------------------- */
         registerRequestHandler(OrderRequest.REQUEST_ID, this::uponOrderRequest);
+        registerRequestHandler(LocalReadRequest.REQUEST_ID, this::uponLocalReadRequest);
 
         /*--------------------- Register Notification Handlers ----------------------------- */
         subscribeNotification(DecidedNotification.NOTIFICATION_ID, this::uponDecidedNotification);
+        subscribeNotification(LeaseNotification.NOTIFICATION_ID, this::uponLeaseNotification);
 
         /*--------------------- Register Timer Handlers ----------------------------- */
         registerTimerHandler(TimerRPC.TIMEOUT_ID, this::uponRPC);
+        registerTimerHandler(BatchTimer.TIMEOUT_ID, this::uponBatchTimer);
+        registerTimerHandler(GapTimer.TIMEOUT_ID, this::uponGapTimer);
     }
 
     @Override
@@ -152,7 +321,8 @@ public class StateMachine extends GenericProtocol {
             String[] hostElements = s.split(":");
             Host h;
             try {
-                h = new Host(InetAddress.getByName(hostElements[0]), Integer.parseInt(hostElements[1]));
+                h = new Host(InetAddress.getByName(hostElements[0]),
+                        groupPort(props, Integer.parseInt(hostElements[1]), group));
             } catch (UnknownHostException e) {
                 throw new AssertionError("Error parsing initial_membership", e);
             }
@@ -163,14 +333,13 @@ public class StateMachine extends GenericProtocol {
             state = State.ACTIVE;
             logger.info("Starting in ACTIVE as I am part of initial membership");
             //I'm part of the initial membership, so I'm assuming the system is bootstrapping
-            membership = new LinkedList<>(initialMembership);
-
-            Collections.sort(membership, new Comparator<Host>() {
+            Collections.sort(initialMembership, new Comparator<Host>() {
                 @Override
                 public int compare(Host o1, Host o2) {
                     return o1.toString().compareTo(o2.toString());
                 }
             });
+            membership = new MembershipView(-1, initialMembership);
 
             membership.forEach(this::openConnection);
             triggerNotification(new JoinedNotification(membership, 0));
@@ -179,20 +348,28 @@ public class StateMachine extends GenericProtocol {
             logger.info("Starting in JOINING as I am not part of initial membership");
             //You have to do something to join the system and know which instance you joined
             // (and copy the state of that instance)
-            membership = new LinkedList<>(initialMembership);
-
-            Collections.sort(membership, new Comparator<Host>() {
+            Collections.sort(initialMembership, new Comparator<Host>() {
                 @Override
                 public int compare(Host o1, Host o2) {
                     return o1.toString().compareTo(o2.toString());
                 }
             });
+            membership = new MembershipView(-1, initialMembership);
 
             membership.forEach(this::openConnection);
         }
+        setupPeriodicTimer(new TimerRPC(TimerRPC.TIMEOUT_ID, lastDecided), rpcInterval, rpcInterval);
+        //Leaderless replicas have no holes, Mencius agreements revoke the slots of quiet owners themselves
+        if (gapTimeout > 0 && !leaderless && !mencius)
+            setupPeriodicTimer(new GapTimer(), gapTimeout, gapTimeout);
     }
 
 
+    //Group g of a replica listens group_port_stride * g ports above its configured p2p_port
+    public static int groupPort(Properties props, int port, int group) {
+        return port + group * Integer.parseInt(props.getProperty("group_port_stride", "100"));
+    }
+
     private void setConnThread(){
         connThread = new Thread(new Runnable() {
             @Override
@@ -215,11 +392,144 @@ public class StateMachine extends GenericProtocol {
     }
 
     private void uponCurrentStateReply(CurrentStateReply reply, short sourceProto){
-            statebytes= reply.getState();
-            Host h =joiningNodes.get(reply.getInstance());
+        if (snapshotInterval > 0 && reply.getInstance() > snapshotInstance)
+            takeSnapshot(reply.getInstance(), reply.getState());
+        Host h =joiningNodes.remove(reply.getInstance());
+        if (h == null)
+            return;
+        //The state covers everything up to the instance, only what was decided after it goes along
+        Path file = reply.getInstance() == snapshotInstance ? snapshotFile
+                : writeState("join", reply.getInstance(), reply.getState());
+        startTransfer(h, reply.getInstance(), reply.getInstance(), file);
+        logger.debug("Added {} to membership ", h);
+    }
+
+    private void takeSnapshot(int instance, byte[] state) {
+        Path previous = snapshotFile;
+        snapshotFile = writeState("snapshot", instance, state);
+        snapshotInstance = instance;
+        releaseState(previous);
+        truncateLog(snapshotInstance + 1);
+        logger.debug("Snapshot at instance {}, {} bytes, log kept from {}",
+                snapshotInstance, state.length, decidedLog.getFirst());
+    }
+
+    private Path writeState(String kind, int instance, byte[] state) {
+        Path file = dataDir.resolve(kind + "-" + getProtoId() + "-" + self.getPort() + "-" + instance + ".state");
+        try {
+            Files.write(file, state);
+        } catch (IOException e) {
+            throw new AssertionError("Could not write state file " + file, e);
+        }
+        return file;
+    }
+
+    //Deletes a state file once it is neither the latest snapshot nor being sent to anyone
+    private void releaseState(Path file) {
+        if (file == null || file.equals(snapshotFile))
+            return;
+        for (StateTransfer transfer : transfers.values())
+            if (transfer.getFile().equals(file))
+                return;
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Could not delete state file {}", file, e);
+        }
+    }
+
+    /*--------------------------------- State Transfer ---------------------------------------- */
+    private void startTransfer(Host joiner, int instance, int stateInstance, Path file) {
+        StateTransfer transfer;
+        try {
+            transfer = new StateTransfer(joiner, instance, stateInstance, membership.getHosts(), file,
+                    stateChunkBytes, stateWindow);
+        } catch (IOException e) {
+            logger.error("Could not start the state transfer to {}", joiner, e);
+            return;
+        }
+        StateTransfer previous = transfers.put(joiner, transfer);
+        if (previous != null) {
+            previous.close();
+            releaseState(previous.getFile());
+        }
+        pumpTransfer(transfer);
+    }
+
+    private void pumpTransfer(StateTransfer transfer) {
+        if (transfer.isComplete()) {
+            finishTransfer(transfer);
+            return;
+        }
+        StateChunkMessage chunk;
+        while ((chunk = transfer.nextChunk()) != null)
+            sendMessage(chunk, transfer.getJoiner());
+    }
+
+    //The joiner holds the whole state, what was decided since it was taken follows
+    private void finishTransfer(StateTransfer transfer) {
+        transfers.remove(transfer.getJoiner());
+        transfer.close();
+        sendMessage(new NotifyMessage(transfer.getInstance(), transfer.getStateInstance(), transfer.getMembership(),
+                decisionsAfter(transfer.getStateInstance()), executedUpTo(transfer.getStateInstance()), new byte[0]),
+                transfer.getJoiner());
+        logger.info("Sent {} bytes of state at instance {} to {} in {} ms", transfer.getTotal(),
+                transfer.getStateInstance(), transfer.getJoiner(), System.currentTimeMillis() - transfer.getStartedAt());
+        releaseState(transfer.getFile());
+    }
+
+    private void uponStateChunkAckMessage(StateChunkAckMessage msg, Host host, short sourceProto, int channelId) {
+        StateTransfer transfer = transfers.get(host);
+        if (transfer == null || transfer.getInstance() != msg.getInstance())
+            return;
+        transfer.ack(msg.getReceived());
+        pumpTransfer(transfer);
+    }
+
+    //Chunks are taken in order only, anything else is answered with how far we got so the sender resumes there
+    private void uponStateChunkMessage(StateChunkMessage msg, Host host, short sourceProto, int channelId) {
+        if (state != State.JOINING && msg.getInstance() <= lastDecided)
+            return;
+        //A transfer is one sender's state at one instance, another one starts over
+        if (incomingState == null || incomingInstance != msg.getInstance() || !host.equals(incomingFrom)) {
+            incomingState = new byte[msg.getTotal()];
+            incomingInstance = msg.getInstance();
+            incomingFrom = host;
+            incomingReceived = 0;
+            incomingSince = System.currentTimeMillis();
+        }
+        if (msg.getOffset() == incomingReceived) {
+            System.arraycopy(msg.getData(), 0, incomingState, incomingReceived, msg.getData().length);
+            incomingReceived += msg.getData().length;
+        }
+        sendMessage(new StateChunkAckMessage(msg.getInstance(), incomingReceived), host);
+    }
+
+    //Executed decisions after instance as they are stored in the log, and those waiting to be executed
+    private Map<Integer, ByteBuffer> decisionsAfter(int instance) {
+        Map<Integer, ByteBuffer> after = new LinkedHashMap<>();
+        int to = Math.min(lastDecided, decidedLog.getLast());
+        for (int i = Math.max(instance + 1, decidedLog.getFirst()); i <= to; i++)
+            after.put(i, decidedLog.slice(i));
+        decided.forEach((i, op) -> {
+            if (i > instance) {
+                try {
+                    after.put(i, DecidedLog.encode(op));
+                } catch (IOException e) {
+                    logger.error("Could not encode decision {}", i, e);
+                }
+            }
+        });
+        return after;
+    }
 
-            sendMessage(new NotifyMessage(reply.getInstance(), membership, decided,statebytes), h);
-            logger.debug("Added {} to membership ", h);
+    //Decisions still needed by joiners waiting for their state are kept
+    private void truncateLog(int keepFrom) {
+        for (int joining : joiningNodes.keySet())
+            keepFrom = Math.min(keepFrom, joining + 1);
+        for (StateTransfer transfer : transfers.values())
+            keepFrom = Math.min(keepFrom, transfer.getStateInstance() + 1);
+        decidedLog.truncateBefore(keepFrom);
     }
 
     /*
@@ -258,36 +568,127 @@ public class StateMachine extends GenericProtocol {
         }
     }
 
+    private void uponLocalReadRequest(LocalReadRequest request, short sourceProto) {
+        if (canReadLocally()) {
+            sendReply(new LocalReadReply(request.getOpId()), sourceProto);
+        } else if (readIndex && state == State.ACTIVE) {
+            readClient = sourceProto;
+            readQueue.add(request);
+            startReadRound();
+        } else {
+            uponOrderRequest(new OrderRequest(request.getOpId(), request.getOperation()), sourceProto);
+        }
+    }
+
+    //One round at a time, reads arriving meanwhile share the next one
+    private void startReadRound() {
+        if (readRoundReads != null || readQueue.isEmpty())
+            return;
+        readRound++;
+        readRoundReads = readQueue;
+        readQueue = new LinkedList<>();
+        readRoundStart = System.currentTimeMillis();
+        sendRequest(new ReadIndexRequest(readRound), agreementId);
+    }
+
+    private void uponReadIndexReply(ReadIndexReply reply, short sourceProto) {
+        if (reply.getRound() != readRound || readRoundReads == null)
+            return;
+        readsAt.computeIfAbsent(reply.getIndex(), k -> new LinkedList<>()).addAll(readRoundReads);
+        readsAtSince.putIfAbsent(reply.getIndex(), System.currentTimeMillis());
+        readRoundReads = null;
+        serveReads();
+        startReadRound();
+    }
+
+    //Every operation that completed before the read was decided at or below its index
+    private void serveReads() {
+        while (!readsAt.isEmpty() && readsAt.firstKey() <= lastDecided) {
+            readsAtSince.remove(readsAt.firstKey());
+            for (LocalReadRequest request : readsAt.pollFirstEntry().getValue())
+                sendReply(new LocalReadReply(request.getOpId()), readClient);
+        }
+    }
+
+    //Holding the lease means no one else can get anything decided, so once every decision we know of
+    //(and every one from older leaders) is executed, the application state is up to date
+    private boolean canReadLocally() {
+        return state == State.ACTIVE && self.equals(leaseHolder) && System.currentTimeMillis() < leaseExpiry
+                && lastDecided + 1 >= leaseFrom && lastDecided == maxDecided;
+    }
+
     /*--------------------------------- Notifications ---------------------------------------- */
     private void uponDecidedNotification(DecidedNotification notification, short sourceProto)  {
+        //Decisions of the other groups belong to their own state machines
+        if (sourceProto != agreementId)
+            return;
         logger.debug("Received notification: " + notification);
         //Maybe we should make sure operations are executed in order?
         //You should be careful and check if this operation if an application operation (and send it up)
         //or if this is an operations that was executed by the state machine itself (in which case you should execute)
-        if (notification.getInstance() >= nextInstance)
-            nextInstance = notification.getInstance() + 1;
-        Operation op = notification.getOperation();
+        learn(notification.getInstance(), notification.getOperation());
+        triggerExecute();
+        proposePending();
+        //computeHash(notification.getInstance());
+    }
+
+    //A decision, from our agreement protocol or fetched from a replica further ahead
+    private void learn(int instance, Operation op) {
+        if (instance >= nextInstance)
+            nextInstance = instance + 1;
+        if (instance > maxDecided)
+            maxDecided = instance;
         //decided.put(notification.getInstance(),new Operation(notification.getOperation(), notification.getOpId()));
-        decided.put(notification.getInstance(), op);
+        decided.put(instance, op);
 
-        Operation proposed_op = deciding.remove(notification.getInstance());
+        Operation proposed_op = leaderless ? removeDeciding(op) : deciding.remove(instance);
 
         if (proposed_op != null) {
             waiting_decision--;
             if (proposed_op.equals(op)) {
                 if (op.getOpType() == Operation.NORMAL) {
-                    mine_decided.put(notification.getInstance(), op);
+                    mine_decided.put(instance, op);
                     handicap=0;
                 }
             } else {
                 //System.out.println(proposed_op.getKey());
-                pending.add(0, proposed_op);
+                requeue(proposed_op);
                 handicap++;
             }
         }
-        triggerExecute();
-        proposePending();
-        //computeHash(notification.getInstance());
+    }
+
+    //Every proposal eventually commits where it was proposed, find it by value
+    private Operation removeDeciding(Operation op) {
+        Iterator<Map.Entry<Integer, Operation>> it = deciding.entrySet().iterator();
+        while (it.hasNext()) {
+            Operation proposed = it.next().getValue();
+            if (proposed.equals(op)) {
+                it.remove();
+                return proposed;
+            }
+        }
+        return null;
+    }
+
+    private void uponLeaseNotification(LeaseNotification notification, short sourceProto) {
+        if (sourceProto != agreementId)
+            return;
+        Host previous = leaseHolder;
+        leaseHolder = notification.getHolder();
+        leaseExpiry = notification.getExpiresAt();
+        leaseFrom = notification.getFromInstance();
+        if (leaseHolder.equals(previous) || forwarded.isEmpty())
+            return;
+        if (leaseHolder.equals(self)) {
+            pending.addAll(0, forwarded.values());
+            forwarded.clear();
+        } else {
+            for (Operation op : forwarded.values())
+                sendMessage(new ForwardMessage(op), leaseHolder);
+        }
+        if (state == State.ACTIVE)
+            proposePending();
     }
 
     private void computeHash(int instance){
@@ -305,18 +706,46 @@ public class StateMachine extends GenericProtocol {
             Host process = Host.serializer.deserialize(buf);
 
             if (operation.getOpType() == Operation.ADD) {
-                membership.add(process);
-                AddReplicaRequest request = new AddReplicaRequest(instance, process);
-                sendRequest(request, Agreement.PROTOCOL_ID);
+                membership = membership.withAdded(instance, process);
+                AddReplicaRequest request = new AddReplicaRequest(instance, process, membership);
+                sendRequest(request, agreementId);
                 openConnection(process);
-                joiningNodes.put(instance,process);
-                sendRequest(new CurrentStateRequest(instance),HashApp.PROTO_ID);
+                Host streamer = streamerFor(process);
+                streamers.put(process, streamer);
+                if (!streamer.equals(self)) {
+                    logger.debug("Added {} to membership, {} sends the state", process, streamer);
+                } else if (snapshotFile != null) {
+                    //The joiner replays the decisions between our snapshot and this one
+                    startTransfer(process, instance, snapshotInstance, snapshotFile);
+                    logger.debug("Added {} to membership from snapshot at {}", process, snapshotInstance);
+                } else {
+                    joiningNodes.put(instance,process);
+                    sendRequest(new CurrentStateRequest(instance),HashApp.PROTO_ID);
+                }
                 //sendMessage(new NotifyMessage(instance, membership, decided), process);
                 //logger.debug("Added {} to membership ", process);
             } else if (operation.getOpType() == Operation.REMOVE) {
-                RemoveReplicaRequest request = new RemoveReplicaRequest(instance, process);
-                sendRequest(request, Agreement.PROTOCOL_ID);
-                membership.remove(process);
+                membership = membership.withRemoved(instance, process);
+                RemoveReplicaRequest request = new RemoveReplicaRequest(instance, process, membership);
+                sendRequest(request, agreementId);
+                peersDecided.remove(process);
+                StateTransfer transfer = transfers.remove(process);
+                if (transfer != null) {
+                    transfer.close();
+                    releaseState(transfer.getFile());
+                }
+                streamers.remove(process);
+                //Joiners the removed member was streaming to get the current state from the next one in line
+                for (Map.Entry<Host, Host> entry : streamers.entrySet()) {
+                    if (!entry.getValue().equals(process))
+                        continue;
+                    entry.setValue(streamerFor(entry.getKey()));
+                    if (entry.getValue().equals(self) && !transfers.containsKey(entry.getKey())) {
+                        logger.debug("{} left while streaming to {}, taking over", process, entry.getKey());
+                        joiningNodes.put(lastDecided, entry.getKey());
+                        sendRequest(new CurrentStateRequest(lastDecided), HashApp.PROTO_ID);
+                    }
+                }
                 logger.debug("Removed {} from membership ", process);
             }
 
@@ -325,26 +754,90 @@ public class StateMachine extends GenericProtocol {
         }
     }
 
+    //The first member in the view other than the joiner, every replica picks the same one
+    private Host streamerFor(Host joiner) {
+        for (Host h : membership)
+            if (!h.equals(joiner))
+                return h;
+        return self;
+    }
+
+    //Sent to joiners, and to replicas so far behind that they had to catch up from a snapshot
     private void uponNotifyMessage(NotifyMessage msg, Host host, short sourceProto, int channelId) {
         int instance = msg.getInstance();
-        nextInstance=instance+1;
+        if (state == State.ACTIVE && instance <= lastDecided)
+            return;
+        //The state came in chunks unless it was sent along, by the same member and for the same instance
+        boolean chunked = msg.getState().length == 0 && incomingState != null;
+        if (chunked && (!host.equals(incomingFrom) || incomingInstance != instance
+                || incomingReceived < incomingState.length)) {
+            logger.warn("Notify from {} at instance {} does not match the state received from {} at {}",
+                    host, instance, incomingFrom, incomingInstance);
+            return;
+        }
+        Map<Integer, Operation> decisions = new LinkedHashMap<>();
+        try {
+            for (Map.Entry<Integer, ByteBuffer> entry : msg.getDecided().entrySet())
+                decisions.put(entry.getKey(), DecidedLog.decode(entry.getValue()));
+        } catch (IOException e) {
+            logger.error("Corrupted decisions from {}", host, e);
+            return;
+        }
+        nextInstance=Math.max(nextInstance, instance+1);
         lastDecided=instance;
-        if (msg.getDecided().size() > decided.size()) {
-            decided = msg.getDecided();
-            statebytes=msg.getState();
-            membership=msg.getMembership();
-            for (Host h:membership){
-                openConnection(h);
+        MembershipView view = new MembershipView(instance, msg.getMembership());
+        //Everything up to the state instance is already part of the shipped state
+        int from = msg.getState_instance();
+        decided.advanceTo(from + 1);
+        executedIds = new LinkedHashMap<>(msg.getExecuted());
+        decisions.forEach(decided::put);
+        statebytes = chunked ? incomingState : msg.getState();
+        logger.info("At instance {} with {} bytes of state from instance {}, transfer took {} ms",
+                instance, statebytes.length, from, chunked ? System.currentTimeMillis() - incomingSince : 0);
+        incomingState = null;
+        incomingFrom = null;
+        membership=view;
+        for (Host h:membership){
+            openConnection(h);
+        }
+        sendRequest(new InstallStateRequest(statebytes),HashApp.PROTO_ID);
+        if (snapshotInterval > 0)
+            takeSnapshot(from, statebytes);
+        //Replay what was decided up to our join, the membership we were given already includes its changes
+        for (int i = from + 1; i <= instance; i++) {
+            Operation op = decided.get(i);
+            if (op == null) {
+                logger.error("Decision {} missing between state {} and join instance {}", i, from, instance);
+                break;
             }
-            sendRequest(new InstallStateRequest(statebytes),HashApp.PROTO_ID);
-            logger.debug("Current instace {}, lastDecided  {}, MAP_SIZE {}",
-                    instance,lastDecided, decided.size());
+            if (op.getOpType() == Operation.NORMAL)
+                executeDecided(i, op);
+            decidedLog.append(i, op);
         }
+        //Our proposals up to here were decided as proposed or lost to another value, like in learn().
+        //Those at or below the state instance are covered by the state, what was decided there is unknown
+        Iterator<Map.Entry<Integer, Operation>> proposals = deciding.entrySet().iterator();
+        while (proposals.hasNext()) {
+            Map.Entry<Integer, Operation> proposal = proposals.next();
+            if (proposal.getKey() > instance)
+                continue;
+            proposals.remove();
+            waiting_decision--;
+            Operation op = decided.get(proposal.getKey());
+            if (op != null && !proposal.getValue().equals(op))
+                requeue(proposal.getValue());
+        }
+        decided.advanceTo(instance + 1);
+        logger.debug("Current instace {}, lastDecided  {}, MAP_SIZE {}",
+                instance,lastDecided, decided.size());
         state=State.ACTIVE;
-        triggerNotification(new JoinedNotification(msg.getMembership(), instance));
+        triggerNotification(new JoinedNotification(view, instance));
+        triggerExecute();
+        proposePending();
     }
 
     private void triggerExecute() {
+        int executedBefore = lastDecided;
         while (decided.get(lastDecided + 1) != null) {
             Operation decideOp = decided.get(lastDecided + 1);
             Operation mine = mine_decided.get(lastDecided + 1);
@@ -363,27 +856,158 @@ public class StateMachine extends GenericProtocol {
             if (decideOp.getOpType() != Operation.NORMAL) {
                 processReplicaManagement(lastDecided+1, decideOp);
             }else{
-                triggerNotification(new ExecuteNotification(UUID.fromString(decideOp.getKey()), decideOp.getData()));
+                executeDecided(lastDecided + 1, decideOp);
             }
+            decidedLog.append(lastDecided + 1, decideOp);
             lastDecided++;
+            if (snapshotInterval > 0 && (lastDecided + 1) % snapshotInterval == 0)
+                sendRequest(new CurrentStateRequest(lastDecided), HashApp.PROTO_ID);
+
+        }
+        decided.advanceTo(lastDecided + 1);
+        serveReads();
+        //A hole restarts its clock every time execution moves, only a stuck lastDecided + 1 ages
+        if (lastDecided >= maxDecided)
+            gapSince = -1;
+        else if (gapSince < 0 || executedBefore != lastDecided)
+            gapSince = System.currentTimeMillis();
+    }
+
+    private void executeDecided(int instance, Operation decideOp) {
+        if (Noop.isNoop(decideOp)) {
+            logger.debug("No-op at instance {}", instance);
+        } else if (Batch.isBatch(decideOp)) {
+            try {
+                for (Operation op : Batch.unpack(decideOp))
+                    execute(instance, op);
+            } catch (IOException e) {
+                logger.error("Could not unpack batch decided at instance {}", instance, e);
+            }
+        } else {
+            execute(instance, decideOp);
+        }
+    }
 
+    private void execute(int instance, Operation op) {
+        if (!forwarded.isEmpty())
+            forwarded.remove(op.getKey());
+        if (!firstExecution(instance, op)) {
+            logger.debug("Operation {} decided again at instance {}, already executed", op.getKey(), instance);
+            return;
         }
-        /*
-        if(lastDecided<nextInstance-2){
-            System.out.println(lastDecided+1);
-            sendRequest(new ProposeRequest(lastDecided+1, null, null,handicap), Agreement.PROTOCOL_ID);
-        }*/
+        triggerNotification(new ExecuteNotification(UUID.fromString(op.getKey()), op.getData()));
+    }
+
+    //Ids are forgotten dedupeWindow instances after they ran, at the same point on every replica
+    private boolean firstExecution(int instance, Operation op) {
+        Iterator<Integer> oldest = executedIds.values().iterator();
+        while (oldest.hasNext() && oldest.next() <= instance - dedupeWindow)
+            oldest.remove();
+        return executedIds.putIfAbsent(op.getKey(), instance) == null;
+    }
+
+    //Operations executed up to instance, for a replica starting from the state at that instance
+    private Map<String, Integer> executedUpTo(int instance) {
+        Map<String, Integer> executed = new LinkedHashMap<>();
+        executedIds.forEach((id, at) -> {
+            if (at <= instance)
+                executed.put(id, at);
+        });
+        return executed;
     }
 
     private void proposePending() {
-        while (waiting_decision < ONGOING && !pending.isEmpty()) {
-            Operation pending_operation = pending.remove(0);
+        Host holder = forwardTarget();
+        if (holder != null) {
+            for (Operation op : pending) {
+                if (op.getOpType() == Operation.NORMAL)
+                    forwarded.put(op.getKey(), op);
+                sendMessage(new ForwardMessage(op), holder);
+            }
+            pending.clear();
+            return;
+        }
+        while (waiting_decision < pipelineWindow && !pending.isEmpty()) {
+            Operation pending_operation = nextProposal();
+            if (pending_operation == null)
+                break; //waiting for the batch to fill up
+            if (mencius)
+                nextInstance += Math.floorMod(membership.indexOf(self) - nextInstance, membership.size());
             deciding.put(nextInstance, pending_operation);
-            sendRequest(new ProposeRequest(nextInstance++, pending_operation.getKey().toString(), pending_operation,handicap), Agreement.PROTOCOL_ID);
+            sendRequest(new ProposeRequest(nextInstance++, pending_operation.getKey().toString(), pending_operation,handicap), agreementId);
             waiting_decision++;
         }
     }
 
+    //Someone else's valid lease means our own proposals could not get through
+    private Host forwardTarget() {
+        if (leaseHolder == null || leaseHolder.equals(self) || System.currentTimeMillis() >= leaseExpiry
+                || !membership.contains(leaseHolder))
+            return null;
+        return leaseHolder;
+    }
+
+    //Takes the next value to propose from pending: a membership operation on its own,
+    //or as many client operations as the batch limits allow
+    private Operation nextProposal() {
+        if (pending.get(0).getOpType() != Operation.NORMAL)
+            return pending.remove(0);
+
+        int count = 0;
+        int bytes = 0;
+        for (Operation op : pending) {
+            if (op.getOpType() != Operation.NORMAL || count == batchMaxOps
+                    || (count > 0 && bytes + Batch.sizeOf(op) > batchMaxBytes))
+                break;
+            count++;
+            bytes += Batch.sizeOf(op);
+        }
+        boolean full = count == batchMaxOps || count < pending.size() || bytes >= batchMaxBytes;
+        if (!full && !lingerExpired && batchLinger > 0) {
+            if (batchTimer < 0)
+                batchTimer = setupTimer(new BatchTimer(), batchLinger);
+            return null;
+        }
+
+        lingerExpired = false;
+        if (batchTimer >= 0) {
+            cancelTimer(batchTimer);
+            batchTimer = -1;
+        }
+        if (count == 1)
+            return pending.remove(0);
+        List<Operation> ops = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            ops.add(pending.remove(0));
+        try {
+            return Batch.pack(ops);
+        } catch (IOException e) {
+            logger.error("Could not pack batch of {} operations", count, e);
+            pending.addAll(0, ops);
+            return null;
+        }
+    }
+
+    //Puts a value that lost its instance back at the head of pending, unpacking batches
+    private void requeue(Operation op) {
+        if (!Batch.isBatch(op)) {
+            pending.add(0, op);
+            return;
+        }
+        try {
+            pending.addAll(0, Batch.unpack(op));
+        } catch (IOException e) {
+            logger.error("Could not unpack batch to propose again", e);
+        }
+    }
+
+    private void uponBatchTimer(BatchTimer timer, long timerId) {
+        batchTimer = -1;
+        lingerExpired = true;
+        if (state == State.ACTIVE)
+            proposePending();
+    }
+
     /*--------------------------------- Messages ---------------------------------------- */
     private void uponMsgFail(ProtoMessage msg, Host host, short destProto, Throwable throwable, int channelId) {
         //If a message fails to be sent, for whatever reason, log the message and the reason
@@ -395,18 +1019,14 @@ public class StateMachine extends GenericProtocol {
         logger.debug("Connection to {} is up", event.getNode());
         connected.add(event.getNode());
         failedConn.remove(event.getNode());
-        if (!membership.contains(event.getNode())) {
-            //4 bytes do address + short
-            ByteBuf buf = Unpooled.buffer(6);
-            try {
-                Host.serializer.serialize(event.getNode(), buf);
-                Operation operation = new Operation(Operation.ADD, "ADD", buf.array());
-                pending.add(0, operation);
-                proposePending();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        //Resume a state transfer the connection loss interrupted
+        StateTransfer transfer = transfers.get(event.getNode());
+        if (transfer != null) {
+            transfer.rewind();
+            pumpTransfer(transfer);
         }
+        if (!membership.contains(event.getNode()))
+            proposeAdd(event.getNode());
     }
 
     //fazer timmer para checkar se os membros da membership estao ativos
@@ -445,29 +1065,203 @@ public class StateMachine extends GenericProtocol {
 
     private void uponInConnectionUp(InConnectionUp event, int channelId) {
         logger.trace("Connection from {} is up", event.getNode());
-        if (!membership.contains(event.getNode())) {
-            //4 bytes do address + short
-            ByteBuf buf = Unpooled.buffer(6);
-            try {
-                Host.serializer.serialize(event.getNode(), buf);
-                Operation operation = new Operation(Operation.ADD, "ADD", buf.array());
-                pending.add(0, operation);
-                proposePending();
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
+        if (!membership.contains(event.getNode()))
+            proposeAdd(event.getNode());
     }
 
     private void uponInConnectionDown(InConnectionDown event, int channelId) {
         logger.info("Connection from {} is down, cause: {}", event.getNode(), event.getCause());
     }
 
+    private void proposeAdd(Host node) {
+        //A leaderless joiner would rebuild every row from instance 0 and execute it again on top of the state
+        if (leaderless && !leaderlessJoins) {
+            logger.warn("{} cannot join, the leaderless agreement has a fixed membership", node);
+            return;
+        }
+        //4 bytes do address + short
+        ByteBuf buf = Unpooled.buffer(6);
+        try {
+            Host.serializer.serialize(node, buf);
+            Operation operation = new Operation(Operation.ADD, "ADD", buf.array());
+            pending.add(0, operation);
+            proposePending();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
     private void uponRPC(TimerRPC timer, long timerID) {
+        if (state != State.ACTIVE)
+            return;
         RPCMessage message = new RPCMessage(lastDecided);
         for (Host host : membership) {
-            sendMessage(message, host);
+            if (!host.equals(self))
+                sendMessage(message, host);
+        }
+        //Leaderless replicas number decisions locally, there is no common range to fetch
+        if (!leaderless)
+            catchUp();
+        //Acks stopped coming, send again whatever was not acknowledged
+        for (StateTransfer transfer : new ArrayList<>(transfers.values())) {
+            if (System.currentTimeMillis() - transfer.getLastProgress() > rpcInterval) {
+                transfer.rewind();
+                pumpTransfer(transfer);
+            }
+        }
+        //The lease ran out without the holder getting our operations decided, propose them ourselves
+        if (!forwarded.isEmpty() && forwardTarget() == null) {
+            pending.addAll(0, forwarded.values());
+            forwarded.clear();
+            proposePending();
+        }
+        //No majority answered the read index round in time, order its reads instead
+        if (readRoundReads != null && System.currentTimeMillis() - readRoundStart > rpcInterval) {
+            for (LocalReadRequest request : readRoundReads)
+                uponOrderRequest(new OrderRequest(request.getOpId(), request.getOperation()), readClient);
+            readRoundReads = null;
+            startReadRound();
+        }
+        //An index that is not executed in time (an instance left open by a failed proposer) is not waited for,
+        //its reads are ordered like writes instead
+        List<LocalReadRequest> stalled = new LinkedList<>();
+        Iterator<Map.Entry<Integer, List<LocalReadRequest>>> waiting = readsAt.entrySet().iterator();
+        while (waiting.hasNext()) {
+            Map.Entry<Integer, List<LocalReadRequest>> entry = waiting.next();
+            if (System.currentTimeMillis() - readsAtSince.get(entry.getKey()) > rpcInterval) {
+                logger.debug("Read index {} not executed after {} ms, at {}", entry.getKey(), rpcInterval, lastDecided);
+                stalled.addAll(entry.getValue());
+                readsAtSince.remove(entry.getKey());
+                waiting.remove();
+            }
+        }
+        for (LocalReadRequest request : stalled)
+            uponOrderRequest(new OrderRequest(request.getOpId(), request.getOperation()), readClient);
+    }
+
+    /*--------------------------------- Gap filling ---------------------------------------- */
+    private void uponGapTimer(GapTimer timer, long timerId) {
+        if (state != State.ACTIVE || gapSince < 0 || System.currentTimeMillis() - gapSince < gapTimeout)
+            return;
+        //The lease holder fills its own holes, proposing here would only take leadership away from it
+        if (forwardTarget() != null)
+            return;
+        filling.removeIf(i -> i <= lastDecided);
+        //Paxos keeps whatever may already be chosen in the instance, the no-op only wins an empty one.
+        //Instances with a proposal of our own are left to the agreement's retries
+        for (int i = lastDecided + 1; i < maxDecided; i++) {
+            if (decided.get(i) == null && !deciding.containsKey(i) && filling.add(i)) {
+                logger.debug("Instance {} still open after {} ms, proposing a no-op", i, gapTimeout);
+                sendRequest(new ProposeRequest(i, Noop.KEY, Noop.create(), handicap), agreementId);
+            }
+        }
+        gapSince = System.currentTimeMillis();
+    }
+
+    private void uponForwardMessage(ForwardMessage msg, Host host, short sourceProto, int channelId) {
+        if (!membership.contains(host))
+            return;
+        //Sent again after the lease moved, but already decided through the previous holder
+        if (executedIds.containsKey(msg.getOperation().getKey()))
+            return;
+        pending.add(msg.getOperation());
+        if (state == State.ACTIVE)
+            proposePending();
+    }
+
+    private void uponRPCMessage(RPCMessage msg, Host host, short sourceProto, int channelId) {
+        if (!membership.contains(host))
+            return;
+        peersDecided.put(host, msg.getLastDecided());
+        //Only active replicas send these, the join is over
+        streamers.remove(host);
+        collectGarbage();
+    }
+
+    /*--------------------------------- Catch-up ---------------------------------------- */
+    private void catchUp() {
+        boolean stalled = lastDecided == decidedAtLastRound;
+        decidedAtLastRound = lastDecided;
+        Host ahead = null;
+        int aheadDecided = lastDecided;
+        for (Map.Entry<Host, Integer> entry : peersDecided.entrySet()) {
+            if (entry.getValue() > aheadDecided && membership.contains(entry.getKey())) {
+                ahead = entry.getKey();
+                aheadDecided = entry.getValue();
+            }
+        }
+        if (stalled && ahead != null) {
+            logger.debug("Stalled at {}, fetching from {} which executed up to {}", lastDecided, ahead, aheadDecided);
+            sendMessage(new FetchMessage(lastDecided + 1, catchupBatch), ahead);
+        }
+    }
+
+    private void uponFetchMessage(FetchMessage msg, Host host, short sourceProto, int channelId) {
+        if (!membership.contains(host) || msg.getFrom() > lastDecided)
+            return;
+        if (decidedLog.contains(msg.getFrom())) {
+            //Records go out as they are stored, nothing is decoded or re-encoded
+            List<ByteBuffer> records = new ArrayList<>();
+            int to = Math.min(Math.min(lastDecided, decidedLog.getLast()), msg.getFrom() + msg.getCount() - 1);
+            for (int i = msg.getFrom(); i <= to; i++)
+                records.add(decidedLog.slice(i));
+            sendMessage(new FetchReplyMessage(lastDecided, msg.getFrom(), records), host);
+        } else if (snapshotFile != null && snapshotInstance >= msg.getFrom()) {
+            //Compacted away, they start over from our snapshot
+            if (!transfers.containsKey(host))
+                startTransfer(host, snapshotInstance, snapshotInstance, snapshotFile);
+        } else if (!transfers.containsKey(host) && !joiningNodes.containsKey(lastDecided)) {
+            //No snapshot to send either, they get the current state the way joiners without one do
+            logger.debug("{} asked for instance {}, no longer in the log, sending the state at {}",
+                    host, msg.getFrom(), lastDecided);
+            joiningNodes.put(lastDecided, host);
+            sendRequest(new CurrentStateRequest(lastDecided), HashApp.PROTO_ID);
+        }
+    }
+
+    private void uponFetchReplyMessage(FetchReplyMessage msg, Host host, short sourceProto, int channelId) {
+        if (state != State.ACTIVE)
+            return;
+        peersDecided.merge(host, msg.getLastDecided(), Math::max);
+        int before = lastDecided;
+        int instance = msg.getFrom();
+        for (ByteBuffer record : msg.getRecords()) {
+            if (instance > lastDecided && decided.get(instance) == null) {
+                try {
+                    learn(instance, DecidedLog.decode(record));
+                } catch (IOException e) {
+                    logger.warn("Corrupted decision {} from {}", instance, host, e);
+                    break;
+                }
+            }
+            instance++;
         }
+        triggerExecute();
+        proposePending();
+        //Still behind: keep pulling batches right away instead of once per round
+        if (lastDecided > before && msg.getLastDecided() > lastDecided)
+            sendMessage(new FetchMessage(lastDecided + 1, catchupBatch), host);
+        decidedAtLastRound = lastDecided;
+    }
+
+    //Instances executed by a quorum will never be needed by the agreement protocol again
+    private void collectGarbage() {
+        int[] executed = new int[membership.size()];
+        int i = 0;
+        for (Host h : membership)
+            executed[i++] = h.equals(self) ? lastDecided : peersDecided.getOrDefault(h, -1);
+        Arrays.sort(executed);
+        int watermark = executed[executed.length - (executed.length / 2 + 1)];
+        if (watermark <= gcWatermark)
+            return;
+        gcWatermark = watermark;
+        //A replica in the minority may still be below the quorum, it must not drop what it has not decided yet
+        int collectable = Math.min(gcWatermark, lastDecided);
+        mine_decided.advanceTo(collectable + 1);
+        //Without snapshots the log is the only way back for members behind the quorum, keep it from the slowest
+        if (snapshotInterval <= 0)
+            truncateLog(Math.min(executed[0], lastDecided) + 1);
+        sendRequest(new GarbageCollectRequest(collectable), agreementId);
     }
 
 }
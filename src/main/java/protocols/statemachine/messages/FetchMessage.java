@@ -0,0 +1,55 @@
+package protocols.statemachine.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+//Asks a replica further ahead for up to count executed decisions starting at from
+public class FetchMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 205;
+
+    private final int from;
+    private final int count;
+
+    public FetchMessage(int from, int count) {
+        super(MSG_ID);
+        this.from = from;
+        this.count = count;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "FetchMessage{" +
+                "from=" + from +
+                ", count=" + count +
+                '}';
+    }
+
+    public static ISerializer<FetchMessage> serializer = new ISerializer<FetchMessage>() {
+        @Override
+        public void serialize(FetchMessage msg, ByteBuf out) {
+            out.writeInt(msg.from);
+            out.writeInt(msg.count);
+        }
+
+        @Override
+        public FetchMessage deserialize(ByteBuf in) {
+            return new FetchMessage(in.readInt(), in.readInt());
+        }
+    };
+
+}
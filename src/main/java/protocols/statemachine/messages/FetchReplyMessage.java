@@ -0,0 +1,82 @@
+package protocols.statemachine.messages;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+//A run of executed decisions starting at from, as raw decided log records, and the last instance the sender executed
+public class FetchReplyMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 206;
+
+    private final int lastDecided;
+    private final int from;
+    private final List<ByteBuffer> records;
+
+    public FetchReplyMessage(int lastDecided, int from, List<ByteBuffer> records) {
+        super(MSG_ID);
+        this.lastDecided = lastDecided;
+        this.from = from;
+        this.records = records;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public int getLastDecided() {
+        return lastDecided;
+    }
+
+    public int getFrom() {
+        return from;
+    }
+
+    public List<ByteBuffer> getRecords() {
+        return records;
+    }
+
+    @Override
+    public String toString() {
+        return "FetchReplyMessage{" +
+                "lastDecided=" + lastDecided +
+                ", from=" + from +
+                ", decided=" + records.size() +
+                '}';
+    }
+
+    public static ISerializer<FetchReplyMessage> serializer = new ISerializer<FetchReplyMessage>() {
+        @Override
+        public void serialize(FetchReplyMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.lastDecided);
+            out.writeInt(msg.from);
+            out.writeInt(msg.records.size());
+            for (ByteBuffer record : msg.records) {
+                out.writeInt(record.remaining());
+                out.writeBytes(Unpooled.wrappedBuffer(record.duplicate()));
+            }
+        }
+
+        @Override
+        public FetchReplyMessage deserialize(ByteBuf in) throws IOException {
+            int lastDecided = in.readInt();
+            int from = in.readInt();
+            int size = in.readInt();
+            List<ByteBuffer> records = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                byte[] record = new byte[in.readInt()];
+                in.readBytes(record);
+                records.add(ByteBuffer.wrap(record));
+            }
+            return new FetchReplyMessage(lastDecided, from, records);
+        }
+    };
+
+}
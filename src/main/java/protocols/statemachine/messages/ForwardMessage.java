@@ -0,0 +1,50 @@
+package protocols.statemachine.messages;
+
+import io.netty.buffer.ByteBuf;
+import protocols.app.utils.Operation;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+//An operation handed to the lease holder, which proposes it on our behalf
+public class ForwardMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 202;
+
+    private final Operation operation;
+
+    public ForwardMessage(Operation operation) {
+        super(MSG_ID);
+        this.operation = operation;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    @Override
+    public String toString() {
+        return "ForwardMessage{" +
+                "operation=" + operation +
+                '}';
+    }
+
+    public static ISerializer<ForwardMessage> serializer = new ISerializer<ForwardMessage>() {
+        @Override
+        public void serialize(ForwardMessage msg, ByteBuf out) throws IOException {
+            Operation.serializer.serialize(msg.operation, out);
+        }
+
+        @Override
+        public ForwardMessage deserialize(ByteBuf in) throws IOException {
+            return new ForwardMessage(Operation.serializer.deserialize(in));
+        }
+    };
+
+}
@@ -0,0 +1,57 @@
+package protocols.statemachine.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+
+//How many bytes of the state the joiner holds, contiguous from the start
+public class StateChunkAckMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 204;
+
+    private final int instance;
+    private final int received;
+
+    public StateChunkAckMessage(int instance, int received) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.received = received;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public int getReceived() {
+        return received;
+    }
+
+    @Override
+    public String toString() {
+        return "StateChunkAckMessage{" +
+                "instance=" + instance +
+                ", received=" + received +
+                '}';
+    }
+
+    public static ISerializer<StateChunkAckMessage> serializer = new ISerializer<StateChunkAckMessage>() {
+        @Override
+        public void serialize(StateChunkAckMessage msg, ByteBuf out) {
+            out.writeInt(msg.instance);
+            out.writeInt(msg.received);
+        }
+
+        @Override
+        public StateChunkAckMessage deserialize(ByteBuf in) {
+            return new StateChunkAckMessage(in.readInt(), in.readInt());
+        }
+    };
+
+}
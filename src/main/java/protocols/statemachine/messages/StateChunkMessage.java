@@ -0,0 +1,105 @@
+package protocols.statemachine.messages;
+
+import io.netty.buffer.ByteBuf;
+import pt.unl.fct.di.novasys.babel.generic.ProtoMessage;
+import pt.unl.fct.di.novasys.network.ISerializer;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+//A piece of the state shipped to a joiner. The sender's chunk is read from the snapshot file
+//straight into the outgoing buffer, the receiver gets it as an array
+public class StateChunkMessage extends ProtoMessage {
+
+    public static final short MSG_ID = 203;
+
+    private final int instance;
+    private final int offset;
+    private final int total;
+    private final int length;
+    private final FileChannel source;
+    private final byte[] data;
+
+    public StateChunkMessage(int instance, int offset, int total, FileChannel source, int length) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.offset = offset;
+        this.total = total;
+        this.length = length;
+        this.source = source;
+        this.data = null;
+    }
+
+    public StateChunkMessage(int instance, int offset, int total, byte[] data) {
+        super(MSG_ID);
+        this.instance = instance;
+        this.offset = offset;
+        this.total = total;
+        this.length = data.length;
+        this.source = null;
+        this.data = data;
+    }
+
+    @Override
+    public short getId() {
+        return super.getId();
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return "StateChunkMessage{" +
+                "instance=" + instance +
+                ", offset=" + offset +
+                ", length=" + length +
+                ", total=" + total +
+                '}';
+    }
+
+    public static ISerializer<StateChunkMessage> serializer = new ISerializer<StateChunkMessage>() {
+        @Override
+        public void serialize(StateChunkMessage msg, ByteBuf out) throws IOException {
+            out.writeInt(msg.instance);
+            out.writeInt(msg.offset);
+            out.writeInt(msg.total);
+            out.writeInt(msg.length);
+            if (msg.source != null) {
+                int written = 0;
+                while (written < msg.length) {
+                    int n = out.writeBytes(msg.source, msg.offset + written, msg.length - written);
+                    if (n < 0)
+                        throw new IOException("Snapshot file ended before offset " + (msg.offset + written));
+                    written += n;
+                }
+            } else {
+                out.writeBytes(msg.data);
+            }
+        }
+
+        @Override
+        public StateChunkMessage deserialize(ByteBuf in) throws IOException {
+            int instance = in.readInt();
+            int offset = in.readInt();
+            int total = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readBytes(data);
+            return new StateChunkMessage(instance, offset, total, data);
+        }
+    };
+
+}
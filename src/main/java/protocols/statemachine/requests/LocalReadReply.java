@@ -0,0 +1,29 @@
+package protocols.statemachine.requests;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoReply;
+
+import java.util.UUID;
+
+//The application state already reflects every operation that completed before the read, answer it right away
+public class LocalReadReply extends ProtoReply {
+
+    public static final short REPLY_ID = 203;
+
+    private final UUID opId;
+
+    public LocalReadReply(UUID opId) {
+        super(REPLY_ID);
+        this.opId = opId;
+    }
+
+    public UUID getOpId() {
+        return opId;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalReadReply{" +
+                "opId=" + opId +
+                '}';
+    }
+}
@@ -0,0 +1,37 @@
+package protocols.statemachine.requests;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoRequest;
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.UUID;
+
+//A read the application would like to serve from its own state; ordered like any other operation when it cannot
+public class LocalReadRequest extends ProtoRequest {
+
+    public static final short REQUEST_ID = 202;
+
+    private final UUID opId;
+    private final byte[] operation;
+
+    public LocalReadRequest(UUID opId, byte[] operation) {
+        super(REQUEST_ID);
+        this.opId = opId;
+        this.operation = operation;
+    }
+
+    public byte[] getOperation() {
+        return operation;
+    }
+
+    public UUID getOpId() {
+        return opId;
+    }
+
+    @Override
+    public String toString() {
+        return "LocalReadRequest{" +
+                "opId=" + opId +
+                ", operation=" + Hex.encodeHexString(operation) +
+                '}';
+    }
+}
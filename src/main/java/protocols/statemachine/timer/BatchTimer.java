@@ -0,0 +1,17 @@
+package protocols.statemachine.timer;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoTimer;
+
+public class BatchTimer extends ProtoTimer {
+
+    public static final short TIMEOUT_ID = 203;
+
+    public BatchTimer() {
+        super(TIMEOUT_ID);
+    }
+
+    @Override
+    public ProtoTimer clone() {
+        return this;
+    }
+}
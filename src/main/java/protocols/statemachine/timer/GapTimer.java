@@ -0,0 +1,17 @@
+package protocols.statemachine.timer;
+
+import pt.unl.fct.di.novasys.babel.generic.ProtoTimer;
+
+public class GapTimer extends ProtoTimer {
+
+    public static final short TIMEOUT_ID = 204;
+
+    public GapTimer() {
+        super(TIMEOUT_ID);
+    }
+
+    @Override
+    public ProtoTimer clone() {
+        return this;
+    }
+}
@@ -28,6 +28,6 @@ public class TimerRPC extends ProtoTimer {
 
     @Override
     public ProtoTimer clone() {
-        return null;
+        return this;
     }
 }
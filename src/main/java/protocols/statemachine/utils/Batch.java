@@ -0,0 +1,53 @@
+package protocols.statemachine.utils;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import protocols.app.utils.Operation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packs several client operations into the value of a single consensus instance.
+ * A batch is a NORMAL operation tagged with the reserved key {@link #KEY}, the same way
+ * membership operations are tagged with "ADD" and "REMOVE".
+ */
+public class Batch {
+
+    public static final String KEY = "BATCH";
+
+    //Serialized size of an operation besides its key and data (type + two length fields)
+    private static final int OVERHEAD = 9;
+
+    public static boolean isBatch(Operation op) {
+        return op.getOpType() == Operation.NORMAL && KEY.equals(op.getKey());
+    }
+
+    //Keys are written as UTF-8, so count their encoded bytes rather than their chars
+    public static int sizeOf(Operation op) {
+        return ByteBufUtil.utf8Bytes(op.getKey()) + op.getData().length + OVERHEAD;
+    }
+
+    public static Operation pack(List<Operation> ops) throws IOException {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeInt(ops.size());
+        for (Operation op : ops) {
+            Operation.serializer.serialize(op, buf);
+        }
+        byte[] data = new byte[buf.readableBytes()];
+        buf.readBytes(data);
+        return new Operation(Operation.NORMAL, KEY, data);
+    }
+
+    public static List<Operation> unpack(Operation batch) throws IOException {
+        ByteBuf buf = Unpooled.wrappedBuffer(batch.getData());
+        int size = buf.readInt();
+        List<Operation> ops = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ops.add(Operation.serializer.deserialize(buf));
+        }
+        return ops;
+    }
+}
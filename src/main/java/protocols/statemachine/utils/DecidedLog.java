@@ -0,0 +1,198 @@
+package protocols.statemachine.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import protocols.app.utils.Operation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Executed decisions, in instance order, kept off the heap in fixed-size memory-mapped segment
+ * files. Each segment covers a contiguous run of instances starting at its base and keeps the
+ * offset of every record, so a single decision or a range of them is read straight from the
+ * mapping. Whole segments below a watermark are deleted, the page cache keeps the recent ones hot.
+ * Records are [length][operation bytes].
+ */
+public class DecidedLog {
+    private static final Logger logger = LogManager.getLogger(DecidedLog.class);
+
+    public interface Visitor {
+        void visit(int instance, Operation op);
+    }
+
+    private static class Segment {
+        final int base;
+        final Path file;
+        MappedByteBuffer buffer;
+        int[] offsets;
+        int count;
+
+        Segment(int base, Path file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+            this.offsets = new int[1024];
+            this.count = 0;
+        }
+
+        int last() {
+            return base + count - 1;
+        }
+    }
+
+    private final Path dir;
+    private final String prefix;
+    private final int segmentBytes;
+    private final Deque<Segment> segments;
+
+    public DecidedLog(Path dir, String prefix, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.prefix = prefix;
+        this.segmentBytes = segmentBytes;
+        this.segments = new ArrayDeque<>();
+        Files.createDirectories(dir);
+        //Without a snapshot to start from a previous run's decisions cannot be trusted, start clean
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(dir, prefix + "-*.seg")) {
+            for (Path file : stale)
+                Files.deleteIfExists(file);
+        }
+    }
+
+    //First instance still stored, -1 if none
+    public int getFirst() {
+        return segments.isEmpty() ? -1 : segments.peekFirst().base;
+    }
+
+    //Last instance appended, -1 if none
+    public int getLast() {
+        return segments.isEmpty() ? -1 : segments.peekLast().last();
+    }
+
+    public boolean contains(int instance) {
+        return !segments.isEmpty() && instance >= getFirst() && instance <= getLast();
+    }
+
+    //Decisions are appended in execution order; a jump forward (a state transfer) starts over at instance
+    public void append(int instance, Operation op) {
+        try {
+            if (!segments.isEmpty() && instance != getLast() + 1)
+                clear();
+            byte[] bytes = op.toByteArray();
+            Segment segment = segments.peekLast();
+            if (segment == null || segment.buffer.remaining() < 4 + bytes.length)
+                segment = roll(instance, 4 + bytes.length);
+            if (segment.count == segment.offsets.length)
+                segment.offsets = Arrays.copyOf(segment.offsets, segment.count * 2);
+            segment.offsets[segment.count++] = segment.buffer.position();
+            segment.buffer.putInt(bytes.length);
+            segment.buffer.put(bytes);
+        } catch (IOException e) {
+            throw new AssertionError("Could not append to the decided log", e);
+        }
+    }
+
+    private Segment roll(int base, int recordBytes) throws IOException {
+        Path file = dir.resolve(String.format("%s-%010d.seg", prefix, base));
+        int size = Math.max(segmentBytes, recordBytes);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            //The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        Segment segment = new Segment(base, file, buffer);
+        segments.addLast(segment);
+        logger.debug("Decided log segment {} started at instance {}", file, base);
+        return segment;
+    }
+
+    private Segment segmentOf(int instance) {
+        Iterator<Segment> it = segments.descendingIterator();
+        while (it.hasNext()) {
+            Segment segment = it.next();
+            if (instance >= segment.base)
+                return instance <= segment.last() ? segment : null;
+        }
+        return null;
+    }
+
+    //Raw bytes of the record, a view of the mapping and not a copy. Records are never rewritten and
+    //a mapping outlives its deleted file, so the view stays valid after the segment is truncated,
+    //the mapping is unmapped once the log and the last such view let go of it
+    public ByteBuffer slice(int instance) {
+        Segment segment = segmentOf(instance);
+        if (segment == null)
+            return null;
+        ByteBuffer view = segment.buffer.duplicate();
+        int offset = segment.offsets[instance - segment.base];
+        view.position(offset + 4);
+        view.limit(offset + 4 + view.getInt(offset));
+        return view.slice();
+    }
+
+    public Operation get(int instance) {
+        ByteBuffer record = slice(instance);
+        if (record == null)
+            return null;
+        try {
+            return decode(record);
+        } catch (IOException e) {
+            throw new AssertionError("Corrupted decided log at instance " + instance, e);
+        }
+    }
+
+    //The record an operation is stored as, for decisions not in the log yet
+    public static ByteBuffer encode(Operation op) throws IOException {
+        return ByteBuffer.wrap(op.toByteArray());
+    }
+
+    public static Operation decode(ByteBuffer record) throws IOException {
+        byte[] bytes = new byte[record.remaining()];
+        record.duplicate().get(bytes);
+        return Operation.fromByteArray(bytes);
+    }
+
+    //Visits every stored decision in [from, to]
+    public void read(int from, int to, Visitor visitor) {
+        for (int i = Math.max(from, getFirst()); i <= Math.min(to, getLast()); i++)
+            visitor.visit(i, get(i));
+    }
+
+    //Deletes every segment holding only instances below instance, the one being appended to stays
+    public void truncateBefore(int instance) {
+        while (segments.size() > 1 && segments.peekFirst().last() < instance)
+            delete(segments.pollFirst());
+    }
+
+    public void clear() {
+        while (!segments.isEmpty())
+            delete(segments.pollFirst());
+    }
+
+    //Unmapping explicitly would crash on views still in flight, dropping our references lets the
+    //collector unmap the segment (and the disk give its space back) once they are gone too
+    private void delete(Segment segment) {
+        segment.buffer = null;
+        segment.offsets = null;
+        try {
+            Files.deleteIfExists(segment.file);
+        } catch (IOException e) {
+            logger.warn("Could not delete decided log segment {}", segment.file, e);
+        }
+    }
+
+    public int segmentCount() {
+        return segments.size();
+    }
+}
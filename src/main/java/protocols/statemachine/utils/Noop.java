@@ -0,0 +1,20 @@
+package protocols.statemachine.utils;
+
+import protocols.app.utils.Operation;
+
+/**
+ * Fills an instance without executing anything, e.g. a Mencius slot its owner had nothing for.
+ * Tagged with the reserved key {@link #KEY}, like batches and membership operations.
+ */
+public class Noop {
+
+    public static final String KEY = "NOOP";
+
+    public static Operation create() {
+        return new Operation(Operation.NORMAL, KEY, new byte[0]);
+    }
+
+    public static boolean isNoop(Operation op) {
+        return op.getOpType() == Operation.NORMAL && KEY.equals(op.getKey());
+    }
+}
@@ -0,0 +1,118 @@
+package protocols.statemachine.utils;
+
+import protocols.statemachine.messages.StateChunkMessage;
+import pt.unl.fct.di.novasys.network.data.Host;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+/**
+ * State being streamed to a joiner from a file on disk, in chunks of chunkBytes with at most
+ * window of them unacknowledged. Acks are cumulative, so after a reconnect (or when acks stop
+ * coming) sending simply resumes from the last acknowledged offset.
+ */
+public class StateTransfer {
+
+    private final Host joiner;
+    //Instance the joiner joins at, instance the state covers, and the membership it joins with
+    private final int instance;
+    private final int stateInstance;
+    private final List<Host> membership;
+    private final Path file;
+    private final FileChannel channel;
+    private final int total;
+    private final int chunkBytes;
+    private final int window;
+
+    private int acked;
+    private int sent;
+    private long lastProgress;
+    private final long startedAt;
+
+    public StateTransfer(Host joiner, int instance, int stateInstance, List<Host> membership, Path file,
+                         int chunkBytes, int window) throws IOException {
+        this.joiner = joiner;
+        this.instance = instance;
+        this.stateInstance = stateInstance;
+        this.membership = membership;
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.READ);
+        this.total = (int) channel.size();
+        this.chunkBytes = chunkBytes;
+        this.window = window;
+        acked = 0;
+        sent = 0;
+        startedAt = System.currentTimeMillis();
+        lastProgress = startedAt;
+    }
+
+    public Host getJoiner() {
+        return joiner;
+    }
+
+    public int getInstance() {
+        return instance;
+    }
+
+    public int getStateInstance() {
+        return stateInstance;
+    }
+
+    public List<Host> getMembership() {
+        return membership;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getTotal() {
+        return total;
+    }
+
+    public long getStartedAt() {
+        return startedAt;
+    }
+
+    public long getLastProgress() {
+        return lastProgress;
+    }
+
+    //Next chunk to send, null when the window is full or everything was sent
+    public StateChunkMessage nextChunk() {
+        if (sent >= total || sent - acked >= chunkBytes * window)
+            return null;
+        int length = Math.min(chunkBytes, total - sent);
+        StateChunkMessage chunk = new StateChunkMessage(instance, sent, total, channel, length);
+        sent += length;
+        return chunk;
+    }
+
+    public void ack(int received) {
+        if (received <= acked)
+            return;
+        acked = Math.min(received, total);
+        sent = Math.max(sent, acked);
+        lastProgress = System.currentTimeMillis();
+    }
+
+    //Chunks not acknowledged are sent again
+    public void rewind() {
+        sent = acked;
+        lastProgress = System.currentTimeMillis();
+    }
+
+    public boolean isComplete() {
+        return acked >= total;
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package protocols.agreement.multipaxos;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.jupiter.api.Test;
+import protocols.agreement.utils.EncodedOperation;
+import protocols.app.utils.Operation;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OperationLogTest {
+
+    private static EncodedOperation op(String key) {
+        return EncodedOperation.of(new Operation(Operation.NORMAL, key, new byte[]{1, 2}));
+    }
+
+    private static OperationLog log(String... entries) {
+        OperationLog log = new OperationLog();
+        for (String entry : entries) {
+            String[] parts = entry.split("@");
+            log.append(op(parts[0]), Long.parseLong(parts[1]));
+        }
+        return log;
+    }
+
+    private static String keys(OperationLog log) {
+        StringBuilder keys = new StringBuilder();
+        for (int i = 0; i < log.size(); i++)
+            keys.append(log.get(i).getKey());
+        return keys.toString();
+    }
+
+    @Test
+    void mergeAppendsOnlyTheNewerSuffix() {
+        OperationLog ours = log("a@1", "b@2", "c@3");
+        ours.mergeLogs(log("b@2", "c@3", "d@4", "e@5"));
+
+        assertEquals("abcde", keys(ours));
+        assertEquals(5, ours.getLastStamp());
+    }
+
+    @Test
+    void mergeOfAnOlderLogChangesNothing() {
+        OperationLog ours = log("a@1", "b@5");
+        ours.mergeLogs(log("x@2", "y@4"));
+        ours.mergeLogs(new OperationLog());
+
+        assertEquals("ab", keys(ours));
+    }
+
+    @Test
+    void mergeSkipsEntriesUpToOurLastStampEvenIfItIsMissingThere() {
+        OperationLog ours = log("a@1", "b@3");
+        ours.mergeLogs(log("x@2", "y@4"));
+
+        assertEquals("aby", keys(ours));
+    }
+
+    @Test
+    void anEmptyLogBorrowsTheOtherUntilEitherAppends() {
+        OperationLog other = log("a@1", "b@2");
+        OperationLog ours = new OperationLog();
+        ours.mergeLogs(other);
+        assertEquals("ab", keys(ours));
+
+        ours.append(op("c"), 3);
+        other.append(op("z"), 9);
+
+        assertEquals("abc", keys(ours));
+        assertEquals("abz", keys(other));
+    }
+
+    @Test
+    void singleEntryLogsKeepTheEncodedValue() {
+        EncodedOperation value = op("k");
+        OperationLog log = OperationLog.of(value, 7);
+
+        assertEquals(1, log.size());
+        assertSame(value, log.getLastEncoded());
+        assertEquals(7, log.getLastStamp());
+        assertTrue(OperationLog.of(null, 7).isEmpty());
+        assertNull(new OperationLog().getLastOperation());
+    }
+
+    @Test
+    void serializesAsOneBlock() throws IOException {
+        OperationLog log = log("a@1", "b@2", "c@3");
+        ByteBuf out = Unpooled.buffer();
+        OperationLog.serializer.serialize(log, out);
+        OperationLog copy = OperationLog.serializer.deserialize(out);
+
+        assertEquals(0, out.readableBytes());
+        assertEquals("abc", keys(copy));
+        assertEquals(3, copy.getLastStamp());
+    }
+}
@@ -0,0 +1,156 @@
+package protocols.agreement.utils;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import protocols.app.utils.Operation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AcceptorLogTest {
+
+    private static final String PREFIX = "acceptor";
+
+    @TempDir
+    Path dir;
+
+    private AcceptorLog log;
+
+    //Replayed records as text, accepts by key
+    private static class Recorder implements AcceptorLog.Replayer {
+        final List<String> records = new ArrayList<>();
+
+        @Override
+        public void promise(int instance, int ballot) {
+            records.add("promise " + instance + " " + ballot);
+        }
+
+        @Override
+        public void promiseFrom(int fromInstance, int ballot) {
+            records.add("from " + fromInstance + " " + ballot);
+        }
+
+        @Override
+        public void accept(int instance, int ballot, Operation value) {
+            records.add("accept " + instance + " " + ballot + " " + (value == null ? null : value.getKey()));
+        }
+    }
+
+    private static Operation op(String key) {
+        return new Operation(Operation.NORMAL, key, key.getBytes());
+    }
+
+    private List<String> open(long segmentBytes) throws IOException {
+        Recorder recorder = new Recorder();
+        log = new AcceptorLog(AcceptorLog.Durability.SYNC, 0, 1, segmentBytes);
+        log.open(dir, PREFIX, recorder);
+        return recorder.records;
+    }
+
+    private List<String> reopen(long segmentBytes) throws IOException {
+        log.close();
+        return open(segmentBytes);
+    }
+
+    private Path firstSegment() {
+        return dir.resolve(PREFIX + "-0000000000.wal");
+    }
+
+    @AfterEach
+    void close() {
+        if (log != null)
+            log.close();
+    }
+
+    @Test
+    void replaysEverythingAppendedBeforeARestart() throws IOException {
+        assertTrue(open(1 << 20).isEmpty());
+        log.promise(1, 5);
+        log.accept(1, 5, op("a"));
+        log.accept(2, 5, EncodedOperation.of(op("b")));
+        log.accept(3, 5, (Operation) null);
+        log.promiseFrom(4, 7);
+
+        assertEquals(Arrays.asList("promise 1 5", "accept 1 5 a", "accept 2 5 b", "accept 3 5 null", "from 4 7"),
+                reopen(1 << 20));
+    }
+
+    @Test
+    void dropsATornTailAndAppendsAfterTheLastWholeRecord() throws IOException {
+        open(1 << 20);
+        log.promise(1, 5);
+        log.accept(1, 5, op("a"));
+        log.close();
+        long whole = Files.size(firstSegment());
+        //A record cut short by a crash: its header promises more bytes than were written
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer torn = ByteBuffer.allocate(12);
+            torn.putInt(100).putInt(0).put((byte) 3).flip();
+            channel.write(torn);
+        }
+
+        List<String> replayed = open(1 << 20);
+        assertEquals(Arrays.asList("promise 1 5", "accept 1 5 a"), replayed);
+        assertEquals(whole, Files.size(firstSegment()));
+
+        log.accept(2, 5, op("b"));
+        assertEquals(Arrays.asList("promise 1 5", "accept 1 5 a", "accept 2 5 b"), reopen(1 << 20));
+    }
+
+    @Test
+    void stopsAtARecordWhoseChecksumDoesNotMatch() throws IOException {
+        open(1 << 20);
+        log.accept(1, 5, op("a"));
+        long first = Files.size(firstSegment());
+        log.accept(2, 5, op("b"));
+        log.close();
+        //Flip the last byte of the second record's value
+        try (FileChannel channel = FileChannel.open(firstSegment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            last.put(0, (byte) (last.get(0) ^ 0xFF));
+            last.rewind();
+            channel.write(last, channel.size() - 1);
+        }
+
+        assertEquals(Arrays.asList("accept 1 5 a"), open(1 << 20));
+        assertEquals(first, Files.size(firstSegment()));
+    }
+
+    @Test
+    void deletesOldSegmentsButKeepsTheLeaderPromise() throws IOException {
+        //Small enough for every append to start a new segment
+        open(1);
+        log.promiseFrom(0, 3);
+        for (int i = 0; i < 6; i++)
+            log.accept(i, 3, op("v" + i));
+        log.truncateBefore(4);
+        assertFalse(Files.exists(firstSegment()));
+
+        List<String> replayed = reopen(1);
+        assertFalse(replayed.contains("accept 0 3 v0"));
+        assertTrue(replayed.contains("accept 5 3 v5"));
+        assertTrue(replayed.contains("from 0 3"));
+    }
+
+    @Test
+    void writesNothingWithoutDurability() throws IOException {
+        log = new AcceptorLog(AcceptorLog.Durability.NONE, 0, 1, 1 << 20);
+        log.open(dir, PREFIX, new Recorder());
+        log.accept(1, 5, op("a"));
+
+        assertFalse(Files.exists(firstSegment()));
+    }
+}
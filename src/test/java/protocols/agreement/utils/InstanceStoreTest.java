@@ -0,0 +1,91 @@
+package protocols.agreement.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class InstanceStoreTest {
+
+    private static List<Integer> instances(InstanceStore<String> store) {
+        List<Integer> visited = new ArrayList<>();
+        store.forEach((instance, value) -> visited.add(instance));
+        return visited;
+    }
+
+    @Test
+    void reusesSlotsOnceTheBaseMovesPast() {
+        InstanceStore<String> store = new InstanceStore<>(4);
+        for (int i = 0; i < 4; i++)
+            store.put(i, "v" + i);
+        store.advanceTo(2);
+        //4 and 5 land on the slots 0 and 1 used to hold
+        store.put(4, "v4");
+        store.put(5, "v5");
+
+        assertNull(store.get(0));
+        assertNull(store.get(1));
+        assertEquals("v2", store.get(2));
+        assertEquals("v4", store.get(4));
+        assertEquals("v5", store.get(5));
+        assertEquals(4, store.size());
+        assertEquals(Arrays.asList(2, 3, 4, 5), instances(store));
+    }
+
+    @Test
+    void keepsFarAheadInstancesUntilTheRingReachesThem() {
+        InstanceStore<String> store = new InstanceStore<>(4);
+        store.put(1, "v1");
+        store.put(6, "v6");
+        store.put(9, "v9");
+        assertEquals("v6", store.get(6));
+        assertEquals(3, store.size());
+
+        store.advanceTo(4);
+        //6 is in the ring now, on the slot 2 had, and 9 is still ahead of it
+        assertNull(store.get(2));
+        assertEquals("v6", store.get(6));
+        assertEquals("v9", store.get(9));
+        assertEquals(Arrays.asList(6, 9), instances(store));
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    void dropsFarAheadInstancesTheBaseJumpsOver() {
+        InstanceStore<String> store = new InstanceStore<>(4);
+        store.put(10, "v10");
+        store.put(20, "v20");
+        store.advanceTo(15);
+
+        assertNull(store.get(10));
+        assertEquals("v20", store.get(20));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    void ignoresInstancesBelowTheBase() {
+        InstanceStore<String> store = new InstanceStore<>(4);
+        store.advanceTo(8);
+        store.put(7, "v7");
+
+        assertNull(store.get(7));
+        assertNull(store.remove(7));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void removesFromTheRingAndTheOverflow() {
+        InstanceStore<String> store = new InstanceStore<>(4);
+        store.put(1, "v1");
+        store.put(100, "v100");
+
+        assertEquals("v1", store.remove(1));
+        assertEquals("v100", store.remove(100));
+        assertNull(store.remove(1));
+        assertEquals(0, store.size());
+    }
+}
@@ -0,0 +1,79 @@
+package protocols.agreement.utils;
+
+import org.junit.jupiter.api.Test;
+import protocols.app.utils.Operation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QuorumTrackerTest {
+
+    @Test
+    void countsEachVoterOnce() {
+        QuorumTracker votes = new QuorumTracker();
+        assertTrue(votes.vote(0, 3));
+        assertFalse(votes.vote(0, 3));
+        assertTrue(votes.vote(2, 3));
+
+        assertEquals(2, votes.getCount());
+        assertTrue(votes.hasQuorum(QuorumTracker.quorum(3)));
+        assertFalse(votes.hasQuorum(3));
+    }
+
+    @Test
+    void higherBallotDiscardsEarlierVotes() {
+        QuorumTracker votes = new QuorumTracker();
+        votes.vote(0, 3);
+        votes.vote(1, 3);
+        assertTrue(votes.vote(2, 5));
+
+        assertEquals(5, votes.getBallot());
+        assertEquals(1, votes.getCount());
+        assertFalse(votes.hasVoted(0));
+        assertTrue(votes.hasVoted(2));
+    }
+
+    @Test
+    void ignoresLowerBallotsAndUnknownVoters() {
+        QuorumTracker votes = new QuorumTracker();
+        votes.reset(4);
+        assertFalse(votes.vote(0, 3));
+        assertFalse(votes.vote(-1, 4));
+        assertFalse(votes.vote(QuorumTracker.MAX_REPLICAS, 4));
+        assertTrue(votes.vote(QuorumTracker.MAX_REPLICAS - 1, 4));
+        assertEquals(1, votes.getCount());
+    }
+
+    @Test
+    void keepsTheValueAcceptedWithTheHighestBallot() {
+        QuorumTracker votes = new QuorumTracker();
+        Operation older = new Operation(Operation.NORMAL, "a", new byte[0]);
+        Operation newer = new Operation(Operation.NORMAL, "b", new byte[0]);
+        votes.report(7, newer);
+        votes.report(2, older);
+        votes.report(9, null);
+
+        assertSame(newer, votes.getHighestValue());
+        assertEquals(7, votes.getHighestSeq());
+        votes.reset(10);
+        assertNull(votes.getHighestValue());
+    }
+
+    @Test
+    void shiftsVotesDownWhenAReplicaLeaves() {
+        QuorumTracker votes = new QuorumTracker();
+        votes.vote(0, 1);
+        votes.vote(2, 1);
+        votes.vote(3, 1);
+        votes.removeIndex(2);
+
+        //the voter at 3 moved to 2, and nobody is at 3 anymore
+        assertTrue(votes.hasVoted(0));
+        assertTrue(votes.hasVoted(2));
+        assertFalse(votes.hasVoted(3));
+        assertEquals(2, votes.getCount());
+    }
+}
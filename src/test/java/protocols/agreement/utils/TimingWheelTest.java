@@ -0,0 +1,92 @@
+package protocols.agreement.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private final List<Integer> fired = new ArrayList<>();
+
+    @Test
+    void firesOnTheTickTheDelayRoundsUpTo() {
+        TimingWheel wheel = new TimingWheel(10, 8, (instance, deadline) -> fired.add(instance));
+        assertEquals(3, wheel.schedule(1, 25));
+        wheel.tick();
+        wheel.tick();
+        assertTrue(fired.isEmpty());
+        wheel.tick();
+        assertEquals(Arrays.asList(1), fired);
+    }
+
+    @Test
+    void waitsAtLeastOneTick() {
+        TimingWheel wheel = new TimingWheel(10, 8, (instance, deadline) -> fired.add(instance));
+        assertEquals(1, wheel.schedule(1, 0));
+        wheel.tick();
+        assertEquals(Arrays.asList(1), fired);
+    }
+
+    @Test
+    void keepsEntriesForLaterRoundsOfTheSameSlot() {
+        TimingWheel wheel = new TimingWheel(10, 4, (instance, deadline) -> fired.add(instance));
+        wheel.schedule(1, 20);
+        //two ticks plus a full turn of the wheel, the same slot
+        wheel.schedule(2, 60);
+        for (int i = 0; i < 2; i++)
+            wheel.tick();
+        assertEquals(Arrays.asList(1), fired);
+        for (int i = 0; i < 4; i++)
+            wheel.tick();
+        assertEquals(Arrays.asList(1, 2), fired);
+    }
+
+    @Test
+    void growsSlotsPastTheirInitialCapacity() {
+        TimingWheel wheel = new TimingWheel(10, 4, (instance, deadline) -> fired.add(instance));
+        for (int i = 0; i < 100; i++)
+            wheel.schedule(i, 10);
+        wheel.tick();
+        assertEquals(100, fired.size());
+        assertEquals(99, (int) fired.get(99));
+    }
+
+    @Test
+    void handsBackTheDeadlineItWasScheduledWith() {
+        List<Long> deadlines = new ArrayList<>();
+        TimingWheel wheel = new TimingWheel(10, 4, (instance, deadline) -> deadlines.add(deadline));
+        long first = wheel.schedule(1, 10);
+        long second = wheel.schedule(1, 20);
+        wheel.tick();
+        wheel.tick();
+        //the owner told them apart by deadline, the first one was superseded
+        assertEquals(Arrays.asList(first, second), deadlines);
+    }
+
+    @Test
+    void timeoutsScheduledWhileFiringWaitForTheirOwnTick() {
+        TimingWheel[] wheel = new TimingWheel[1];
+        wheel[0] = new TimingWheel(10, 4, (instance, deadline) -> {
+            fired.add(instance);
+            if (instance == 1)
+                wheel[0].schedule(2, 40);
+        });
+        wheel[0].schedule(1, 10);
+        wheel[0].tick();
+        assertEquals(Arrays.asList(1), fired);
+        for (int i = 0; i < 4; i++)
+            wheel[0].tick();
+        assertEquals(Arrays.asList(1, 2), fired);
+    }
+
+    @Test
+    void rejectsSlotCountsThatAreNotPowersOfTwo() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel(10, 6, (instance, deadline) -> { }));
+    }
+}